@@ -6,13 +6,22 @@
 package com.github.marcusschmidt4247.tagit;
 
 import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileNameRegistry;
 import com.github.marcusschmidt4247.tagit.miscellaneous.ManagedFolder;
 import com.github.marcusschmidt4247.tagit.miscellaneous.SearchCriteria;
+import com.github.marcusschmidt4247.tagit.miscellaneous.TagIndex;
 import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
+import com.github.marcusschmidt4247.tagit.miscellaneous.WatchedDirectory;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 
 import java.sql.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
 import java.util.Vector;
 
 public class Database
@@ -20,11 +29,43 @@ public class Database
     private static final String NAME = "database.db";
     public static String getName() { return NAME; }
 
-    private static final int VERSION = 2;
+    private static final int VERSION = 6;
+
+    /**
+     * A file that is ready to be saved to the database.
+     * @param name the name of the file in storage
+     * @param createdMillis the time the file was created in milliseconds since the epoch; <code>-1</code> to use the current time
+     * @param hash the hash of the file's contents; <code>null</code> if it has not been hashed
+     */
+    public record FileRecord(String name, long createdMillis, String hash) { }
 
     private static final String DATABASE_INFO_SCHEMA = "CREATE TABLE DatabaseInfo(version INTEGER NOT NULL)";
+    private static final String DATABASE_INFO_LAYOUT_COLUMN = "ALTER TABLE DatabaseInfo ADD COLUMN storage_layout INTEGER NOT NULL DEFAULT 0";
     private static final String FOLDERS_SCHEMA = "CREATE TABLE IF NOT EXISTS Folders(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL UNIQUE COLLATE NOCASE, location TEXT NOT NULL, main INTEGER DEFAULT 0, created INTEGER NOT NULL)";
 
+    private static final String WATCHED_DIRECTORY_SCHEMA = "CREATE TABLE IF NOT EXISTS WatchedDirectory(id INTEGER PRIMARY KEY AUTOINCREMENT, path TEXT NOT NULL UNIQUE, rate_limit INTEGER NOT NULL DEFAULT 0)";
+    private static final String WATCHED_DIRECTORY_TAGS_SCHEMA = "CREATE TABLE IF NOT EXISTS WatchedDirectoryTags(directory_id INTEGER NOT NULL," +
+            "tag_id INTEGER NOT NULL," +
+            "FOREIGN KEY (directory_id) REFERENCES WatchedDirectory(id) ON DELETE CASCADE," +
+            "FOREIGN KEY (tag_id) REFERENCES Tag(id) ON DELETE CASCADE," +
+            "PRIMARY KEY (directory_id, tag_id))";
+
+    /* Every tag's file count and every file's tag count are kept in step with the FileTags table by these triggers, which also fire for
+     * the rows removed when a file or tag is deleted and its associations are cascaded */
+    private static final String FILE_TAGS_INDEX = "CREATE INDEX IF NOT EXISTS FileTagsByTag ON FileTags(tag_id)";
+    private static final String FILE_HASH_INDEX = "CREATE INDEX IF NOT EXISTS FileByHash ON File(hash)";
+    private static final String FILE_TAGS_INSERT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS FileTagsInsert AFTER INSERT ON FileTags BEGIN " +
+            "UPDATE Tag SET file_count=file_count+1 WHERE id=NEW.tag_id; " +
+            "UPDATE File SET tag_count=tag_count+1 WHERE id=NEW.file_id; END";
+    private static final String FILE_TAGS_DELETE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS FileTagsDelete AFTER DELETE ON FileTags BEGIN " +
+            "UPDATE Tag SET file_count=file_count-1 WHERE id=OLD.tag_id; " +
+            "UPDATE File SET tag_count=tag_count-1 WHERE id=OLD.file_id; END";
+    private static final String FILE_TAGS_UPDATE_TRIGGER = "CREATE TRIGGER IF NOT EXISTS FileTagsUpdate AFTER UPDATE OF file_id, tag_id ON FileTags BEGIN " +
+            "UPDATE Tag SET file_count=file_count-1 WHERE id=OLD.tag_id; " +
+            "UPDATE File SET tag_count=tag_count-1 WHERE id=OLD.file_id; " +
+            "UPDATE Tag SET file_count=file_count+1 WHERE id=NEW.tag_id; " +
+            "UPDATE File SET tag_count=tag_count+1 WHERE id=NEW.file_id; END";
+
     /**
      * Creates the database tables used by the root directory. The database file in <code>directory</code> must already exist.
      * <p/>
@@ -60,8 +101,8 @@ public class Database
         try (Connection connection = connect(directory, false))
         {
             // If successful, create the database tables
-            String fileSchema = "CREATE TABLE File(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL COLLATE NOCASE, created INTEGER NOT NULL)";
-            String tagSchema = "CREATE TABLE Tag(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL COLLATE NOCASE)";
+            String fileSchema = "CREATE TABLE File(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL COLLATE NOCASE, created INTEGER NOT NULL, tag_count INTEGER NOT NULL DEFAULT 0, hash TEXT)";
+            String tagSchema = "CREATE TABLE Tag(id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL COLLATE NOCASE, file_count INTEGER NOT NULL DEFAULT 0)";
             String fileTagsSchema = "CREATE TABLE FileTags(file_id INTEGER NOT NULL," +
                     "tag_id INTEGER NOT NULL," +
                     "FOREIGN KEY (file_id) REFERENCES File(id) ON DELETE CASCADE," +
@@ -77,10 +118,18 @@ public class Database
             statement.execute(tagSchema);
             statement.execute(fileTagsSchema);
             statement.execute(tagParentageSchema);
+            statement.execute(FILE_TAGS_INDEX);
+            statement.execute(FILE_HASH_INDEX);
+            statement.execute(FILE_TAGS_INSERT_TRIGGER);
+            statement.execute(FILE_TAGS_DELETE_TRIGGER);
+            statement.execute(FILE_TAGS_UPDATE_TRIGGER);
+            statement.execute(WATCHED_DIRECTORY_SCHEMA);
+            statement.execute(WATCHED_DIRECTORY_TAGS_SCHEMA);
             statement.execute(DATABASE_INFO_SCHEMA);
+            statement.execute(DATABASE_INFO_LAYOUT_COLUMN);
 
             // Insert the current version number into the DatabaseInfo table
-            String sql = String.format("INSERT INTO DatabaseInfo VALUES (%d)", VERSION);
+            String sql = String.format("INSERT INTO DatabaseInfo(version) VALUES (%d)", VERSION);
             statement.execute(sql);
 
             statement.close();
@@ -125,6 +174,93 @@ public class Database
                             break;
                         }
                     case 2:
+                        System.out.println("Updating database from version 2 to 3");
+                        try
+                        {
+                            // Add the tag and file counters to ManagedFolder databases and fill them in from the existing associations
+                            connection.setAutoCommit(false);
+                            if (!rootDatabase)
+                            {
+                                statement.execute("ALTER TABLE File ADD COLUMN tag_count INTEGER NOT NULL DEFAULT 0");
+                                statement.execute("ALTER TABLE Tag ADD COLUMN file_count INTEGER NOT NULL DEFAULT 0");
+                                statement.execute("UPDATE File SET tag_count=(SELECT count(tag_id) FROM FileTags WHERE file_id=File.id)");
+                                statement.execute("UPDATE Tag SET file_count=(SELECT count(file_id) FROM FileTags WHERE tag_id=Tag.id)");
+                                statement.execute(FILE_TAGS_INDEX);
+                                statement.execute(FILE_TAGS_INSERT_TRIGGER);
+                                statement.execute(FILE_TAGS_DELETE_TRIGGER);
+                                statement.execute(FILE_TAGS_UPDATE_TRIGGER);
+                            }
+                            statement.executeUpdate("UPDATE DatabaseInfo SET version=3");
+                            connection.commit();
+                            connection.setAutoCommit(true);
+                        }
+                        catch (SQLException e)
+                        {
+                            System.out.println(e.toString());
+                            connection.rollback();
+                            break;
+                        }
+                    case 3:
+                        System.out.println("Updating database from version 3 to 4");
+                        try
+                        {
+                            // Add content hashes to ManagedFolder databases (existing files are hashed in the background later)
+                            connection.setAutoCommit(false);
+                            if (!rootDatabase)
+                            {
+                                statement.execute("ALTER TABLE File ADD COLUMN hash TEXT");
+                                statement.execute(FILE_HASH_INDEX);
+                            }
+                            statement.executeUpdate("UPDATE DatabaseInfo SET version=4");
+                            connection.commit();
+                            connection.setAutoCommit(true);
+                        }
+                        catch (SQLException e)
+                        {
+                            System.out.println(e.toString());
+                            connection.rollback();
+                            break;
+                        }
+                    case 4:
+                        System.out.println("Updating database from version 4 to 5");
+                        try
+                        {
+                            // Add the watched directory tables to ManagedFolder databases
+                            connection.setAutoCommit(false);
+                            if (!rootDatabase)
+                            {
+                                statement.execute(WATCHED_DIRECTORY_SCHEMA);
+                                statement.execute(WATCHED_DIRECTORY_TAGS_SCHEMA);
+                            }
+                            statement.executeUpdate("UPDATE DatabaseInfo SET version=5");
+                            connection.commit();
+                            connection.setAutoCommit(true);
+                        }
+                        catch (SQLException e)
+                        {
+                            System.out.println(e.toString());
+                            connection.rollback();
+                            break;
+                        }
+                    case 5:
+                        System.out.println("Updating database from version 5 to 6");
+                        try
+                        {
+                            // Record the storage layout of ManagedFolder databases (existing folders are flat)
+                            connection.setAutoCommit(false);
+                            if (!rootDatabase)
+                                statement.execute(DATABASE_INFO_LAYOUT_COLUMN);
+                            statement.executeUpdate("UPDATE DatabaseInfo SET version=6");
+                            connection.commit();
+                            connection.setAutoCommit(true);
+                        }
+                        catch (SQLException e)
+                        {
+                            System.out.println(e.toString());
+                            connection.rollback();
+                            break;
+                        }
+                    case 6:
                         upToDate = true;
                 }
 
@@ -140,6 +276,49 @@ public class Database
         return upToDate;
     }
 
+    /**
+     * Gets the storage layout of a <code>ManagedFolder</code>.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return the ordinal of a <code>StorageResolver.Layout</code>
+     */
+    public static int getStorageLayout(String directory)
+    {
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            ResultSet result = statement.executeQuery("SELECT storage_layout FROM DatabaseInfo");
+            int layout = result.next() ? result.getInt(1) : 0;
+            statement.close();
+            return layout;
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Sets the storage layout of a <code>ManagedFolder</code>.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param layout the ordinal of a <code>StorageResolver.Layout</code>
+     * @return <code>true</code> if the layout was saved; <code>false</code> otherwise
+     */
+    public static boolean setStorageLayout(String directory, int layout)
+    {
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            statement.executeUpdate(String.format("UPDATE DatabaseInfo SET storage_layout=%d", layout));
+            statement.close();
+            return true;
+        }
+        catch (SQLException exception)
+        {
+            System.out.printf("Database.setStorageLayout: %s\n", exception.toString());
+            return false;
+        }
+    }
+
     //**************************
     // Methods related to tags *
     //**************************
@@ -167,6 +346,9 @@ public class Database
             }
             statement.close();
 
+            if (id != -1)
+                TagIndex.update(tag);
+
             // The success of this operation is determined by whether the tag now has a valid database ID
             return (tag.getId() != -1);
         }
@@ -260,6 +442,7 @@ public class Database
                 Statement statement = connection.createStatement();
                 statement.execute(sql);
                 statement.close();
+                TagIndex.update(tag);
             }
             catch (SQLException e)
             {
@@ -297,6 +480,7 @@ public class Database
                 }
                 statement.execute(sql);
                 statement.close();
+                TagIndex.update(tag);
             }
             catch (SQLException e)
             {
@@ -317,6 +501,7 @@ public class Database
                 statement.execute("PRAGMA foreign_keys = ON");
                 statement.execute(String.format("DELETE FROM Tag WHERE id=%d", tag.getId()));
                 statement.close();
+                TagIndex.remove(tag);
             }
             catch (SQLException e)
             {
@@ -328,7 +513,89 @@ public class Database
     }
 
     /**
-     * Fetches the <code>TagNode</code>s associated with a file.
+     * Merges one tag into another in a single transaction. Every file tagged with <code>source</code> is re-tagged with <code>target</code>,
+     * <code>source</code>'s children are re-parented to <code>target</code> (a child with the same name as one of <code>target</code>'s children
+     * is merged into it instead), and then <code>source</code> is deleted.
+     * @param source the tag that will be absorbed and deleted
+     * @param target the tag that will absorb <code>source</code> (cannot be the root node)
+     * @return <code>true</code> if the transaction was committed; <code>false</code> otherwise
+     */
+    public static boolean mergeTags(TagNode source, TagNode target)
+    {
+        if (source.getId() == -1 || target.getId() == -1)
+        {
+            System.out.println("Database.mergeTags: Tag ID = -1");
+            return false;
+        }
+
+        try (Connection connection = connect(source.getDirectory()))
+        {
+            Statement statement = connection.createStatement();
+            statement.execute("PRAGMA foreign_keys = ON");
+            statement.close();
+
+            connection.setAutoCommit(false);
+            try
+            {
+                mergeTags(connection, source.getId(), target.getId());
+                connection.commit();
+                TagIndex.invalidate(source.getDirectory());
+                return true;
+            }
+            catch (SQLException exception)
+            {
+                connection.rollback();
+                System.out.printf("Database.mergeTags: %s\n", exception.toString());
+                return false;
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Merge the tag with ID 'sourceId' into the tag with ID 'targetId' (and recursively merge any children with the same name) using an open transaction
+    private static void mergeTags(Connection connection, int sourceId, int targetId) throws SQLException
+    {
+        Statement statement = connection.createStatement();
+
+        // Re-point the source tag's files to the target tag, dropping any rows that would duplicate an existing (file_id, tag_id) pair
+        statement.execute(String.format("INSERT OR IGNORE INTO FileTags SELECT file_id, %d FROM FileTags WHERE tag_id=%d", targetId, sourceId));
+        statement.execute(String.format("DELETE FROM FileTags WHERE tag_id=%d", sourceId));
+
+        // Collect the source tag's children before any of them are re-parented
+        Vector<Integer> childIds = new Vector<>();
+        Vector<String> childNames = new Vector<>();
+        ResultSet results = statement.executeQuery(String.format("SELECT id, name FROM Tag JOIN TagParentage ON id=child_id WHERE parent_id=%d", sourceId));
+        while (results.next())
+        {
+            childIds.add(results.getInt(1));
+            childNames.add(results.getString(2));
+        }
+
+        // Re-parent each child to the target tag unless the target already has a child by that name, in which case merge the two
+        PreparedStatement match = connection.prepareStatement("SELECT id FROM Tag JOIN TagParentage ON id=child_id WHERE parent_id=? AND name=? COLLATE BINARY");
+        for (int i = 0; i < childIds.size(); i++)
+        {
+            match.setInt(1, targetId);
+            match.setString(2, childNames.get(i));
+            results = match.executeQuery();
+            if (results.next())
+                mergeTags(connection, childIds.get(i), results.getInt(1));
+            else
+                statement.execute(String.format("UPDATE TagParentage SET parent_id=%d WHERE child_id=%d", targetId, childIds.get(i)));
+        }
+        match.close();
+
+        // Delete the source tag now that nothing refers to it
+        statement.execute(String.format("DELETE FROM Tag WHERE id=%d", sourceId));
+        statement.close();
+    }
+
+    /**
+     * Fetches the <code>TagNode</code>s associated with a file. Should be called on the JavaFX application thread, since nodes whose children
+     * have not been fetched yet are changed while following the tags' lineages; use <code>getFileTagLineages()</code> on other threads.
      * @param root the first node in the <code>TagNode</code> tree
      * @param fileName the target file
      * @return a list of all associated tags
@@ -336,8 +603,29 @@ public class Database
     public static Vector<TagNode> getFileTags(TagNode root, String fileName)
     {
         Vector<TagNode> tags = new Vector<>();
+        for (Vector<Integer> lineage : getFileTagLineages(root.getDirectory(), fileName))
+        {
+            TagNode tag = root.findNode(lineage);
+            if (tag != null)
+                tags.add(tag);
+            else
+                System.out.println("Database.getFileTags: Unable to follow lineage to TagNode");
+        }
+        return tags;
+    }
 
-        try (Connection connection = connect(root.getDirectory()))
+    /**
+     * Fetches the lineage of every tag associated with a file, which can be followed to each <code>TagNode</code> with
+     * <code>TagNode.findNode()</code>. Safe to call from any thread.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param fileName the target file
+     * @return a list of tag lineages, each from a root tag to the associated tag
+     */
+    public static Vector<Vector<Integer>> getFileTagLineages(String directory, String fileName)
+    {
+        Vector<Vector<Integer>> lineages = new Vector<>();
+
+        try (Connection connection = connect(directory))
         {
             // Get this file's ID
             Statement statement = connection.createStatement();
@@ -354,19 +642,12 @@ public class Database
                 while (results.next())
                     tagIds.add(results.getInt(1));
 
-                // For each tag ID, reconstruct its lineage and follow it to the equivalent TagNode
+                // Reconstruct each tag's lineage
                 for (int id : tagIds)
-                {
-                    Vector<Integer> lineage = getTagLineage(root.getDirectory(), id);
-                    TagNode tag = root.findNode(lineage);
-                    if (tag != null)
-                        tags.add(tag);
-                    else
-                        System.out.println("Database.getFileTags: Unable to follow lineage to TagNode");
-                }
+                    lineages.add(getTagLineage(directory, id));
             }
             else
-                System.out.printf("Database.getFileTags: Unable to retrieve file ID for \"%s\"\n", fileName);
+                System.out.printf("Database.getFileTagLineages: Unable to retrieve file ID for \"%s\"\n", fileName);
             statement.close();
         }
         catch (SQLException e)
@@ -374,7 +655,7 @@ public class Database
             throw new RuntimeException(e);
         }
 
-        return tags;
+        return lineages;
     }
 
     /**
@@ -413,6 +694,32 @@ public class Database
         return lineage;
     }
 
+    /**
+     * Fetches every tag in a particular <code>ManagedFolder</code> with the ID of its parent.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return a list of all tags in no particular order
+     */
+    public static Vector<TagIndex.Entry> getTagEntries(String directory)
+    {
+        Vector<TagIndex.Entry> entries = new Vector<>();
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            ResultSet results = statement.executeQuery("SELECT id, name, parent_id FROM Tag LEFT JOIN TagParentage ON id=child_id");
+            while (results.next())
+            {
+                int parentId = results.getInt(3);
+                entries.add(new TagIndex.Entry(results.getInt(1), results.getString(2), results.wasNull() ? -1 : parentId));
+            }
+            statement.close();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return entries;
+    }
+
     //***************************
     // Methods related to files *
     //***************************
@@ -522,7 +829,7 @@ public class Database
                     joins.append("Criteria0 ON id=id0");
                     for (int i = 0; i < searchCriteria.getIncludeAll().size(); i++)
                     {
-                        sql = String.format("CREATE TEMPORARY TABLE Criteria%d AS SELECT DISTINCT file_id as id%d FROM FileTags WHERE tag_id IN (%s)", i, i, searchCriteria.getIncludeAll().get(i).getSubtreeIds());
+                        sql = String.format("CREATE TEMPORARY TABLE Criteria%d AS SELECT DISTINCT file_id as id%d FROM FileTags WHERE tag_id IN (%s)", i, i, searchCriteria.getIncludeAll().get(i));
                         statement.execute(sql);
 
                         if (i > 0)
@@ -613,6 +920,7 @@ public class Database
                     System.out.println("Database.saveFile: Unable to retrieve file ID, tags not inserted");
 
                 statement.close();
+                FileNameRegistry.get(directory).add(fileName);
             }
             catch (SQLException e)
             {
@@ -623,6 +931,220 @@ public class Database
             System.out.println("Database.saveFile: Cannot save file without any tags");
     }
 
+    /**
+     * Saves a batch of files with the same tags to the database in a single transaction.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param files the files to save
+     * @param tags the nodes to associate with every file (cannot be empty)
+     * @return <code>true</code> if the transaction was committed; <code>false</code> otherwise
+     */
+    public static boolean saveFiles(String directory, Collection<FileRecord> files, Vector<TagNode> tags)
+    {
+        if (tags.isEmpty())
+        {
+            System.out.println("Database.saveFiles: Cannot save files without any tags");
+            return false;
+        }
+
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            statement.execute("PRAGMA foreign_keys = ON");
+            statement.close();
+            connection.setAutoCommit(false);
+
+            PreparedStatement fileInsert = connection.prepareStatement("INSERT INTO File(name, created, hash) VALUES(?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
+            PreparedStatement tagInsert = connection.prepareStatement("INSERT INTO FileTags VALUES(?, ?)");
+            try
+            {
+                long now = System.currentTimeMillis() / 1000;
+                for (FileRecord file : files)
+                {
+                    // Convert the file's creation time from milliseconds to seconds since the epoch, or use the current time if it is unknown
+                    fileInsert.setString(1, file.name());
+                    fileInsert.setLong(2, (file.createdMillis() != -1) ? file.createdMillis() / 1000 : now);
+                    fileInsert.setString(3, file.hash());
+                    fileInsert.executeUpdate();
+
+                    ResultSet keys = fileInsert.getGeneratedKeys();
+                    if (!keys.next())
+                        throw new SQLException(String.format("Unable to retrieve file ID for \"%s\"", file.name()));
+                    int fileId = keys.getInt(1);
+                    for (TagNode tag : tags)
+                    {
+                        tagInsert.setInt(1, fileId);
+                        tagInsert.setInt(2, tag.getId());
+                        tagInsert.addBatch();
+                    }
+                }
+                tagInsert.executeBatch();
+                connection.commit();
+
+                Vector<String> names = new Vector<>(files.size());
+                files.forEach(file -> names.add(file.name()));
+                FileNameRegistry.get(directory).addAll(names);
+                return true;
+            }
+            catch (SQLException exception)
+            {
+                connection.rollback();
+                System.out.printf("Database.saveFiles: %s\n", exception.toString());
+                return false;
+            }
+            finally
+            {
+                fileInsert.close();
+                tagInsert.close();
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Finds a file in a particular <code>ManagedFolder</code> with the given content hash.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param hash the hash of the file's contents
+     * @return the name of a file with that hash; <code>null</code> if there is none
+     */
+    public static String getFileWithHash(String directory, String hash)
+    {
+        try (Connection connection = connect(directory))
+        {
+            // Looked up through the FileByHash index
+            PreparedStatement statement = connection.prepareStatement("SELECT name FROM File WHERE hash=? LIMIT 1");
+            statement.setString(1, hash);
+            ResultSet results = statement.executeQuery();
+            String name = results.next() ? results.getString(1) : null;
+            statement.close();
+            return name;
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Fetches a batch of files that have not been hashed yet, in the order they were imported.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param afterId only files with a greater ID will be fetched
+     * @param limit the maximum number of files to fetch
+     * @return a map from each file's ID to its name
+     */
+    public static LinkedHashMap<Integer, String> getUnhashedFiles(String directory, int afterId, int limit)
+    {
+        LinkedHashMap<Integer, String> files = new LinkedHashMap<>();
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            String sql = String.format("SELECT id, name FROM File WHERE hash IS NULL AND id>%d ORDER BY id ASC LIMIT %d", afterId, limit);
+            ResultSet results = statement.executeQuery(sql);
+            while (results.next())
+                files.put(results.getInt(1), results.getString(2));
+            statement.close();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return files;
+    }
+
+    /**
+     * Fetches every file in a particular <code>ManagedFolder</code>, in the order they were imported.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return a map from each file's ID to its name
+     */
+    public static LinkedHashMap<Integer, String> getFileIds(String directory)
+    {
+        LinkedHashMap<Integer, String> files = new LinkedHashMap<>();
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            ResultSet results = statement.executeQuery("SELECT id, name FROM File ORDER BY id ASC");
+            while (results.next())
+                files.put(results.getInt(1), results.getString(2));
+            statement.close();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return files;
+    }
+
+    /**
+     * Fetches the IDs of a set of files in a particular <code>ManagedFolder</code>.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param fileNames the names of the files
+     * @return a map from the name of each file that was found to its ID
+     */
+    public static HashMap<String, Integer> getFileIds(String directory, Collection<String> fileNames)
+    {
+        HashMap<String, Integer> ids = new HashMap<>();
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            connection.setAutoCommit(false);
+
+            // File names are not indexed, so stage them in a temporary table and find every match in one pass over the File table
+            statement.execute("CREATE TEMP TABLE IF NOT EXISTS FileIdNames(name TEXT NOT NULL COLLATE NOCASE)");
+            PreparedStatement insert = connection.prepareStatement("INSERT INTO temp.FileIdNames VALUES(?)");
+            for (String fileName : fileNames)
+            {
+                insert.setString(1, fileName);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+
+            ResultSet results = statement.executeQuery("SELECT id, name FROM File WHERE name IN (SELECT name FROM temp.FileIdNames)");
+            while (results.next())
+                ids.put(results.getString(2), results.getInt(1));
+            statement.execute("DROP TABLE temp.FileIdNames");
+            connection.commit();
+            statement.close();
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+        return ids;
+    }
+
+    /**
+     * Records the content hashes of a batch of files in a single transaction.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param hashes a map from each file's ID to its hash
+     * @return <code>true</code> if the transaction was committed; <code>false</code> otherwise
+     */
+    public static boolean setFileHashes(String directory, Map<Integer, String> hashes)
+    {
+        try (Connection connection = connect(directory))
+        {
+            connection.setAutoCommit(false);
+            PreparedStatement update = connection.prepareStatement("UPDATE File SET hash=? WHERE id=?");
+            for (Map.Entry<Integer, String> hash : hashes.entrySet())
+            {
+                update.setString(1, hash.getValue());
+                update.setInt(2, hash.getKey());
+                update.addBatch();
+            }
+            update.executeBatch();
+            update.close();
+            connection.commit();
+            return true;
+        }
+        catch (SQLException exception)
+        {
+            System.out.printf("Database.setFileHashes: %s\n", exception.toString());
+            return false;
+        }
+    }
+
     /**
      * Creates a new association between a file and <code>TagNode</code>.
      * @param file the name of the file receiving a new association
@@ -659,16 +1181,76 @@ public class Database
             System.out.printf("Database.addFileTag: \"%s\" ID = -1\n", tag.getTag());
     }
 
+    /**
+     * Associates every file in a set with every tag in a set in a single transaction. Associations that already exist are left as they are.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param fileNames the names of the files receiving new associations
+     * @param tags the nodes being associated with
+     * @return <code>true</code> if the transaction was committed; <code>false</code> otherwise
+     */
+    public static boolean addFileTags(String directory, Collection<String> fileNames, Collection<TagNode> tags)
+    {
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            statement.execute("PRAGMA foreign_keys = ON");
+            connection.setAutoCommit(false);
+            try
+            {
+                // File names are not indexed, so stage them in a temporary table and tag every match in one pass over the File table per tag
+                statement.execute("CREATE TEMP TABLE IF NOT EXISTS TaggedFiles(name TEXT NOT NULL COLLATE NOCASE)");
+                PreparedStatement insert = connection.prepareStatement("INSERT INTO temp.TaggedFiles VALUES(?)");
+                for (String fileName : fileNames)
+                {
+                    insert.setString(1, fileName);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                insert.close();
+
+                for (TagNode tag : tags)
+                {
+                    if (tag.getId() != -1)
+                        statement.execute(String.format("INSERT OR IGNORE INTO FileTags SELECT id, %d FROM File WHERE name IN (SELECT name FROM temp.TaggedFiles)", tag.getId()));
+                    else
+                        System.out.printf("Database.addFileTags: \"%s\" ID = -1\n", tag.getTag());
+                }
+                statement.execute("DROP TABLE temp.TaggedFiles");
+                connection.commit();
+                statement.close();
+                return true;
+            }
+            catch (SQLException exception)
+            {
+                connection.rollback();
+                System.out.printf("Database.addFileTags: %s\n", exception.toString());
+                return false;
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Removes an association between a file and <code>TagNode</code>.
      * @param file the name of the file losing an association
      * @param tag the node being disassociated with
      */
-    public static void deleteFileTag(String file, TagNode tag)
+    public static void deleteFileTag(String file, TagNode tag) { deleteFileTag(tag.getDirectory(), file, tag.getId()); }
+
+    /**
+     * Removes an association between a file and a tag. Safe to call from any thread.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param file the name of the file losing an association
+     * @param tagId the ID of the tag being disassociated with
+     */
+    public static void deleteFileTag(String directory, String file, int tagId)
     {
-        if (tag.getId() != -1)
+        if (tagId != -1)
         {
-            try (Connection connection = connect(tag.getDirectory()))
+            try (Connection connection = connect(directory))
             {
                 Statement statement = connection.createStatement();
                 statement.execute("PRAGMA foreign_keys = ON");
@@ -678,7 +1260,7 @@ public class Database
                 if (results.next())
                 {
                     int fileId = results.getInt(1);
-                    sql = String.format("DELETE FROM FileTags WHERE file_id=%d AND tag_id=%d", fileId, tag.getId());
+                    sql = String.format("DELETE FROM FileTags WHERE file_id=%d AND tag_id=%d", fileId, tagId);
                     statement.execute(sql);
                 }
                 else
@@ -695,6 +1277,110 @@ public class Database
             System.out.println("Database.deleteFileTag: Tag ID = -1");
     }
 
+    /**
+     * Moves every file associated with <code>oldTag</code> to <code>newTag</code> in a single transaction. Files already associated with
+     * <code>newTag</code> simply lose their association with <code>oldTag</code>.
+     * @param oldTag the node losing all of its associations
+     * @param newTag the node receiving the associations
+     */
+    public static void retagFiles(TagNode oldTag, TagNode newTag)
+    {
+        if (oldTag.getId() != -1 && newTag.getId() != -1)
+        {
+            try (Connection connection = connect(oldTag.getDirectory()))
+            {
+                Statement statement = connection.createStatement();
+                statement.execute("PRAGMA foreign_keys = ON");
+                connection.setAutoCommit(false);
+
+                // Rows that would collide on the (file_id, tag_id) primary key are skipped by the update and then deleted
+                statement.execute(String.format("UPDATE OR IGNORE FileTags SET tag_id=%d WHERE tag_id=%d", newTag.getId(), oldTag.getId()));
+                statement.execute(String.format("DELETE FROM FileTags WHERE tag_id=%d", oldTag.getId()));
+                connection.commit();
+                statement.close();
+            }
+            catch (SQLException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        else
+            System.out.println("Database.retagFiles: Tag ID = -1");
+    }
+
+    /**
+     * Moves a set of files from <code>oldTag</code> to <code>newTag</code> in a single transaction.
+     * @param files the names of the files to re-tag
+     * @param oldTag the node losing the associations
+     * @param newTag the node receiving the associations
+     */
+    public static void retagFiles(Vector<String> files, TagNode oldTag, TagNode newTag)
+    {
+        if (oldTag.getId() != -1 && newTag.getId() != -1)
+        {
+            try (Connection connection = connect(oldTag.getDirectory()))
+            {
+                Statement statement = connection.createStatement();
+                statement.execute("PRAGMA foreign_keys = ON");
+                connection.setAutoCommit(false);
+
+                // File names are not indexed, so stage them in a temporary table and re-tag every match in one pass over the File table
+                statement.execute("CREATE TEMP TABLE IF NOT EXISTS RetaggedFiles(name TEXT NOT NULL COLLATE NOCASE)");
+                PreparedStatement insert = connection.prepareStatement("INSERT INTO temp.RetaggedFiles VALUES(?)");
+                for (String file : files)
+                {
+                    insert.setString(1, file);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                insert.close();
+
+                // Rows that would collide on the (file_id, tag_id) primary key are skipped by the update and then deleted
+                String fileIds = "SELECT id FROM File WHERE name IN (SELECT name FROM temp.RetaggedFiles)";
+                statement.execute(String.format("UPDATE OR IGNORE FileTags SET tag_id=%d WHERE tag_id=%d AND file_id IN (%s)", newTag.getId(), oldTag.getId(), fileIds));
+                statement.execute(String.format("DELETE FROM FileTags WHERE tag_id=%d AND file_id IN (%s)", oldTag.getId(), fileIds));
+                statement.execute("DROP TABLE temp.RetaggedFiles");
+                statement.close();
+
+                connection.commit();
+            }
+            catch (SQLException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        else
+            System.out.println("Database.retagFiles: Tag ID = -1");
+    }
+
+    /**
+     * Counts the files associated with <code>tag</code>.
+     * @param tag the target node
+     * @return the number of tagged files
+     */
+    public static int getFileCount(TagNode tag)
+    {
+        int count = 0;
+        if (tag.getId() != -1)
+        {
+            try (Connection connection = connect(tag.getDirectory()))
+            {
+                Statement statement = connection.createStatement();
+                ResultSet results = statement.executeQuery(String.format("SELECT file_count FROM Tag WHERE id=%d", tag.getId()));
+                if (results.next())
+                    count = results.getInt(1);
+                statement.close();
+            }
+            catch (SQLException e)
+            {
+                throw new RuntimeException(e);
+            }
+        }
+        else
+            System.out.println("Database.getFileCount: Tag ID = -1");
+        return count;
+    }
+
     /**
      * Fetches files that are associated with <code>tag</code> and nothing else.
      * @param tag the target node
@@ -708,9 +1394,8 @@ public class Database
         {
             try (Connection connection = connect(tag.getDirectory()))
             {
-                String sql = "SELECT name FROM File JOIN FileTags ON id=FileTags.file_id " +
-                        String.format("JOIN (SELECT file_id FROM FileTags WHERE tag_id=%d) as ids ON id=ids.file_id ", tag.getId()) +
-                        "GROUP BY id HAVING count(tag_id)=1";
+                // A file's tag count is maintained by the database, so its only tag can be found through the FileTags index without grouping
+                String sql = String.format("SELECT name FROM File JOIN FileTags ON id=file_id WHERE tag_id=%d AND tag_count=1", tag.getId());
 
                 Statement statement = connection.createStatement();
                 ResultSet results = statement.executeQuery(sql);
@@ -730,54 +1415,246 @@ public class Database
     }
 
     /**
-     * Checks if a file name is already used in a <code>ManagedFolder</code>.
+     * Checks if a file name is already used in a <code>ManagedFolder</code>. The check is made in memory with the folder's
+     * <code>FileNameRegistry</code>, so it is fast enough to call on every keystroke.
      * @param directory the absolute path to a <code>ManagedFolder</code> directory
      * @param fileName the name to search for (case-insensitive)
      * @return <code>true</code> if the file name is in use; <code>false</code> otherwise
      */
-    public static boolean fileExists(String directory, String fileName)
+    public static boolean fileExists(String directory, String fileName) { return FileNameRegistry.get(directory).contains(fileName); }
+
+    public static boolean renameFileInDatabase(String directory, String oldName, String newName)
+    {
+        try (Connection connection = connect(directory))
+        {
+            String sql = String.format("UPDATE File SET name='%s' WHERE name='%s'", newName, oldName);
+            Statement statement = connection.createStatement();
+            statement.execute(sql);
+            statement.close();
+            FileNameRegistry.get(directory).rename(oldName, newName);
+            return true;
+        }
+        catch (SQLException e)
+        {
+            System.out.println("Database.renameFile: Unable to rename file in database");
+            return false;
+        }
+    }
+
+    public static void deleteFileFromDatabase(String directory, String fileName)
+    {
+        try (Connection connection = connect(directory))
+        {
+            Statement statement = connection.createStatement();
+            statement.execute("PRAGMA foreign_keys = ON");
+            statement.execute(String.format("DELETE FROM File WHERE name='%s'", fileName));
+            statement.close();
+            FileNameRegistry.get(directory).remove(fileName);
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes a set of files from the database in a single transaction.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param fileNames the names of the files to delete (case-insensitive)
+     * @return <code>true</code> if the transaction was committed; <code>false</code> otherwise
+     */
+    public static boolean deleteFiles(String directory, Collection<String> fileNames)
     {
-        boolean fileExists = false;
         try (Connection connection = connect(directory))
         {
             Statement statement = connection.createStatement();
-            String sql = String.format("SELECT name FROM File WHERE name='%s'", fileName);
-            ResultSet result = statement.executeQuery(sql);
-            if (result.next())
-                fileExists = true;
+            statement.execute("PRAGMA foreign_keys = ON");
+            connection.setAutoCommit(false);
+            try
+            {
+                // File names are not indexed, so stage them in a temporary table and delete every match in one pass over the File table
+                statement.execute("CREATE TEMP TABLE IF NOT EXISTS DeletedFiles(name TEXT NOT NULL COLLATE NOCASE)");
+                PreparedStatement insert = connection.prepareStatement("INSERT INTO temp.DeletedFiles VALUES(?)");
+                for (String fileName : fileNames)
+                {
+                    insert.setString(1, fileName);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                insert.close();
+
+                statement.execute("DELETE FROM File WHERE name IN (SELECT name FROM temp.DeletedFiles)");
+                statement.execute("DROP TABLE temp.DeletedFiles");
+                connection.commit();
+                statement.close();
+                FileNameRegistry.get(directory).removeAll(fileNames);
+                return true;
+            }
+            catch (SQLException exception)
+            {
+                connection.rollback();
+                System.out.printf("Database.deleteFiles: %s\n", exception.toString());
+                return false;
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //*****************************************
+    // Methods related to watched directories *
+    //*****************************************
+
+    /**
+     * Fetches every watched directory of a <code>ManagedFolder</code>.
+     * @param root the root of the <code>ManagedFolder</code>'s <code>TagNode</code> tree, used to look up each directory's tags
+     * @return a list of watched directories
+     */
+    public static Vector<WatchedDirectory> getWatchedDirectories(TagNode root)
+    {
+        Vector<WatchedDirectory> directories = new Vector<>();
+        HashMap<Integer, Vector<Integer>> tagIds = new HashMap<>();
+        try (Connection connection = connect(root.getDirectory()))
+        {
+            Statement statement = connection.createStatement();
+            ResultSet results = statement.executeQuery("SELECT directory_id, tag_id FROM WatchedDirectoryTags");
+            while (results.next())
+                tagIds.computeIfAbsent(results.getInt(1), id -> new Vector<>()).add(results.getInt(2));
+
+            results = statement.executeQuery("SELECT id, path, rate_limit FROM WatchedDirectory ORDER BY path ASC");
+            while (results.next())
+            {
+                int id = results.getInt(1);
+                Vector<TagNode> tags = new Vector<>();
+                for (int tagId : tagIds.getOrDefault(id, new Vector<>()))
+                {
+                    TagNode tag = root.findNode(getTagLineage(root.getDirectory(), tagId));
+                    if (tag != null)
+                        tags.add(tag);
+                    else
+                        System.out.printf("Database.getWatchedDirectories: Unable to locate tag with ID %d\n", tagId);
+                }
+                directories.add(new WatchedDirectory(id, results.getString(2), tags, results.getInt(3)));
+            }
             statement.close();
         }
-        catch (SQLException exception)
+        catch (SQLException e)
         {
-            System.out.println("Database.fileExists: " + exception.toString());
+            throw new RuntimeException(e);
         }
-        return fileExists;
+        return directories;
     }
 
-    public static boolean renameFileInDatabase(String directory, String oldName, String newName)
+    /**
+     * Finds which of a watched directory's tags can still be applied to files, since they may have been deleted or given children after the
+     * directory's tags were chosen.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param tagIds the IDs of the tags to check
+     * @return the IDs of the tags that still exist and have no children
+     */
+    public static HashSet<Integer> getLeafTagIds(String directory, Collection<Integer> tagIds)
     {
+        HashSet<Integer> leaves = new HashSet<>();
+        if (tagIds.isEmpty())
+            return leaves;
+
+        StringJoiner ids = new StringJoiner(",");
+        tagIds.forEach(id -> ids.add(Integer.toString(id)));
         try (Connection connection = connect(directory))
         {
-            String sql = String.format("UPDATE File SET name='%s' WHERE name='%s'", newName, oldName);
+            String sql = String.format("SELECT id FROM Tag WHERE id IN (%s) AND id NOT IN (SELECT parent_id FROM TagParentage)", ids);
             Statement statement = connection.createStatement();
-            statement.execute(sql);
+            ResultSet results = statement.executeQuery(sql);
+            while (results.next())
+                leaves.add(results.getInt(1));
             statement.close();
-            return true;
         }
         catch (SQLException e)
         {
-            System.out.println("Database.renameFile: Unable to rename file in database");
+            throw new RuntimeException(e);
+        }
+        return leaves;
+    }
+
+    /**
+     * Saves a new watched directory and assigns it the ID given by the database.
+     * @param folder the absolute path to the <code>ManagedFolder</code> directory
+     * @param directory the directory to watch
+     * @return <code>true</code> if saved; <code>false</code> otherwise (such as if the directory is already being watched)
+     */
+    public static boolean addWatchedDirectory(String folder, WatchedDirectory directory)
+    {
+        try (Connection connection = connect(folder))
+        {
+            PreparedStatement insert = connection.prepareStatement("INSERT INTO WatchedDirectory(path, rate_limit) VALUES(?, ?)", Statement.RETURN_GENERATED_KEYS);
+            insert.setString(1, directory.getPath());
+            insert.setInt(2, directory.getRateLimit());
+            insert.executeUpdate();
+            ResultSet keys = insert.getGeneratedKeys();
+            if (keys.next())
+                directory.setId(keys.getInt(1));
+            insert.close();
+        }
+        catch (SQLException exception)
+        {
+            System.out.printf("Database.addWatchedDirectory: %s\n", exception.toString());
             return false;
         }
+        return updateWatchedDirectory(folder, directory);
     }
 
-    public static void deleteFileFromDatabase(String directory, String fileName)
+    /**
+     * Saves the current tags and rate limit of a watched directory.
+     * @param folder the absolute path to the <code>ManagedFolder</code> directory
+     * @param directory the watched directory, which must already be saved
+     * @return <code>true</code> if saved; <code>false</code> otherwise
+     */
+    public static boolean updateWatchedDirectory(String folder, WatchedDirectory directory)
     {
-        try (Connection connection = connect(directory))
+        try (Connection connection = connect(folder))
+        {
+            connection.createStatement().execute("PRAGMA foreign_keys = ON");
+            connection.setAutoCommit(false);
+
+            Statement statement = connection.createStatement();
+            statement.executeUpdate(String.format("UPDATE WatchedDirectory SET rate_limit=%d WHERE id=%d", directory.getRateLimit(), directory.getId()));
+            statement.executeUpdate(String.format("DELETE FROM WatchedDirectoryTags WHERE directory_id=%d", directory.getId()));
+            statement.close();
+
+            PreparedStatement insert = connection.prepareStatement("INSERT INTO WatchedDirectoryTags(directory_id, tag_id) VALUES(?, ?)");
+            for (int tagId : directory.getTagIds())
+            {
+                insert.setInt(1, directory.getId());
+                insert.setInt(2, tagId);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            insert.close();
+
+            connection.commit();
+            return true;
+        }
+        catch (SQLException exception)
+        {
+            System.out.printf("Database.updateWatchedDirectory: %s\n", exception.toString());
+            return false;
+        }
+    }
+
+    /**
+     * Stops tracking a watched directory. The directory itself is not affected.
+     * @param folder the absolute path to the <code>ManagedFolder</code> directory
+     * @param directory the watched directory to delete
+     */
+    public static void deleteWatchedDirectory(String folder, WatchedDirectory directory)
+    {
+        try (Connection connection = connect(folder))
         {
             Statement statement = connection.createStatement();
             statement.execute("PRAGMA foreign_keys = ON");
-            statement.execute(String.format("DELETE FROM File WHERE name='%s'", fileName));
+            statement.execute(String.format("DELETE FROM WatchedDirectory WHERE id=%d", directory.getId()));
             statement.close();
         }
         catch (SQLException e)
@@ -5,10 +5,17 @@
 
 package com.github.marcusschmidt4247.tagit;
 
-import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileNameRegistry;
 import com.github.marcusschmidt4247.tagit.miscellaneous.ManagedFolder;
+import com.github.marcusschmidt4247.tagit.miscellaneous.PageIndexStore;
+import com.github.marcusschmidt4247.tagit.miscellaneous.StorageResolver;
 import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
+import com.github.marcusschmidt4247.tagit.miscellaneous.ThumbnailStore;
 import com.github.marcusschmidt4247.tagit.models.ManagedFoldersModel;
+import com.github.marcusschmidt4247.tagit.tasks.DeleteFilesTask;
+import com.github.marcusschmidt4247.tagit.tasks.FolderWatcher;
+import com.github.marcusschmidt4247.tagit.tasks.RelocationTask;
+import javafx.concurrent.Worker;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonBar;
@@ -16,8 +23,10 @@ import javafx.scene.control.ButtonType;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.FileSystems;
-import java.nio.file.Files;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.EnumSet;
 import java.util.Vector;
 
 public class IOManager
@@ -207,7 +216,15 @@ public class IOManager
      * @param filename the name of the file
      * @return an absolute file path
      */
-    public static String getFilePath(String directory, String filename) { return formatPath(directory, STORAGE_DIRECTORY_NAME, filename); }
+    public static String getFilePath(String directory, String filename) { return StorageResolver.resolve(directory, filename); }
+
+    /**
+     * Constructs the path to a <code>ManagedFolder</code>'s storage subdirectory. Files should be located with <code>getFilePath()</code>,
+     * since they may be in subdirectories of storage.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return an absolute directory path
+     */
+    public static String getStorageDirectory(String directory) { return formatPath(directory, STORAGE_DIRECTORY_NAME); }
 
     /**
      * Searches a string for characters that are not allowed.
@@ -244,7 +261,7 @@ public class IOManager
 
         // Before deleting this tag, check whether there are any files that will be left untagged without it
         boolean proceed = false;
-        Vector<String> orphanedFiles = Database.getUniqueFiles(tag);
+        Vector<String> orphanedFiles = (Database.getFileCount(tag) > 0) ? Database.getUniqueFiles(tag) : new Vector<>();
         if (orphanedFiles.isEmpty())
             proceed = true;
         else
@@ -268,8 +285,8 @@ public class IOManager
 
             if (warning.getResult() == deleteButton)
             {
-                orphanedFiles.forEach(orphan -> deleteFile(tag.getDirectory(), orphan));
-                proceed = true;
+                // Only continue deleting the tag if every orphaned file was deleted
+                proceed = deleteFiles(tag.getDirectory(), orphanedFiles);
             }
             else if (warning.getResult() == newTagButton)
             {
@@ -277,11 +294,7 @@ public class IOManager
                 TagNode selection = WindowManager.selectTag(tag.getRoot(), tag);
                 if (selection != null)
                 {
-                    for (String orphan : orphanedFiles)
-                    {
-                        Database.deleteFileTag(orphan, tag);
-                        Database.addFileTag(orphan, selection);
-                    }
+                    Database.retagFiles(orphanedFiles, tag, selection);
                     proceed = true;
                 }
             }
@@ -298,32 +311,9 @@ public class IOManager
     }
 
     /**
-     * Fetches all files in a directory that have a supported file extension. Should not be used on a <code>ManagedFolder</code> directory.
-     * @param PATH the absolute path to a file directory
-     * @return an array of file names; <code>null</code> if path is invalid or directory does not permit its files to be read
-     */
-    public static File[] getFilesInDir(final String PATH)
-    {
-        File directory = new File(PATH);
-        if (directory.isDirectory())
-        {
-            try { return directory.listFiles((dir, name) -> FileTypes.isSupported(name)); }
-            catch (SecurityException exception)
-            {
-                System.out.printf("Database.getFilesInDir: Does not have permission to read files in directory \"%s\"", PATH);
-                return null;
-            }
-        }
-        else
-        {
-            System.out.printf("Database.getFilesInDir: Path \"%s\" does not lead to a valid directory", PATH);
-            return null;
-        }
-    }
-
-    /**
-     * Moves a <code>ManagedFolder</code> directory to the location in <code>delta</code>. The database entry and <code>folder</code>
-     * object will not be changed.
+     * Moves a <code>ManagedFolder</code> directory to the location in <code>delta</code>. The progress is shown in a modal window that
+     * allows the user to cancel, and a move that fails or is cancelled is rolled back. The <code>folder</code> object will not be changed,
+     * but its new location is saved to the database once every file has been moved.
      * <p/>
      * If <code>delta</code> contains a name, this method can also be used to rename the <code>ManagedFolder</code> directory.
      * @param folder the target to move its directory and files
@@ -335,65 +325,85 @@ public class IOManager
         // Check that the new directory path isn't already in use
         String targetLocation = (delta.getLocation() == null) ? folder.getLocation() : delta.getLocation();
         String targetName = (delta.getName() == null) ? folder.getName() : delta.getName();
-        String targetPath = formatPath(targetLocation, targetName);
-        File target = new File(targetPath);
+        File target = new File(formatPath(targetLocation, targetName));
         if (!target.exists())
         {
-            // Create the new directory
-            if (target.mkdir())
+            // Close the thumbnail pack so that it can be moved with the rest of the folder
+            ThumbnailStore.invalidate(folder.getFullPath());
+            PageIndexStore.invalidate(folder.getFullPath());
+            RelocationTask task = new RelocationTask(folder.getId(), folder.getFullPath(), targetLocation, targetName);
+            WindowManager.runWithProgress("Move Folder", task);
+            StorageResolver.invalidate(folder.getFullPath());
+            FileNameRegistry.invalidate(folder.getFullPath());
+
+            if (task.getState() == Worker.State.SUCCEEDED && task.getFailures().isEmpty())
+                return true;
+            else if (task.getState() == Worker.State.FAILED)
+                System.out.printf("IOManager.moveManagedFolder: %s\n", task.getException().toString());
+            for (String failure : task.getFailures())
+                System.out.printf("IOManager.moveManagedFolder: Unable to copy %s\n", failure);
+        }
+        else
+            System.out.printf("IOManager.moveManagedFolder: Destination directory \"%s\" already exists\n", target.getAbsolutePath());
+
+        return false;
+    }
+
+    /**
+     * Finishes or rolls back any <code>ManagedFolder</code> moves that were interrupted the last time the application ran. A move that
+     * has already saved the folder's new location is finished; otherwise, the user chooses whether to resume it.
+     * <p/>
+     * This method should be called after the root directory has been verified and before any folders are opened.
+     */
+    public static void resumeRelocations()
+    {
+        for (RelocationTask task : RelocationTask.getInterrupted())
+        {
+            ManagedFolder folder = null;
+            for (ManagedFolder managedFolder : getManagedFoldersModel().getManagedFolders())
+            {
+                if (managedFolder.getId() == task.getFolderId())
+                    folder = managedFolder;
+            }
+
+            // A folder that was deleted in the meantime has nothing to resume, so the move is rolled back to remove what it had copied
+            boolean resume = folder != null;
+            if (resume && !task.isCommitted(folder.getFullPath()))
+            {
+                Alert alert = new Alert(Alert.AlertType.WARNING);
+                alert.setTitle("Interrupted Move");
+                alert.setHeaderText(String.format("Moving the folder \"%s\" to \"%s\" was interrupted.", folder.getName(), formatPath(task.getTargetLocation(), task.getTargetName())));
+                alert.setContentText("The move can be resumed from where it stopped, or rolled back to leave the folder where it was.");
+                alert.getButtonTypes().removeFirst();
+                ButtonType rollBackButton = new ButtonType("Roll Back", ButtonBar.ButtonData.RIGHT);
+                alert.getButtonTypes().add(rollBackButton);
+                ButtonType resumeButton = new ButtonType("Resume", ButtonBar.ButtonData.RIGHT);
+                alert.getButtonTypes().add(resumeButton);
+                ((Button) alert.getDialogPane().lookupButton(resumeButton)).setDefaultButton(true);
+                alert.showAndWait();
+                resume = alert.getResult() == resumeButton;
+            }
+            task.setRollBack(!resume);
+
+            WindowManager.runWithProgress("Move Folder", task);
+            if (task.getState() == Worker.State.SUCCEEDED && task.getFailures().isEmpty())
             {
-                // Create the new storage subdirectory
-                File storage = new File(formatPath(targetPath, STORAGE_DIRECTORY_NAME));
-                if (storage.mkdir())
+                // The task saved the new location to the database, so only the object needs to be updated
+                if (resume)
                 {
-                    try
-                    {
-                        // Move every file in the original directory to the new one
-                        File source = new File(folder.getFullPath());
-                        File[] sourceFiles = source.listFiles();
-                        if (sourceFiles != null)
-                        {
-                            for (File file : sourceFiles)
-                            {
-                                if (file.isFile())
-                                    Files.move(file.toPath(), target.toPath().resolve(file.getName()));
-                            }
-                        }
-
-                        // Move every file in the original storage subdirectory to the new one
-                        File sourceStorage = new File(formatPath(folder.getFullPath(), STORAGE_DIRECTORY_NAME));
-                        sourceFiles = sourceStorage.listFiles();
-                        if (sourceFiles != null)
-                        {
-                            for (File file : sourceFiles)
-                                Files.move(file.toPath(), storage.toPath().resolve(file.getName()));
-                        }
-
-                        // Delete the old storage subdirectory
-                        if (!sourceStorage.delete())
-                            System.out.println("IOManager.moveManagedFolder: Unable to delete original storage directory");
-
-                        // Delete the old directory
-                        if (!source.delete())
-                            System.out.println("IOManager.moveManagedFolder: Unable to delete original directory");
-
-                        return true;
-                    }
-                    catch (IOException e)
-                    {
-                        throw new RuntimeException(e);
-                    }
+                    ManagedFolder delta = new ManagedFolder();
+                    delta.setName(task.getTargetName());
+                    delta.setLocation(task.getTargetLocation());
+                    StorageResolver.invalidate(folder.getFullPath());
+                    FileNameRegistry.invalidate(folder.getFullPath());
+                    ThumbnailStore.invalidate(folder.getFullPath());
+                    PageIndexStore.invalidate(folder.getFullPath());
+                    folder.set(delta);
                 }
-                else
-                    System.out.printf("IOManager.moveManagedFolder: Failed to create storage directory \"%s\"\n", storage.getAbsolutePath());
             }
             else
-                System.out.printf("IOManager.moveManagedFolder: Failed to create directory \"%s\"\n", target.getAbsolutePath());
+                WindowManager.showError(String.format("Unable to finish moving folder to \"%s\"", formatPath(task.getTargetLocation(), task.getTargetName())), task.getFailures());
         }
-        else
-            System.out.printf("IOManager.moveManagedFolder: Destination directory \"%s\" already exists\n", target.getAbsolutePath());
-
-        return false;
     }
 
     /**
@@ -409,19 +419,27 @@ public class IOManager
         String description = "This will also delete all files and tags managed by this folder. This action cannot be reversed.";
         if (WindowManager.confirmationDialog("Delete Folder", header, description))
         {
-            // Delete all the files in the storage subdirectory
+            // Stop importing files into the folder before deleting it
+            FolderWatcher.stop(folder.getFullPath());
+
+            // Delete all the files in the storage subdirectory (their records don't need to be removed because the database will be deleted too)
             File storage = new File(formatPath(folder.getFullPath(), STORAGE_DIRECTORY_NAME));
-            File[] storageFiles = storage.listFiles();
-            if (storageFiles != null)
+            Vector<String> storageFiles = listStorage(storage.toPath());
+            if (!storageFiles.isEmpty())
             {
-                for (File file : storageFiles)
+                DeleteFilesTask task = new DeleteFilesTask(folder.getFullPath(), storageFiles, false);
+                WindowManager.runWithProgress("Delete Folder", task);
+                if (task.getState() != Worker.State.SUCCEEDED || !task.getFailures().isEmpty())
                 {
-                    if (!file.delete())
-                        System.out.printf("IOManager.deleteManagedFolder: Unable to delete file \"%s\"\n", file.getName());
+                    if (!task.isCancelled())
+                        WindowManager.showError(String.format("Unable to delete %d files, so the folder was not deleted", task.getFailures().size()));
+                    return false;
                 }
             }
 
-            // Delete all the files in the folder directory
+            // Delete all the files in the folder directory, closing the thumbnail pack first so that it can be deleted
+            ThumbnailStore.invalidate(folder.getFullPath());
+            PageIndexStore.invalidate(folder.getFullPath());
             File directory = new File(folder.getFullPath());
             File[] files = directory.listFiles();
             if (files != null)
@@ -436,7 +454,8 @@ public class IOManager
                 }
             }
 
-            // Delete the storage subdirectory
+            // Delete the shard subdirectories and then the storage subdirectory
+            deleteEmptyDirectories(storage.toPath());
             if (!storage.delete())
                 System.out.println("IOManager.deleteManagedFolder: Unable to delete storage directory");
 
@@ -444,6 +463,10 @@ public class IOManager
             if (!directory.delete())
                 System.out.println("IOManager.deleteManagedFolder: Unable to delete directory");
 
+            // Forget the folder's cached state, since a new folder could be created at the same path
+            StorageResolver.invalidate(folder.getFullPath());
+            FileNameRegistry.invalidate(folder.getFullPath());
+
             // Delete the ManagedFolder object and remove it from the database
             getManagedFoldersModel().deleteFolder(folder);
 
@@ -467,9 +490,12 @@ public class IOManager
         File target = new File(targetPath);
         if (newName.equalsIgnoreCase(oldName) || !target.exists())
         {
-            // If not, rename the actual file
+            // If not, rename the actual file (in a sharded folder, the new name may belong in a subdirectory that doesn't exist yet)
             String oldPath = getFilePath(directory, oldName);
             File file = new File(oldPath);
+            File parent = target.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs())
+                System.out.printf("IOManager.renameFile: Unable to create storage subdirectory \"%s\"\n", parent.getAbsolutePath());
             if (file.renameTo(target))
             {
                 // Then rename the file in the database
@@ -491,6 +517,36 @@ public class IOManager
         return false;
     }
 
+    /**
+     * Deletes files from device storage and then removes the deleted files from the database in a single transaction. The progress is shown
+     * in a modal window that allows the user to cancel, and the user is warned about any files that could not be deleted.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param fileNames the names of the files
+     * @return <code>true</code> if every file was deleted; <code>false</code> otherwise
+     */
+    public static boolean deleteFiles(String directory, Collection<String> fileNames)
+    {
+        if (fileNames.isEmpty())
+            return true;
+
+        DeleteFilesTask task = new DeleteFilesTask(directory, fileNames, true);
+        WindowManager.runWithProgress("Delete Files", task);
+
+        if (task.isCancelled())
+            return false;
+        else if (task.getState() != Worker.State.SUCCEEDED)
+        {
+            WindowManager.showError("Unable to delete files");
+            return false;
+        }
+        else if (!task.getFailures().isEmpty())
+        {
+            WindowManager.showError(String.format("Unable to delete %d of %d files", task.getFailures().size(), fileNames.size()));
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Deletes a file from device storage and the database.
      * @param directory the absolute path to the directory
@@ -506,4 +562,50 @@ public class IOManager
         // Delete the file's information from the database
         Database.deleteFileFromDatabase(directory, fileName);
     }
+
+    // Return the name of every file in a storage directory, including the ones in shard subdirectories
+    private static Vector<String> listStorage(Path storage)
+    {
+        Vector<String> names = new Vector<>();
+        try
+        {
+            Files.walkFileTree(storage, EnumSet.noneOf(FileVisitOption.class), 3, new SimpleFileVisitor<>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                {
+                    if (attributes.isRegularFile())
+                        names.add(file.getFileName().toString());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("IOManager.listStorage: %s\n", exception.toString());
+        }
+        return names;
+    }
+
+    // Delete every empty subdirectory of a directory, deepest first
+    private static void deleteEmptyDirectories(Path directory)
+    {
+        try
+        {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>()
+            {
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exception)
+                {
+                    if (!dir.equals(directory) && !dir.toFile().delete())
+                        System.out.printf("IOManager.deleteEmptyDirectories: Unable to delete \"%s\"\n", dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("IOManager.deleteEmptyDirectories: %s\n", exception.toString());
+        }
+    }
 }
@@ -17,12 +17,17 @@
 
 package com.github.marcusschmidt4247.tagit;
 
+import com.github.marcusschmidt4247.tagit.gui.ImageCache;
+import com.github.marcusschmidt4247.tagit.gui.MediaControlView;
 import com.github.marcusschmidt4247.tagit.miscellaneous.ManagedFolder;
 import javafx.application.Application;
 import javafx.stage.Stage;
 
 public class TaggerApplication extends Application
 {
+    // Run with -Dtagit.statistics=true to print how well media was cached when the application exits
+    private static final boolean PRINT_STATISTICS = Boolean.getBoolean("tagit.statistics");
+
     private static String rootDirectory = null;
 
     @Override
@@ -31,6 +36,9 @@ public class TaggerApplication extends Application
         // Verify the root directory
         if (IOManager.verify(rootDirectory))
         {
+            // Deal with any folder moves that were interrupted before opening a folder that might be in the middle of one
+            IOManager.resumeRelocations();
+
             // If there aren't any managed folders, attempt to create, verify, and open the default folder
             if (IOManager.getManagedFoldersModel().getManagedFolders().isEmpty())
             {
@@ -61,6 +69,16 @@ public class TaggerApplication extends Application
         }
     }
 
+    @Override
+    public void stop()
+    {
+        if (PRINT_STATISTICS)
+        {
+            System.out.printf("TaggerApplication.stop: Image cache had %s\n", ImageCache.getStatistics());
+            System.out.printf("TaggerApplication.stop: Videos had %s\n", MediaControlView.getStatistics());
+        }
+    }
+
     public static void main(String[] args)
     {
         if (args.length > 0)
@@ -7,18 +7,28 @@ package com.github.marcusschmidt4247.tagit;
 
 import com.github.marcusschmidt4247.tagit.controllers.*;
 import com.github.marcusschmidt4247.tagit.miscellaneous.ManagedFolder;
+import com.github.marcusschmidt4247.tagit.miscellaneous.StorageResolver;
 import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
+import com.github.marcusschmidt4247.tagit.tasks.HashBacklogTask;
+import com.github.marcusschmidt4247.tagit.tasks.ReconcileTask;
+import com.github.marcusschmidt4247.tagit.tasks.StorageMigrationTask;
+import com.github.marcusschmidt4247.tagit.tasks.ThumbnailTask;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.ButtonBar;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.TextArea;
 import javafx.scene.input.KeyEvent;
 import javafx.stage.Modality;
 import javafx.stage.Stage;
 import javafx.stage.Window;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Vector;
 
 public class WindowManager
 {
@@ -66,6 +76,62 @@ public class WindowManager
         alert.showAndWait();
     }
 
+    /**
+     * Warns user that something went wrong with a list of details that can be expanded. Must be acknowledged before returning to caller.
+     * @param message a short description of what went wrong
+     * @param details the individual problems (e.g. one line per file)
+     */
+    public static void showError(String message, Collection<String> details)
+    {
+        Alert alert = new Alert(Alert.AlertType.ERROR);
+        alert.setHeaderText(message);
+        TextArea textArea = new TextArea(String.join("\n", details));
+        textArea.setEditable(false);
+        textArea.setPrefRowCount(12);
+        alert.getDialogPane().setExpandableContent(textArea);
+        alert.showAndWait();
+    }
+
+    /**
+     * Runs a task on a background thread while showing its progress in an application modal window. The user can cancel the task from the
+     * window, which stays open until the task has finished running.
+     * @param title the name of the window
+     * @param task the work to run
+     */
+    public static void runWithProgress(String title, Task<?> task)
+    {
+        try
+        {
+            FXMLLoader fxmlLoader = new FXMLLoader(WindowManager.class.getResource("progress-view.fxml"));
+            Scene scene = new Scene(fxmlLoader.load());
+            ((ProgressController) fxmlLoader.getController()).setTask(task);
+            Stage stage = new Stage();
+            stage.initModality(Modality.APPLICATION_MODAL);
+            stage.setResizable(false);
+            stage.setTitle(title);
+            stage.setScene(scene);
+            // Closing the window cancels the task instead, and the window is closed once the task returns
+            stage.setOnCloseRequest(event ->
+            {
+                task.cancel();
+                event.consume();
+            });
+
+            Thread thread = new Thread(() ->
+            {
+                task.run();
+                Platform.runLater(stage::hide);
+            });
+            thread.setDaemon(true);
+            thread.start();
+            stage.showAndWait();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Creates a new instance of the primary window into this folder.
      * @param folder the target to access
@@ -79,6 +145,15 @@ public class WindowManager
      */
     public static void openFolder(ManagedFolder folder, Stage stage)
     {
+        // Finish converting the folder's storage if the conversion was interrupted
+        if (StorageResolver.getLayout(folder.getFullPath()) == StorageResolver.Layout.MIGRATING)
+        {
+            StorageMigrationTask task = new StorageMigrationTask(folder.getFullPath());
+            runWithProgress("Resume Storage Conversion", task);
+            if (!task.getFailures().isEmpty())
+                showError(String.format("Unable to move %d files", task.getFailures().size()), task.getFailures());
+        }
+
         try
         {
             FXMLLoader fxmlLoader = new FXMLLoader(WindowManager.class.getResource("tagger-view.fxml"));
@@ -90,6 +165,11 @@ public class WindowManager
             stage.titleProperty().bind(folder.nameProperty());
             stage.setScene(scene);
             stage.show();
+
+            // Hash any files that were imported before content hashes were recorded
+            HashBacklogTask.start(folder.getFullPath());
+            // Generate thumbnails for any images that don't have one yet
+            ThumbnailTask.start(folder.getFullPath());
         }
         catch (IOException e)
         {
@@ -217,6 +297,89 @@ public class WindowManager
         }
     }
 
+    /**
+     * Asks user to select any number of leaf nodes in a <code>TagNode</code> tree. The selection window is application modal.
+     * @param treeRoot the root node of the <code>TagNode</code> tree
+     * @param preselectedTags the nodes that will be selected by default
+     * @return the user's selections; <code>null</code> if cancelled
+     */
+    public static Vector<TagNode> selectTags(TagNode treeRoot, Vector<TagNode> preselectedTags)
+    {
+        try
+        {
+            FXMLLoader fxmlLoader = new FXMLLoader(WindowManager.class.getResource("tag-selector-view.fxml"));
+            Scene scene = new Scene(fxmlLoader.load());
+            TagSelectorController controller = fxmlLoader.getController();
+            controller.setTagNodes(treeRoot, preselectedTags);
+            Stage stage = new Stage();
+            stage.initModality(Modality.APPLICATION_MODAL);
+            stage.setTitle("Tag Selector");
+            stage.setMinWidth(200);
+            stage.setMinHeight(200);
+            stage.setScene(scene);
+            stage.showAndWait();
+            return controller.getSelections();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates window to manage the directories that a <code>ManagedFolder</code> automatically imports files from.
+     * @param owner the parent window
+     * @param root the root of the <code>ManagedFolder</code>'s <code>TagNode</code> tree
+     */
+    public static void openWatchedDirectories(Window owner, TagNode root)
+    {
+        try
+        {
+            FXMLLoader fxmlLoader = new FXMLLoader(WindowManager.class.getResource("watched-directories-view.fxml"));
+            Scene scene = new Scene(fxmlLoader.load());
+            ((WatchedDirectoriesController) fxmlLoader.getController()).setRoot(root);
+            Stage stage = new Stage();
+            stage.initOwner(owner);
+            stage.setMinWidth(600);
+            stage.setMinHeight(300);
+            stage.setTitle("Watched Directories");
+            stage.setScene(scene);
+            stage.show();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates window listing the disagreements that a <code>ReconcileTask</code> found between a <code>ManagedFolder</code>'s storage
+     * directory and database, with actions to repair them.
+     * @param owner the parent window
+     * @param root the root of the <code>ManagedFolder</code>'s <code>TagNode</code> tree
+     * @param task a finished task
+     */
+    public static void openReconciler(Window owner, TagNode root, ReconcileTask task)
+    {
+        try
+        {
+            FXMLLoader fxmlLoader = new FXMLLoader(WindowManager.class.getResource("reconcile-view.fxml"));
+            Scene scene = new Scene(fxmlLoader.load());
+            ((ReconcileController) fxmlLoader.getController()).setTask(root, task);
+            Stage stage = new Stage();
+            stage.initOwner(owner);
+            stage.setMinWidth(600);
+            stage.setMinHeight(300);
+            stage.setTitle(String.format("Storage Problems (%d)", task.getProblems().size()));
+            stage.setScene(scene);
+            stage.show();
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Creates window with form to edit a <code>TagNode</code> object.
      * @param owner the parent window
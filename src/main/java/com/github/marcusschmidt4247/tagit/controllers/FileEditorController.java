@@ -11,6 +11,7 @@ import com.github.marcusschmidt4247.tagit.WindowManager;
 import com.github.marcusschmidt4247.tagit.gui.DynamicCheckTreeView;
 import com.github.marcusschmidt4247.tagit.gui.MultiMediaView;
 import com.github.marcusschmidt4247.tagit.gui.NameInputDialog;
+import com.github.marcusschmidt4247.tagit.gui.TagSearchField;
 import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
 import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
 import javafx.collections.ListChangeListener;
@@ -27,6 +28,7 @@ public class FileEditorController
     @FXML TextField nameField;
     @FXML MultiMediaView mediaView;
     @FXML DynamicCheckTreeView tagTreeView;
+    @FXML TagSearchField tagSearchField;
     @FXML Button deselectButton;
     @FXML Button deleteButton;
     @FXML Button cancelButton;
@@ -62,10 +64,12 @@ public class FileEditorController
 
             // Initialize the media viewer and display this file
             mediaView.init(true);
+            mediaView.setDirectory(directory);
             mediaView.load(new File(IOManager.getFilePath(directory, file)));
 
             // Initialize the tree and check all this file's tags
             tagTreeView.init(root, DynamicCheckTreeView.Mode.LEAF_CHECK);
+            tagSearchField.init(root, tagTreeView);
             Vector<TagNode> tags = Database.getFileTags(root, file);
             initTagSize = tags.size();
             tagTreeView.checkItems(tags, true);
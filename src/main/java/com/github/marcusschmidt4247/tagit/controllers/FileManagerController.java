@@ -9,6 +9,7 @@ import com.github.marcusschmidt4247.tagit.Database;
 import com.github.marcusschmidt4247.tagit.IOManager;
 import com.github.marcusschmidt4247.tagit.WindowManager;
 import com.github.marcusschmidt4247.tagit.models.TaggerModel;
+import com.github.marcusschmidt4247.tagit.tasks.AsyncScheduler;
 import javafx.beans.binding.Bindings;
 import javafx.beans.property.Property;
 import javafx.beans.property.SimpleObjectProperty;
@@ -48,7 +49,7 @@ public class FileManagerController
         else
         {
             this.model = model;
-            files.setAll(Database.getFiles(model.getPath()));
+            AsyncScheduler.deliver(AsyncScheduler.read(model.getPath(), () -> Database.getFiles(model.getPath())), files::setAll);
         }
     }
 
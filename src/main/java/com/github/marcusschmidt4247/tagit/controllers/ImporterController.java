@@ -11,11 +11,15 @@ import com.github.marcusschmidt4247.tagit.WindowManager;
 import com.github.marcusschmidt4247.tagit.gui.DynamicCheckTreeView;
 import com.github.marcusschmidt4247.tagit.gui.MultiMediaView;
 import com.github.marcusschmidt4247.tagit.gui.NameInputDialog;
+import com.github.marcusschmidt4247.tagit.gui.TagSearchField;
 import com.github.marcusschmidt4247.tagit.gui.TreeViewMenuHandler;
 import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
 import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
 import com.github.marcusschmidt4247.tagit.models.ImporterModel;
 import com.github.marcusschmidt4247.tagit.models.TaggerModel;
+import com.github.marcusschmidt4247.tagit.tasks.DirectoryScanTask;
+import com.github.marcusschmidt4247.tagit.tasks.FileTransfer;
+import com.github.marcusschmidt4247.tagit.tasks.ImportTask;
 import javafx.collections.ListChangeListener;
 import javafx.css.PseudoClass;
 import javafx.fxml.FXML;
@@ -24,34 +28,45 @@ import javafx.stage.DirectoryChooser;
 
 import java.io.*;
 import java.nio.file.*;
-import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
 import java.util.Vector;
 
 public class ImporterController
 {
     @FXML private MultiMediaView mediaView;
     @FXML private DynamicCheckTreeView tagTreeView;
+    @FXML private TagSearchField tagSearchField;
 
     @FXML private TextField fileNameField;
     private final PseudoClass errorClass = PseudoClass.getPseudoClass("error"); // CSS style class
 
     @FXML private Label directoryLabel;
+    @FXML private CheckBox subfoldersCheckBox;
     @FXML private Label tagLabel;
 
     @FXML private Button deselectButton;
     @FXML private Button prevButton;
     @FXML private Button nextButton;
     @FXML private Button importButton;
-    @FXML private CheckBox copyCheckBox;
+    @FXML private Button importAllButton;
+    @FXML private ChoiceBox<String> transferChoiceBox;
 
     private TaggerModel taggerModel;
     private ImporterModel importerModel;
 
+    private DirectoryScanTask scanTask = null;
+    private File displayedFile = null;
+
     public void initialize()
     {
         importerModel = new ImporterModel();
 
+        // Populate the transfer mode ChoiceBox and default to copying files
+        for (FileTransfer.Mode mode : FileTransfer.Mode.values())
+            transferChoiceBox.getItems().add(mode.description);
+        transferChoiceBox.getSelectionModel().select(0);
+
         importerModel.getFiles().addListener((ListChangeListener<File>) change ->
         {
             if (importerModel.getFiles() == null || importerModel.getFiles().isEmpty())
@@ -78,27 +93,16 @@ public class ImporterController
                     importerModel.importIndex = 0;
             }
 
-            refreshContentPane();
-        });
-
-        importerModel.getPath().addListener((observableValue, s, t1) ->
-        {
-            directoryLabel.setText("Importing from: " + importerModel.getPath().getValue());
-            importerModel.importIndex = 0;
+            updateImportAllButton();
 
-            // Attempt to set importFiles to hold the files contained in the directory pointed to by IMPORT_PATH
-            importerModel.getFiles().clear();
-            if (!importerModel.getPath().getValue().isEmpty())
-            {
-                File[] files = IOManager.getFilesInDir(importerModel.getPath().getValue());
-                // Adding new files will refresh the content pane, but it also needs to be refreshed even if there aren't any
-                if (files != null && files.length > 0)
-                    importerModel.getFiles().addAll(Arrays.asList(files));
-                else
-                    refreshContentPane();
-            }
+            // Files are added in chunks while a directory is being scanned, so only reload the content pane if the current file changed
+            if (!Objects.equals(displayedFile, getCurrentFile()))
+                refreshContentPane();
         });
 
+        importerModel.getPath().addListener((observableValue, s, t1) -> scanDirectory());
+        subfoldersCheckBox.selectedProperty().addListener((observableValue, aBoolean, t1) -> scanDirectory());
+
         // When the file name changes, check if it's a valid name and assign the CSS error style class if not
         fileNameField.textProperty().addListener((observableValue, s, t1) ->
         {
@@ -117,6 +121,7 @@ public class ImporterController
 
             // Initialize and add a listener to the (currently empty) list of checked items
             tagTreeView.init(taggerModel.getTreeRoot(), DynamicCheckTreeView.Mode.LEAF_CHECK);
+            tagSearchField.init(taggerModel.getTreeRoot(), tagTreeView);
             tagTreeView.getCheckModel().getCheckedItems().addListener((ListChangeListener<TreeItem<String>>) change ->
             {
                 Vector<TreeItem<String>> added = new Vector<>();
@@ -161,6 +166,7 @@ public class ImporterController
                 // Update the import button state (should be enabled if there is at least one file to import and one tag applied to it)
                 if (importButton.isDisabled() != (importerModel.getAppliedTags().isEmpty() || importerModel.getFiles().isEmpty()))
                     importButton.setDisable(!importButton.isDisabled());
+                updateImportAllButton();
 
                 // Update the label that lists the tags the current file will receive when it is imported
                 StringBuilder stringBuilder = new StringBuilder("This file's tags: ");
@@ -252,16 +258,36 @@ public class ImporterController
                 // Attempt to import the file to the current managed directory with the name in the TextField
                 Path source = Path.of(importerModel.getFiles().get(importerModel.importIndex).getAbsolutePath());
                 Path target = Path.of(IOManager.getFilePath(taggerModel.getPath(), fileNameField.getText()));
-                importFile(source, target, copyCheckBox.isSelected());
+                importFile(source, target, getTransferMode());
             }
         }
     }
 
+    @FXML
+    public void onImportAllButton()
+    {
+        if (importerModel.getFiles() == null || importerModel.getFiles().isEmpty() || importerModel.getAppliedTags().isEmpty())
+            return;
+
+        String header = String.format("Import %d files with the applied tags?", importerModel.getFiles().size());
+        String description = "Every file will keep its current name. Files that cannot be imported will be skipped and listed afterwards.";
+        if (WindowManager.customConfirmationDialog("Import All", header, description, "Import"))
+        {
+            ImportTask task = new ImportTask(taggerModel.getPath(), importerModel.getFiles(), importerModel.getAppliedTags(), getTransferMode());
+            WindowManager.runWithProgress("Import Files", task);
+
+            // Remove every imported file from the list at once so the content pane is only refreshed one time
+            importerModel.getFiles().removeAll(new HashSet<>(task.getImported()));
+            if (!task.getConflicts().isEmpty())
+                WindowManager.showError(String.format("%d files were not imported", task.getConflicts().size()), task.getConflicts());
+        }
+    }
+
     //******************
     // Private methods *
     //******************
 
-    private void importFile(Path source, Path target, boolean copy)
+    private void importFile(Path source, Path target, FileTransfer.Mode mode)
     {
         String name = target.getFileName().toString();
 
@@ -275,7 +301,7 @@ public class ImporterController
                 String description = "The file name must end with a valid extension. Reapply original file extension?";
                 String buttonString = String.format("Use %s", originalExtension);
                 if (originalExtension != null && WindowManager.customConfirmationDialog("Error", "Missing file extension", description, buttonString))
-                    importFile(source, Path.of(IOManager.getFilePath(taggerModel.getPath(), name.concat(originalExtension))), copy);
+                    importFile(source, Path.of(IOManager.getFilePath(taggerModel.getPath(), name.concat(originalExtension))), mode);
             }
             // If it's unsupported, alert the user
             else
@@ -290,55 +316,104 @@ public class ImporterController
                 // If the user chose to rename the file, open a text input dialog and import the file with the new name
                 NameInputDialog dialog = new NameInputDialog(name);
                 if (dialog.showAndLoop())
-                    importFile(source, Path.of(IOManager.getFilePath(taggerModel.getPath(), dialog.getName())), copy);
+                    importFile(source, Path.of(IOManager.getFilePath(taggerModel.getPath(), dialog.getName())), mode);
+            }
+        }
+        // If a file with this name already exists in the storage directory, alert the user and give them the option to overwrite it
+        else if (Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+        {
+            String description = String.format("A file not tracked by the \"%s\" folder exists in its storage directory with this name. Replace it with the new file?", taggerModel.getFolder().getName());
+            if (WindowManager.customConfirmationDialog("Error", "Conflict with unmanaged file", description, "Replace"))
+            {
+                // Delete the untracked file
+                try { Files.delete(target); }
+                catch (IOException ex) { throw new RuntimeException(ex); }
+                // Import the new file
+                importFile(source, target, mode);
             }
         }
         else
         {
-            try
+            // Transfer the file to the program Storage directory in the background, since copying a large file can take a while
+            File file = importerModel.getFiles().get(importerModel.importIndex);
+            ImportTask task = new ImportTask(taggerModel.getPath(), file, name, importerModel.getAppliedTags(), mode);
+            WindowManager.runWithProgress("Import File", task);
+
+            // If the file's contents are already in the folder, give the user the option to import it anyway
+            String original = task.getDuplicates().get(name);
+            if (original != null)
             {
-                // Attempt to retrieve the time that this file was created as milliseconds since the epoch
-                long creationTime;
-                try
-                {
-                    creationTime = Files.readAttributes(source, BasicFileAttributes.class).creationTime().toMillis();
-                }
-                catch (IOException | UnsupportedOperationException | SecurityException exception)
+                String description = String.format("This file has the same contents as \"%s\". Import it anyway?", original);
+                if (WindowManager.customConfirmationDialog("Duplicate", "Duplicate file", description, "Import"))
                 {
-                    System.out.println(exception.toString());
-                    creationTime = -1;
+                    task = new ImportTask(taggerModel.getPath(), file, name, importerModel.getAppliedTags(), mode);
+                    task.setAllowDuplicates(true);
+                    WindowManager.runWithProgress("Import File", task);
                 }
-
-                // Copy or move the file to the program Storage directory
-                if (copy)
-                    Files.copy(source, target, StandardCopyOption.COPY_ATTRIBUTES);
                 else
-                    Files.move(source, target);
-
-                // Record this file, its creation time, and the tags being applied to it in the database
-                Database.saveFile(taggerModel.getPath(), target.getFileName().toString(), creationTime, importerModel.getAppliedTags());
-                importerModel.getFiles().remove(importerModel.importIndex);
+                    return;
             }
-            // If a file with this name already exists in the storage directory, alert the user and give them the option to overwrite it
-            catch (FileAlreadyExistsException e)
+
+            if (!task.getImported().isEmpty())
+                importerModel.getFiles().remove(file);
+            else if (!task.getConflicts().isEmpty())
+                WindowManager.showError("Unable to import file", task.getConflicts());
+        }
+    }
+
+    // Replace the import list with the files in the directory pointed to by IMPORT_PATH, scanning it in the background
+    private void scanDirectory()
+    {
+        // Stop any scan that is still running for the previous directory
+        if (scanTask != null)
+            scanTask.cancel();
+        scanTask = null;
+
+        String path = importerModel.getPath().getValue();
+        directoryLabel.setText("Importing from: " + path);
+        importerModel.importIndex = 0;
+        importerModel.getFiles().clear();
+
+        if (path != null && !path.isEmpty())
+        {
+            if (new File(path).isDirectory())
             {
-                String description = String.format("A file not tracked by the \"%s\" folder exists in its storage directory with this name. Replace it with the new file?", taggerModel.getFolder().getName());
-                if (WindowManager.customConfirmationDialog("Error", "Conflict with unmanaged file", description, "Replace"))
+                int depth = subfoldersCheckBox.isSelected() ? DirectoryScanTask.MAX_DEPTH : 1;
+                final DirectoryScanTask task = new DirectoryScanTask(path, depth, files -> importerModel.getFiles().addAll(files));
+                task.setOnSucceeded(event -> directoryLabel.setText(String.format("Importing from: %s (%d files)", path, task.getValue())));
+                task.setOnFailed(event ->
                 {
-                    // Delete the untracked file
-                    try { Files.delete(target); }
-                    catch (IOException ex) { throw new RuntimeException(ex); }
-                    // Import the new file
-                    importFile(source, target, copy);
-                }
-            }
-            catch (IOException e)
-            {
-                throw new RuntimeException(e);
+                    directoryLabel.setText("Importing from: " + path);
+                    System.out.printf("ImporterController.scanDirectory: Unable to scan \"%s\" (%s)\n", path, task.getException());
+                });
+                directoryLabel.setText(String.format("Importing from: %s (scanning...)", path));
+                scanTask = task;
+
+                Thread thread = new Thread(task, "DirectoryScanTask");
+                thread.setDaemon(true);
+                thread.start();
             }
+            else
+                System.out.printf("ImporterController.scanDirectory: Path \"%s\" does not lead to a valid directory\n", path);
         }
     }
 
+    // Return the file currently being previewed, or null if there isn't one
+    private File getCurrentFile()
+    {
+        if (importerModel.getFiles() != null && importerModel.importIndex >= 0 && importerModel.importIndex < importerModel.getFiles().size())
+            return importerModel.getFiles().get(importerModel.importIndex);
+        else
+            return null;
+    }
+
+    // Return a Mode instance that corresponds to the item currently selected in the transferChoiceBox control
+    private FileTransfer.Mode getTransferMode()
+    {
+        int index = transferChoiceBox.getSelectionModel().getSelectedIndex();
+        return (index >= 0) ? FileTransfer.Mode.values()[index] : FileTransfer.Mode.COPY;
+    }
+
     private void refreshContentPane()
     {
         if (importerModel.getFiles() != null && !importerModel.getFiles().isEmpty() &&
@@ -346,14 +421,19 @@ public class ImporterController
         {
             if (fileNameField.isDisabled())
                 fileNameField.setDisable(false);
-            fileNameField.setText(importerModel.getFiles().get(importerModel.importIndex).getName());
-            mediaView.load(importerModel.getFiles().get(importerModel.importIndex));
+            displayedFile = importerModel.getFiles().get(importerModel.importIndex);
+            fileNameField.setText(displayedFile.getName());
+            mediaView.load(displayedFile);
         }
         else
         {
+            displayedFile = null;
             fileNameField.setText("");
             fileNameField.setDisable(true);
             mediaView.load(null);
         }
     }
+
+    // Importing every file only needs files left to import and a tag to apply, since the batch skips and reports files with bad names itself
+    private void updateImportAllButton() { importAllButton.setDisable(importerModel.getFiles().isEmpty() || importerModel.getAppliedTags().isEmpty()); }
 }
\ No newline at end of file
@@ -0,0 +1,43 @@
+/* TagIt
+ * ProgressController.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.controllers;
+
+import javafx.concurrent.Task;
+import javafx.fxml.FXML;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+
+public class ProgressController
+{
+    @FXML Label messageLabel;
+    @FXML ProgressBar progressBar;
+    @FXML Button cancelButton;
+
+    private Task<?> task = null;
+
+    public void setTask(Task<?> task)
+    {
+        if (this.task == null)
+        {
+            this.task = task;
+            messageLabel.textProperty().bind(task.messageProperty());
+            progressBar.progressProperty().bind(task.progressProperty());
+        }
+    }
+
+    // Ask the task to stop; the window stays open until the task has finished cleaning up
+    public void onCancelButton()
+    {
+        if (task != null)
+        {
+            task.cancel();
+            cancelButton.setDisable(true);
+            messageLabel.textProperty().unbind();
+            messageLabel.setText("Cancelling...");
+        }
+    }
+}
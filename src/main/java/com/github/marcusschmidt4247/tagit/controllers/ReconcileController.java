@@ -0,0 +1,224 @@
+/* TagIt
+ * ReconcileController.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.controllers;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.IOManager;
+import com.github.marcusschmidt4247.tagit.WindowManager;
+import com.github.marcusschmidt4247.tagit.miscellaneous.StorageResolver;
+import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
+import com.github.marcusschmidt4247.tagit.tasks.FileHasher;
+import com.github.marcusschmidt4247.tagit.tasks.ReconcileTask;
+import com.github.marcusschmidt4247.tagit.tasks.ReconcileTask.Problem;
+import com.github.marcusschmidt4247.tagit.tasks.ReconcileTask.Type;
+import javafx.beans.binding.Bindings;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.fxml.FXML;
+import javafx.scene.control.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Vector;
+
+public class ReconcileController
+{
+    @FXML TableView<Problem> problemTable;
+    @FXML TableColumn<Problem, String> typeColumn;
+    @FXML TableColumn<Problem, String> nameColumn;
+    @FXML TableColumn<Problem, String> pathColumn;
+
+    @FXML Button removeRecordsButton;
+    @FXML Button addFilesButton;
+    @FXML Button deleteFilesButton;
+    @FXML Button fixFilesButton;
+
+    private final ObservableList<Problem> problems = FXCollections.observableArrayList();
+    private TagNode root;
+
+    public void initialize()
+    {
+        // Bind the table columns to the Problem fields
+        typeColumn.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().type().description));
+        nameColumn.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().name()));
+        pathColumn.setCellValueFactory(cellData ->
+        {
+            Path path = cellData.getValue().path();
+            return new ReadOnlyStringWrapper((path != null) ? path.toString() : "");
+        });
+        problemTable.setItems(problems);
+        problemTable.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+
+        // Each button is only enabled while a problem that it can repair is selected
+        ObservableList<Problem> selected = problemTable.getSelectionModel().getSelectedItems();
+        removeRecordsButton.disableProperty().bind(Bindings.createBooleanBinding(() -> getSelected(Type.MISSING).isEmpty(), selected));
+        addFilesButton.disableProperty().bind(Bindings.createBooleanBinding(() -> getSelected(Type.UNTRACKED).isEmpty(), selected));
+        deleteFilesButton.disableProperty().bind(addFilesButton.disableProperty());
+        fixFilesButton.disableProperty().bind(Bindings.createBooleanBinding(() -> getSelected(Type.CASE_CONFLICT, Type.MISPLACED).isEmpty(), selected));
+    }
+
+    public void setTask(TagNode root, ReconcileTask task)
+    {
+        this.root = root;
+        problems.setAll(task.getProblems());
+    }
+
+    @FXML
+    public void onSelectAll() { problemTable.getSelectionModel().selectAll(); }
+
+    @FXML
+    public void onRemoveRecords()
+    {
+        Vector<Problem> selection = getSelected(Type.MISSING);
+        String header = String.format("Remove %d missing files from the database?", selection.size());
+        if (WindowManager.confirmationDialog("Remove Records", header, "Their tags will be lost. This action cannot be reversed."))
+        {
+            Vector<String> names = new Vector<>(selection.size());
+            selection.forEach(problem -> names.add(problem.name()));
+            if (Database.deleteFiles(root.getDirectory(), names))
+                problems.removeAll(selection);
+            else
+                WindowManager.showError("Unable to remove files from the database");
+        }
+    }
+
+    @FXML
+    public void onAddFiles()
+    {
+        Vector<Problem> selection = getSelected(Type.UNTRACKED);
+        Vector<TagNode> tags = WindowManager.selectTags(root, new Vector<>());
+        if (tags == null)
+            return;
+        else if (tags.isEmpty())
+        {
+            WindowManager.showError("At least one tag must be selected");
+            return;
+        }
+
+        String directory = root.getDirectory();
+        Vector<Database.FileRecord> records = new Vector<>();
+        Vector<Problem> added = new Vector<>();
+        Vector<String> failures = new Vector<>();
+        for (Problem problem : selection)
+        {
+            // Another file may have been given this name since the check
+            if (Database.fileExists(directory, problem.name()))
+            {
+                failures.add(String.format("%s: Name is already in use", problem.name()));
+                continue;
+            }
+
+            try
+            {
+                long creationTime = Files.readAttributes(problem.path(), BasicFileAttributes.class).creationTime().toMillis();
+                String hash = FileHasher.hash(problem.path());
+                moveIntoPlace(directory, problem.path(), problem.name());
+                records.add(new Database.FileRecord(problem.name(), creationTime, hash));
+                added.add(problem);
+            }
+            catch (IOException exception)
+            {
+                failures.add(String.format("%s: %s", problem.name(), exception));
+            }
+        }
+
+        if (!records.isEmpty())
+        {
+            if (Database.saveFiles(directory, records, tags))
+                problems.removeAll(added);
+            else
+                failures.add(String.format("Unable to save %d files to the database", records.size()));
+        }
+        if (!failures.isEmpty())
+            WindowManager.showError(String.format("Unable to add %d files", failures.size()), failures);
+    }
+
+    @FXML
+    public void onDeleteFiles()
+    {
+        Vector<Problem> selection = getSelected(Type.UNTRACKED);
+        String header = String.format("Delete %d files that are not in the database?", selection.size());
+        if (WindowManager.confirmationDialog("Delete Files", header, "This action cannot be reversed."))
+        {
+            Vector<String> failures = new Vector<>();
+            for (Problem problem : selection)
+            {
+                try
+                {
+                    Files.deleteIfExists(problem.path());
+                    problems.remove(problem);
+                }
+                catch (IOException exception)
+                {
+                    failures.add(String.format("%s: %s", problem.name(), exception));
+                }
+            }
+            if (!failures.isEmpty())
+                WindowManager.showError(String.format("Unable to delete %d files", failures.size()), failures);
+        }
+    }
+
+    @FXML
+    public void onFixFiles()
+    {
+        // Give every selected file the name and location that the database expects
+        Vector<String> failures = new Vector<>();
+        for (Problem problem : getSelected(Type.CASE_CONFLICT, Type.MISPLACED))
+        {
+            try
+            {
+                moveIntoPlace(root.getDirectory(), problem.path(), problem.name());
+                problems.remove(problem);
+            }
+            catch (IOException exception)
+            {
+                failures.add(String.format("%s: %s", problem.name(), exception));
+            }
+        }
+        if (!failures.isEmpty())
+            WindowManager.showError(String.format("Unable to fix %d files", failures.size()), failures);
+    }
+
+    private Vector<Problem> getSelected(Type ... types)
+    {
+        Vector<Problem> selection = new Vector<>();
+        for (Problem problem : problemTable.getSelectionModel().getSelectedItems())
+        {
+            for (Type type : types)
+            {
+                if (problem.type() == type)
+                {
+                    selection.add(problem);
+                    break;
+                }
+            }
+        }
+        return selection;
+    }
+
+    // Move a file in storage to where 'name' resolves to, without replacing any file that is already there
+    private static void moveIntoPlace(String directory, Path source, String name) throws IOException
+    {
+        Path target = Path.of(IOManager.getFilePath(directory, name));
+        if (source.equals(target))
+            return;
+
+        Files.createDirectories(target.getParent());
+        if (source.toString().equalsIgnoreCase(target.toString()))
+        {
+            // A case-insensitive file system would treat a rename that only changes case as a no-op, so go through a temporary name first
+            Path temporary = source.resolveSibling(name + ".reconcile");
+            Files.move(source, temporary);
+            Files.move(temporary, target);
+        }
+        else
+            Files.move(source, target);
+        StorageResolver.invalidate(directory, name);
+    }
+}
@@ -87,6 +87,36 @@ public class TagEditorController
         }
     }
 
+    public void onMergeButton()
+    {
+        TagNode target = WindowManager.selectTag(tag.getRoot(), tag);
+        if (target == null)
+            return;
+        else if (target.isRoot())
+        {
+            WindowManager.showError("Select a tag to merge into");
+            return;
+        }
+
+        // Files can only be tagged with leaves, so a leaf with files cannot be merged with a tag that has children, including among their children
+        TagNode conflict = tag.getMergeConflict(target);
+        if (conflict != null)
+        {
+            WindowManager.showError(String.format("\"%s\" has files and cannot be merged with a tag that has children", conflict.getTagPath()));
+            return;
+        }
+
+        String header = String.format("Are you sure you want to merge \"%s\" into \"%s\"?", tag.getTag(), target.getTagPath());
+        String description = "All of this tag's files and child tags will be moved to the selected tag, and then this tag will be deleted. This action cannot be reversed.";
+        if (WindowManager.confirmationDialog("Merge Tag", header, description))
+        {
+            if (tag.mergeInto(target))
+                ((Stage) nameField.getScene().getWindow()).close();
+            else
+                WindowManager.showError("Failed to merge tags");
+        }
+    }
+
     // Update the label to show this tag's parentage
     private void setParentLabel()
     {
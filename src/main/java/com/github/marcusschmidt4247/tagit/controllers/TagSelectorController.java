@@ -6,28 +6,45 @@
 package com.github.marcusschmidt4247.tagit.controllers;
 
 import com.github.marcusschmidt4247.tagit.gui.DynamicCheckTreeView;
+import com.github.marcusschmidt4247.tagit.gui.TagSearchField;
 import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
 import javafx.fxml.FXML;
 import javafx.scene.control.Alert;
 import javafx.scene.control.TreeItem;
 import javafx.stage.Stage;
 
+import java.util.Vector;
+
 public class TagSelectorController
 {
     @FXML private DynamicCheckTreeView tagTreeView;
+    @FXML private TagSearchField tagSearchField;
 
     private TagNode root;
     private TagNode result;
+    private Vector<TagNode> results = null;
 
     public void setTagNodes(TagNode root, TagNode tag)
     {
         this.root = root;
         tagTreeView.initSingleCheck(root, tag);
+        tagSearchField.init(root, tagTreeView);
+    }
+
+    // Allow any number of leaf tags to be selected, starting with 'tags' already checked
+    public void setTagNodes(TagNode root, Vector<TagNode> tags)
+    {
+        this.root = root;
+        results = new Vector<>();
+        tagTreeView.init(root, DynamicCheckTreeView.Mode.LEAF_CHECK);
+        tagTreeView.checkItems(tags, true);
+        tagSearchField.init(root, tagTreeView);
     }
 
     public void onCancel()
     {
         result = null;
+        results = null;
         ((Stage) tagTreeView.getScene().getWindow()).close();
     }
 
@@ -38,6 +55,17 @@ public class TagSelectorController
             TreeItem<String> selection = tagTreeView.getCheckModel().getCheckedItems().getLast();
             result = root.findNode(selection);
 
+            // When multiple tags can be selected, collect all of them
+            if (results != null)
+            {
+                for (TreeItem<String> item : tagTreeView.getCheckModel().getCheckedItems())
+                {
+                    TagNode node = root.findNode(item);
+                    if (node != null)
+                        results.add(node);
+                }
+            }
+
             ((Stage) tagTreeView.getScene().getWindow()).close();
         }
         else
@@ -49,4 +77,6 @@ public class TagSelectorController
     }
 
     public TagNode getSelection() { return result; }
+
+    public Vector<TagNode> getSelections() { return results; }
 }
@@ -11,13 +11,21 @@ import com.github.marcusschmidt4247.tagit.WindowManager;
 import com.github.marcusschmidt4247.tagit.gui.DynamicCheckTreeView;
 import com.github.marcusschmidt4247.tagit.gui.MultiMediaView;
 import com.github.marcusschmidt4247.tagit.gui.NameInputDialog;
+import com.github.marcusschmidt4247.tagit.gui.TagSearchField;
+import com.github.marcusschmidt4247.tagit.gui.ThumbnailGridView;
 import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
 import com.github.marcusschmidt4247.tagit.miscellaneous.ManagedFolder;
 import com.github.marcusschmidt4247.tagit.miscellaneous.SearchCriteria;
+import com.github.marcusschmidt4247.tagit.miscellaneous.StorageResolver;
 import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
 import com.github.marcusschmidt4247.tagit.models.TaggerModel;
+import com.github.marcusschmidt4247.tagit.tasks.AsyncScheduler;
+import com.github.marcusschmidt4247.tagit.tasks.FolderWatcher;
+import com.github.marcusschmidt4247.tagit.tasks.ReconcileTask;
+import com.github.marcusschmidt4247.tagit.tasks.StorageMigrationTask;
 import com.github.marcusschmidt4247.tagit.IOManager;
 import javafx.collections.ListChangeListener;
+import javafx.concurrent.Worker;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Scene;
@@ -29,21 +37,30 @@ import javafx.stage.Stage;
 import org.kordamp.ikonli.javafx.FontIcon;
 
 import java.io.*;
+import java.util.List;
 import java.util.Vector;
 
 public class TaggerController
 {
     private final static String SELECT_ALL_TEXT = "Select All";
     private final static String DESELECT_ALL_TEXT = "Deselect All";
+    // The number of files to load in the background ahead of and behind the current file
+    private final static int PREFETCH_AHEAD = 4;
+    private final static int PREFETCH_BEHIND = 1;
 
     @FXML private Menu fileTypesMenu;
     @FXML private DynamicCheckTreeView tagTreeView;
     @FXML private DynamicCheckTreeView excludeTreeView;
     @FXML private DynamicCheckTreeView editTreeView;
+    @FXML private TagSearchField tagSearchField;
+    @FXML private TagSearchField editSearchField;
     @FXML private SplitPane mainSplitPane;
     @FXML private AnchorPane editPane;
     @FXML private Label fileNameLabel;
     @FXML private MultiMediaView mediaView;
+    @FXML private ThumbnailGridView gridView;
+    @FXML private CheckMenuItem gridMenuItem;
+    @FXML private MenuItem tagSelectedMenuItem;
     @FXML private ChoiceBox<String> criteriaChoiceBox;
     @FXML private ChoiceBox<String> sortChoiceBox;
     @FXML private CheckBox excludeCheckBox;
@@ -56,6 +73,7 @@ public class TaggerController
     private TaggerModel taggerModel;
     private double editPanePos = 0.7;
     private boolean editEnabled = true;
+    private boolean gridEnabled = false;
 
     public void initialize()
     {
@@ -103,8 +121,21 @@ public class TaggerController
         taggerModel = new TaggerModel(folder);
 
         mediaView.init(false);
+        mediaView.setDirectory(taggerModel.getPath());
+        // Clicking a file in the grid makes it the current file, and double-clicking it opens it on its own
+        gridView.init(taggerModel.getPath(), index -> refreshContentPane(taggerModel.selectFile(index)), index ->
+        {
+            taggerModel.selectFile(index);
+            gridMenuItem.setSelected(false);
+            onToggleGrid();
+        });
+        tagSelectedMenuItem.disableProperty().bind(gridView.visibleProperty().not().or(gridView.selectedCountProperty().isEqualTo(0)));
 
         tagTreeView.init(taggerModel.getTreeRoot());
+        tagSearchField.init(taggerModel.getTreeRoot(), tagTreeView);
+        FolderWatcher.start(taggerModel.getTreeRoot());
+        // Check storage against the database in the background, and only interrupt the user if something is wrong
+        ReconcileTask.start(taggerModel.getPath(), task -> WindowManager.openReconciler(mainSplitPane.getScene().getWindow(), taggerModel.getTreeRoot(), task));
         tagTreeView.getCheckModel().getCheckedItems().addListener((ListChangeListener<TreeItem<String>>) change ->
         {
             Vector<TreeItem<String>> added = new Vector<>();
@@ -160,6 +191,8 @@ public class TaggerController
 
         // Initialize and then hide the edit pane
         editTreeView.init(taggerModel.getTreeRoot(), DynamicCheckTreeView.Mode.LEAF_CHECK);
+        editSearchField.init(taggerModel.getTreeRoot(), editTreeView);
+        editSearchField.disableProperty().bind(editTreeView.disableProperty());
         onToggleEdit();
 
         // Add a listener that will close the window if the ManagedFolder it views is deleted
@@ -173,6 +206,14 @@ public class TaggerController
             refreshContentPane(taggerModel.prevFile());
         else if (event.getCode() == KeyCode.RIGHT)
             refreshContentPane(taggerModel.nextFile());
+        else if (gridEnabled && (event.getCode() == KeyCode.UP || event.getCode() == KeyCode.DOWN))
+        {
+            // Move to the file in the same column of the previous or next row
+            int offset = (event.getCode() == KeyCode.UP) ? -gridView.getColumns() : gridView.getColumns();
+            String file = taggerModel.selectFile(taggerModel.getCurrentIndex() + offset);
+            if (file != null)
+                refreshContentPane(file);
+        }
     }
 
     @FXML
@@ -200,6 +241,45 @@ public class TaggerController
         refreshEditPane();
     }
 
+    @FXML
+    public void onToggleGrid()
+    {
+        gridEnabled = gridMenuItem.isSelected();
+        gridView.setVisible(gridEnabled);
+        mediaView.setVisible(!gridEnabled);
+        if (gridEnabled)
+        {
+            // Stop any playback and release the prefetched files while the grid is shown
+            mediaView.load(null);
+            mediaView.prefetch(List.of());
+            mediaView.preroll(null);
+            gridView.setFiles(taggerModel.getFiles(), taggerModel.getCurrentIndex());
+            refreshEditPane();
+        }
+        else
+            refreshContentPane(taggerModel.currentFile());
+    }
+
+    @FXML
+    public void onTagSelected()
+    {
+        Vector<String> files = gridView.getSelectedFiles();
+        if (files.isEmpty())
+            return;
+
+        Vector<TagNode> tags = WindowManager.selectTags(taggerModel.getTreeRoot(), new Vector<>());
+        if (tags != null && !tags.isEmpty())
+        {
+            AsyncScheduler.deliver(AsyncScheduler.write(taggerModel.getPath(), () -> Database.addFileTags(taggerModel.getPath(), files, tags)), added ->
+            {
+                if (added)
+                    refreshEditPane();
+                else
+                    WindowManager.showError(String.format("Unable to tag %d files", files.size()));
+            });
+        }
+    }
+
     @FXML
     public void onManageFiles()
     {
@@ -221,6 +301,49 @@ public class TaggerController
         }
     }
 
+    @FXML
+    public void onShardStorage()
+    {
+        if (StorageResolver.getLayout(taggerModel.getPath()) == StorageResolver.Layout.SHARDED)
+        {
+            WindowManager.showError("This folder's storage is already sharded");
+            return;
+        }
+
+        String header = "Convert this folder's storage to the sharded layout?";
+        String description = "Files will be moved into subdirectories of the storage directory, which keeps very large folders fast. The folder can still be used while it is being converted, and an interrupted conversion resumes the next time the folder is opened.";
+        if (WindowManager.customConfirmationDialog("Shard Storage", header, description, "Convert"))
+        {
+            StorageMigrationTask task = new StorageMigrationTask(taggerModel.getPath());
+            WindowManager.runWithProgress("Shard Storage", task);
+            if (!task.getFailures().isEmpty())
+                WindowManager.showError(String.format("Unable to move %d files", task.getFailures().size()), task.getFailures());
+        }
+    }
+
+    @FXML
+    public void onCheckStorage()
+    {
+        ReconcileTask task = new ReconcileTask(taggerModel.getPath());
+        WindowManager.runWithProgress("Check Storage", task);
+        if (task.getState() == Worker.State.SUCCEEDED)
+        {
+            if (task.getProblems().isEmpty())
+            {
+                Alert alert = new Alert(Alert.AlertType.INFORMATION);
+                alert.setHeaderText("Storage and the database agree");
+                alert.showAndWait();
+            }
+            else
+                WindowManager.openReconciler(mainSplitPane.getScene().getWindow(), taggerModel.getTreeRoot(), task);
+        }
+        else if (!task.isCancelled())
+            WindowManager.showError("Unable to check storage");
+    }
+
+    @FXML
+    public void onWatchDirectories() { WindowManager.openWatchedDirectories(mainSplitPane.getScene().getWindow(), taggerModel.getTreeRoot()); }
+
     @FXML
     public void onSelectImport() throws IOException
     {
@@ -275,6 +398,8 @@ public class TaggerController
             {
                 taggerModel.renameCurrentFile(dialog.getName());
                 fileNameLabel.setText(taggerModel.currentFile());
+                if (gridEnabled)
+                    gridView.refreshTiles();
             }
         }
     }
@@ -286,6 +411,8 @@ public class TaggerController
         if (WindowManager.confirmationDialog("Delete File", header, "This action cannot be reversed."))
         {
             taggerModel.deleteCurrentFile();
+            if (gridEnabled)
+                gridView.setFiles(taggerModel.getFiles(), taggerModel.getCurrentIndex());
             refreshContentPane(taggerModel.currentFile());
         }
     }
@@ -312,9 +439,14 @@ public class TaggerController
         boolean excluding = excludeCheckBox.isSelected();
         SearchCriteria searchCriteria = new SearchCriteria(taggerModel.getTreeRoot(), fileTypes, anyMatch, excluding, getSortMethod());
 
-        // Select files that meet the search criteria and refresh the content pane
-        taggerModel.setFiles(Database.getTaggedFiles(searchCriteria));
-        refreshContentPane(taggerModel.firstFile());
+        // Select files that meet the search criteria in the background and refresh the content pane, unless a newer search replaces this one
+        AsyncScheduler.replace("search", taggerModel.getPath(), () -> Database.getTaggedFiles(searchCriteria), files ->
+        {
+            taggerModel.setFiles(files);
+            if (gridEnabled)
+                gridView.setFiles(taggerModel.getFiles(), -1);
+            refreshContentPane(taggerModel.firstFile());
+        });
     }
 
     // Return a SortMethod instance that corresponds to the item currently selected in the sortChoiceBox control
@@ -328,13 +460,41 @@ public class TaggerController
             return methods[0];
     }
 
+    // Get the first video within the prefetch distance after the current file, which is the one most likely to be played next
+    private File getNextVideo()
+    {
+        List<String> files = taggerModel.getFiles();
+        for (int distance = 1; distance <= Math.min(PREFETCH_AHEAD, files.size() - 1); distance++)
+        {
+            String name = files.get((taggerModel.getCurrentIndex() + distance) % files.size());
+            if (FileTypes.getType(name) == FileTypes.Type.VIDEO)
+                return new File(IOManager.getFilePath(taggerModel.getPath(), name));
+        }
+        return null;
+    }
+
     private void refreshContentPane(String fileName)
     {
+        // The grid shows every file, so only the current file changes
+        if (gridEnabled)
+        {
+            gridView.setCurrent(taggerModel.getCurrentIndex());
+            if (editEnabled)
+                refreshEditPane();
+            return;
+        }
+
         if (fileName != null)
             mediaView.load(new File(IOManager.getFilePath(taggerModel.getPath(), fileName)));
         else
             mediaView.load(null);
 
+        // Start loading the files that are likely to be viewed next, which also cancels loading any files from a previous search
+        Vector<File> neighbors = new Vector<>();
+        taggerModel.getNeighbors(PREFETCH_AHEAD, PREFETCH_BEHIND).forEach(name -> neighbors.add(new File(IOManager.getFilePath(taggerModel.getPath(), name))));
+        mediaView.prefetch(neighbors);
+        mediaView.preroll(getNextVideo());
+
         if (editEnabled)
             refreshEditPane();
     }
@@ -354,10 +514,24 @@ public class TaggerController
             }
 
             // Disable the edit tag tree's checked item listener, set the current file's tags to be checked in the tree, and reapply the listener
-            editTreeView.getCheckModel().getCheckedItems().removeListener(editTreeListener);
-            editTreeView.getCheckModel().clearChecks();
-            editTreeView.checkItems(Database.getFileTags(taggerModel.getTreeRoot(), taggerModel.currentFile()), true);
-            editTreeView.getCheckModel().getCheckedItems().addListener(editTreeListener);
+            String file = taggerModel.currentFile();
+            String directory = taggerModel.getPath();
+            AsyncScheduler.replace("file tags", directory, () -> Database.getFileTagLineages(directory, file), lineages ->
+            {
+                // The tag tree can only be followed on this thread, since it fetches children that haven't been fetched yet
+                Vector<TagNode> tags = new Vector<>(lineages.size());
+                for (Vector<Integer> lineage : lineages)
+                {
+                    TagNode tag = taggerModel.getTreeRoot().findNode(lineage);
+                    if (tag != null)
+                        tags.add(tag);
+                }
+
+                editTreeView.getCheckModel().getCheckedItems().removeListener(editTreeListener);
+                editTreeView.getCheckModel().clearChecks();
+                editTreeView.checkItems(tags, true);
+                editTreeView.getCheckModel().getCheckedItems().addListener(editTreeListener);
+            });
         }
         else
         {
@@ -392,24 +566,46 @@ public class TaggerController
                         if (checked)
                         {
                             // If this item is the only one checked, it's now safe to delete the file's last tag because a new one is about to be added
-                            if (editTreeView.getCheckModel().getCheckedItems().size() == 1)
+                            String file = taggerModel.currentFile();
+                            String directory = taggerModel.getPath();
+                            boolean replaceLast = editTreeView.getCheckModel().getCheckedItems().size() == 1;
+                            AsyncScheduler.write(directory, () ->
                             {
-                                Vector<TagNode> tags = Database.getFileTags(taggerModel.getTreeRoot(), taggerModel.currentFile());
-                                if (!tags.isEmpty())
-                                    Database.deleteFileTag(taggerModel.currentFile(), tags.getFirst());
-                            }
-
-                            // Add the new file tag
-                            Database.addFileTag(taggerModel.currentFile(), node);
+                                if (replaceLast)
+                                {
+                                    // Only plain IDs are read here, since the tag tree can't be followed off the JavaFX application thread
+                                    Vector<Vector<Integer>> lineages = Database.getFileTagLineages(directory, file);
+                                    if (!lineages.isEmpty())
+                                        Database.deleteFileTag(directory, file, lineages.getFirst().getLast());
+                                }
+
+                                // Add the new file tag
+                                Database.addFileTag(file, node);
+                                return null;
+                            });
                         }
                         else
                         {
                             // Only delete this file's tag if it has at least one more
-                            if (Database.getFileTags(taggerModel.getTreeRoot(), taggerModel.currentFile()).size() > 1)
-                                Database.deleteFileTag(taggerModel.currentFile(), node);
-                            else
-                                WindowManager.showError("File will be inaccessible without at least one tag.");
+                            String file = taggerModel.currentFile();
+                            String directory = taggerModel.getPath();
+                            AsyncScheduler.deliver(AsyncScheduler.write(directory, () ->
+                            {
+                                boolean deleted = Database.getFileTagLineages(directory, file).size() > 1;
+                                if (deleted)
+                                    Database.deleteFileTag(directory, file, node.getId());
+                                return deleted;
+                            }), deleted ->
+                            {
+                                if (!deleted)
+                                    WindowManager.showError("File will be inaccessible without at least one tag.");
+                            });
                         }
+
+                        // A read of the file's tags that was started before this change would check the old tags once it finishes, so read them
+                        // again after the change instead
+                        if (AsyncScheduler.cancel("file tags"))
+                            refreshEditPane();
                     }
                     else
                     {
@@ -0,0 +1,146 @@
+/* TagIt
+ * WatchedDirectoriesController.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.controllers;
+
+import com.github.marcusschmidt4247.tagit.WindowManager;
+import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
+import com.github.marcusschmidt4247.tagit.miscellaneous.WatchedDirectory;
+import com.github.marcusschmidt4247.tagit.tasks.FolderWatcher;
+import javafx.beans.property.ReadOnlyStringWrapper;
+import javafx.fxml.FXML;
+import javafx.scene.control.*;
+import javafx.stage.DirectoryChooser;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Vector;
+
+public class WatchedDirectoriesController
+{
+    private static final int MAX_RATE_LIMIT = 10000;
+
+    @FXML TableView<WatchedDirectory> directoryTable;
+    @FXML TableColumn<WatchedDirectory, String> pathColumn;
+    @FXML TableColumn<WatchedDirectory, String> tagsColumn;
+    @FXML TableColumn<WatchedDirectory, String> limitColumn;
+    @FXML TableColumn<WatchedDirectory, String> statusColumn;
+
+    @FXML Button removeButton;
+    @FXML Button tagsButton;
+    @FXML Spinner<Integer> limitSpinner;
+
+    private TagNode root;
+    private FolderWatcher watcher;
+
+    public void initialize()
+    {
+        // Bind the table columns to the WatchedDirectory properties
+        pathColumn.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().getPath()));
+        tagsColumn.setCellValueFactory(cellData -> cellData.getValue().tagsProperty());
+        limitColumn.setCellValueFactory(cellData ->
+        {
+            int rateLimit = cellData.getValue().getRateLimit();
+            return new ReadOnlyStringWrapper((rateLimit > 0) ? String.format("%d / min", rateLimit) : "None");
+        });
+        statusColumn.setCellValueFactory(cellData -> cellData.getValue().statusProperty());
+        directoryTable.getSelectionModel().setSelectionMode(SelectionMode.SINGLE);
+
+        // The controls that change a directory are only enabled while one is selected
+        removeButton.disableProperty().bind(directoryTable.getSelectionModel().selectedItemProperty().isNull());
+        tagsButton.disableProperty().bind(removeButton.disableProperty());
+        limitSpinner.disableProperty().bind(removeButton.disableProperty());
+
+        // Show the selected directory's rate limit, and save the limit when it is changed
+        limitSpinner.setValueFactory(new SpinnerValueFactory.IntegerSpinnerValueFactory(0, MAX_RATE_LIMIT, 0, 10));
+        directoryTable.getSelectionModel().selectedItemProperty().addListener((observableValue, oldDirectory, newDirectory) ->
+        {
+            if (newDirectory != null)
+                limitSpinner.getValueFactory().setValue(newDirectory.getRateLimit());
+        });
+        limitSpinner.valueProperty().addListener((observableValue, oldValue, newValue) ->
+        {
+            WatchedDirectory directory = directoryTable.getSelectionModel().getSelectedItem();
+            if (directory != null && newValue != null && directory.getRateLimit() != newValue)
+            {
+                directory.setRateLimit(newValue);
+                if (!watcher.update(directory))
+                    WindowManager.showError("Unable to save rate limit");
+                directoryTable.refresh();
+            }
+        });
+    }
+
+    public void setRoot(TagNode root)
+    {
+        this.root = root;
+        watcher = FolderWatcher.start(root);
+        if (watcher != null)
+            directoryTable.setItems(watcher.getDirectories());
+        else
+            WindowManager.showError("Unable to watch directories on this system");
+    }
+
+    @FXML
+    public void onAddDirectory()
+    {
+        if (watcher == null)
+            return;
+
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        File result = directoryChooser.showDialog(directoryTable.getScene().getWindow());
+        if (result != null)
+        {
+            // Files would be imported from the folder's own storage if it were watched
+            if (result.toPath().toAbsolutePath().startsWith(Path.of(root.getDirectory()).toAbsolutePath()))
+            {
+                WindowManager.showError("Cannot watch a directory inside this folder");
+                return;
+            }
+
+            Vector<TagNode> tags = WindowManager.selectTags(root, new Vector<>());
+            if (tags != null)
+            {
+                if (tags.isEmpty())
+                    WindowManager.showError("At least one tag must be selected");
+                else if (!watcher.add(new WatchedDirectory(result.getAbsolutePath(), tags, 0)))
+                    WindowManager.showError("Unable to watch directory (it may already be watched)");
+            }
+        }
+    }
+
+    @FXML
+    public void onRemoveDirectory()
+    {
+        WatchedDirectory directory = directoryTable.getSelectionModel().getSelectedItem();
+        if (directory != null)
+        {
+            String header = String.format("Stop watching \"%s\"?", directory.getPath());
+            if (WindowManager.confirmationDialog("Remove Directory", header, "Files already in the directory will not be affected."))
+                watcher.remove(directory);
+        }
+    }
+
+    @FXML
+    public void onEditTags()
+    {
+        WatchedDirectory directory = directoryTable.getSelectionModel().getSelectedItem();
+        if (directory != null)
+        {
+            Vector<TagNode> tags = WindowManager.selectTags(root, new Vector<>(directory.getTags()));
+            if (tags != null)
+            {
+                if (tags.isEmpty())
+                    WindowManager.showError("At least one tag must be selected");
+                else
+                {
+                    directory.setTags(tags);
+                    if (!watcher.update(directory))
+                        WindowManager.showError("Unable to save tags");
+                }
+            }
+        }
+    }
+}
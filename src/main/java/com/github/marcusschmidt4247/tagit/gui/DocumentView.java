@@ -5,13 +5,17 @@
 
 package com.github.marcusschmidt4247.tagit.gui;
 
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.miscellaneous.PageIndexStore;
 import com.github.marcusschmidt4247.tagit.parsers.DocxParser;
 import com.github.marcusschmidt4247.tagit.parsers.Parser;
 import com.github.marcusschmidt4247.tagit.parsers.ParserResults;
 import com.github.marcusschmidt4247.tagit.parsers.TxtParser;
+import com.github.marcusschmidt4247.tagit.tasks.AsyncScheduler;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.control.Button;
+import javafx.scene.control.Label;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
@@ -20,6 +24,13 @@ import javafx.scene.text.Font;
 import org.docx4j.openpackaging.exceptions.Docx4JException;
 import org.kordamp.ikonli.javafx.FontIcon;
 import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DocumentView extends VBox
 {
@@ -28,16 +39,42 @@ public class DocumentView extends VBox
 
     private enum Type { TXT, DOCX, UNSUPPORTED }
 
+    // Rendered pages are cached so that going back to a page doesn't read it again
+    private static final int MAX_CACHED_PAGES = 64;
+
+    // A page read in the background, along with the parser that read it
+    private record Page(Parser parser, boolean moved, ParserResults results, int fileId) {}
+    private record PageKey(String path, long modified, int page, Font font, int maxChars) {}
+
+    private static final ExecutorService loader = Executors.newVirtualThreadPerTaskExecutor();
+
     private final ScrollPane scrollPane;
     private final VBox contentPane;
     private final HBox pageControlsLayout;
     private final Button prevPageButton;
     private final Button nextPageButton;
+    private final Label placeholder;
 
     private Parser parser = null;
     private File file = null;
+    // The ManagedFolder that displayed files belong to, if any, and the displayed file's database ID once its saved pages have been restored
+    private String directory = null;
+    private int fileId = -1;
+    private boolean pagesRestored = false;
     private Type type = Type.UNSUPPORTED;
+    private long fileModified = 0;
+    private int currentPage = -1;
     private int lastPage = -1;
+    // The page that is being read in the background
+    private CompletableFuture<Page> loading = null;
+    // The page that the user is waiting for, or -1 if the current page is displayed
+    private int requestedPage = -1;
+    // Ordered from least to most recently viewed
+    private final LinkedHashMap<PageKey, ParserResults> pageCache = new LinkedHashMap<>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<PageKey, ParserResults> eldest) { return size() > MAX_CACHED_PAGES; }
+    };
 
     public DocumentView()
     {
@@ -54,6 +91,8 @@ public class DocumentView extends VBox
         contentPane = new VBox();
         contentPane.setPadding(new Insets(5, 10, 0, 10));
         scrollPane.setContent(contentPane);
+        // Shown in place of the content while a document is being opened
+        placeholder = new Label();
 
         // Create an HBox with controls for changing the document page
         pageControlsLayout = new HBox();
@@ -73,36 +112,63 @@ public class DocumentView extends VBox
         getChildren().add(pageControlsLayout);
     }
 
+    /**
+     * Opens a document without displaying it, so that it can be opened ahead of time on another thread and later passed to
+     * <code>load(File, Parser)</code>.
+     * @param file a text document
+     * @return the open document; <code>null</code> if it is not a supported type or could not be opened
+     */
+    public static Parser open(File file)
+    {
+        try
+        {
+            return switch (getType(file))
+            {
+                case TXT -> new TxtParser(file);
+                case DOCX -> new DocxParser(file);
+                case UNSUPPORTED -> null;
+            };
+        }
+        catch (FileNotFoundException | Docx4JException exception)
+        {
+            System.out.printf("DocumentView.open: %s\n", exception.toString());
+            return null;
+        }
+    }
+
     /**
      * Loads and displays a new file in this view.
      * @param file a text document
      */
-    public void load(File file)
+    public void load(File file) { load(file, null); }
+
+    /**
+     * Sets the <code>ManagedFolder</code> that the files displayed in this view belong to, so that the pages found in its documents are saved
+     * in its <code>PageIndexStore</code> and restored the next time they are opened.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory, or <code>null</code> if the files aren't in one
+     */
+    public void setDirectory(String directory) { this.directory = directory; }
+
+    /**
+     * Loads and displays a new file in this view.
+     * @param file a text document
+     * @param parser the document already opened with <code>open()</code>, which this view takes ownership of; <code>null</code> to open it
+     *               when it is displayed
+     */
+    public void load(File file, Parser parser)
     {
         // Close the previous file if not already
         close();
 
         this.file = file;
+        this.parser = parser;
+        fileModified = file.lastModified();
         pageControlsLayout.setVisible(true);
-
-        // Determine the file type
-        int dotIndex = file.getName().lastIndexOf('.');
-        if (dotIndex != -1)
-        {
-            String extension = file.getName().substring(dotIndex).toLowerCase();
-            if (extension.equals(".txt"))
-                type = Type.TXT;
-            else if (extension.equals(".docx"))
-                type = Type.DOCX;
-            else
-                System.out.printf("DocumentView.load: Unrecognized file extension \"%s\"\n", extension);
-        }
-        else
-            System.out.println("DocumentView.load: No file extension");
+        type = getType(file);
 
         // Show the first page
         if (type != Type.UNSUPPORTED)
-            viewPage();
+            viewPage(0);
     }
 
     /**
@@ -110,15 +176,39 @@ public class DocumentView extends VBox
      */
     public void close()
     {
+        // A page that is still being read is closed once it finishes
+        if (loading != null)
+        {
+            loading.cancel(false);
+            loading = null;
+        }
         if (parser != null)
         {
-            parser.close();
+            if (fileId != -1)
+            {
+                // Save the pages that were found in the background, and only close the document once they have been
+                final Parser closing = parser;
+                final File closingFile = file;
+                final String closingDirectory = directory;
+                final int closingId = fileId;
+                loader.execute(() ->
+                {
+                    PageIndexStore.get(closingDirectory).save(closingId, closingFile, MAX_CHAR_PER_PAGE, closing);
+                    closing.close();
+                });
+            }
+            else
+                parser.close();
             parser = null;
         }
 
         this.file = null;
+        fileId = -1;
+        pagesRestored = false;
         type = Type.UNSUPPORTED;
+        currentPage = -1;
         lastPage = -1;
+        requestedPage = -1;
 
         contentPane.getChildren().clear();
         nextPageButton.setDisable(true);
@@ -128,87 +218,226 @@ public class DocumentView extends VBox
     // Move to the document's next page
     private void onNextPage()
     {
-        if (file != null && (lastPage == -1 || parser.getNextPageNum() <= lastPage))
-            viewPage();
+        if (file != null && currentPage != -1 && (lastPage == -1 || currentPage < lastPage))
+            viewPage(currentPage + 1);
     }
 
     // Move to the document's previous page
     private void onPrevPage()
     {
-        if (file != null && parser.getNextPageNum() > 1)
-            viewPage(parser.getNextPageNum() - 2);
+        if (file != null && currentPage > 0)
+            viewPage(currentPage - 1);
     }
 
-    // Show the next page in the document
-    private void viewPage() { viewPage(-1); }
-
-    // Show the page in the document with the provided index (-1 defaults to the next page)
-    private void viewPage(int index)
+    // Show the page in the document with the provided index, reading it in the background if it isn't cached
+    private void viewPage(int page)
     {
-        if (type == Type.UNSUPPORTED || !accessFile())
+        if (type == Type.UNSUPPORTED)
             return;
 
+        ParserResults results = pageCache.get(getKey(page));
+        if (results != null)
+        {
+            showPage(page, results);
+            return;
+        }
+
+        // Keep showing the current page while the requested one is read, but show a placeholder while the document is opened
+        requestedPage = page;
+        nextPageButton.setDisable(true);
+        prevPageButton.setDisable(true);
+        if (contentPane.getChildren().isEmpty())
+        {
+            placeholder.setText(String.format("Opening \"%s\"...", file.getName()));
+            contentPane.getChildren().add(placeholder);
+        }
+
+        // The requested page is read once the page currently being read has finished
+        if (loading == null)
+            readPage(page);
+    }
+
+    // Display a page and start reading the one after it
+    private void showPage(int page, ParserResults results)
+    {
+        currentPage = page;
+        requestedPage = -1;
+
         // Reset the scrollbar to the top of the new page
         scrollPane.setVvalue(0);
+        if (results.isEndOfFile())
+        {
+            lastPage = page;
+            // If the document is a single page, hide the page controls
+            if (lastPage == 0)
+                pageControlsLayout.setVisible(false);
+        }
+        contentPane.getChildren().clear();
+        results.getNodes().forEach(node ->
+        {
+            node.prefWidthProperty().bind(contentPane.widthProperty());
+            contentPane.getChildren().add(node);
+        });
+        updatePageButtons();
+
+        // Read the next page while this one is being read by the user
+        if (!results.isEndOfFile() && loading == null && !pageCache.containsKey(getKey(page + 1)))
+            readPage(page + 1);
+    }
+
+    // Read a page into the cache in the background
+    private void readPage(int page)
+    {
+        // The parser belongs to the background thread until the page has been read
+        final File loadFile = file;
+        final Parser loadParser = parser;
+        final PageKey key = getKey(page);
+        final String loadDirectory = directory;
+        final boolean restore = (directory != null && !pagesRestored);
+        parser = null;
 
-        // Unless reading the next page in the document, move the file reader to its new location
-        if (index == -1 || parser.setNextPage(index, MAX_CHAR_PER_PAGE))
+        final CompletableFuture<Page> result = new CompletableFuture<>();
+        loading = result;
+        loader.execute(() ->
         {
-            ParserResults results = parser.readNextPage(defaultFont, MAX_CHAR_PER_PAGE);
-            if (results == null)
-                lastPage = parser.getNextPageNum() - 1;
+            Parser opened = null;
+            try
+            {
+                opened = (loadParser != null) ? loadParser : open(loadFile);
+                // Start from the pages that were found the last time the document was opened, so that later pages don't need to be found again
+                int id = (opened != null && restore) ? restorePages(loadDirectory, loadFile, opened) : -1;
+                // Skip reading the page if the load was cancelled while the document was being opened
+                boolean moved = false;
+                ParserResults results = null;
+                if (opened != null && !result.isDone())
+                {
+                    // Unless reading the page that the parser is already at, move the parser to its new location
+                    moved = (opened.getNextPageNum() == page || opened.setNextPage(page, MAX_CHAR_PER_PAGE));
+                    // Parsers stop at their last page when asked for a page past the end, which leaves nothing to read
+                    if (moved && opened.getNextPageNum() == page)
+                        results = opened.readNextPage(key.font(), key.maxChars());
+                }
+
+                // If the load was cancelled, nobody else will close the parser
+                if (!result.complete(new Page(opened, moved, results, id)) && opened != null)
+                    opened.close();
+            }
+            catch (Throwable exception)
+            {
+                if (opened != null)
+                    opened.close();
+                result.completeExceptionally(exception);
+            }
+        });
+
+        result.whenCompleteAsync((read, exception) ->
+        {
+            // Another file was loaded or this view was closed while the page was being read
+            if (loading != result)
+            {
+                if (read != null && read.parser() != null)
+                    read.parser().close();
+                return;
+            }
+
+            loading = null;
+            ParserResults results = null;
+            if (exception != null)
+                System.out.printf("DocumentView.readPage: Failed to read \"%s\" (%s)\n", loadFile.getName(), exception);
             else
             {
-                if (results.isEndOfFile())
+                parser = read.parser();
+                results = read.results();
+                if (restore && parser != null)
                 {
-                    lastPage = parser.getNextPageNum() - 1;
-                    // If the document is a single page, hide the page controls
-                    if (lastPage == 0)
-                        pageControlsLayout.setVisible(false);
+                    pagesRestored = true;
+                    fileId = read.fileId();
                 }
-                contentPane.getChildren().clear();
-                results.getNodes().forEach(node ->
+                if (parser != null && !read.moved())
+                    System.out.printf("DocumentView.readPage: Failed to move to page %d\n", page);
+                else if (parser != null && results == null)
                 {
-                    node.prefWidthProperty().bind(contentPane.widthProperty());
-                    contentPane.getChildren().add(node);
-                });
+                    // There was nothing left to read, so the previous page must be the last one (or the document is empty)
+                    lastPage = page - 1;
+                    if (page == 0)
+                        results = new ParserResults(new Vector<>(), true);
+                }
+
+                if (results != null)
+                {
+                    pageCache.put(key, results);
+                    if (results.isEndOfFile())
+                        lastPage = page;
+                }
             }
 
-            // Disable the button to go to the next page only when on the last page
-            if (lastPage != -1 && parser.getNextPageNum() > lastPage)
-                nextPageButton.setDisable(true);
-            else if (nextPageButton.isDisabled())
-                nextPageButton.setDisable(false);
-
-            // Disable the button to go to the previous page only when on the first page
-            if (parser.getNextPageNum() == 1)
-                prevPageButton.setDisable(true);
-            else if (prevPageButton.isDisabled())
-                prevPageButton.setDisable(false);
-        }
-        else
-            System.out.printf("DocumentView.viewPage: Failed to move to page %d\n", index);
+            if (requestedPage != -1)
+            {
+                // Show the page that was read if it's the one the user is waiting for, or read the one they're waiting for next
+                boolean exists = (lastPage == -1 || requestedPage <= lastPage);
+                if (parser != null && ((requestedPage == page) ? (results != null) : exists))
+                    viewPage(requestedPage);
+                else
+                {
+                    // The page that the user is waiting for couldn't be read
+                    requestedPage = -1;
+                    if (currentPage == -1)
+                        placeholder.setText(String.format("Unable to open \"%s\"", loadFile.getName()));
+                    updatePageButtons();
+                }
+            }
+            // Reading ahead may have found the end of the document
+            else if (currentPage != -1)
+                updatePageButtons();
+        }, AsyncScheduler.FX_THREAD);
     }
 
-    private boolean accessFile()
+    private void updatePageButtons()
+    {
+        // Disable the button to go to the next page only when on the last page
+        nextPageButton.setDisable(currentPage == -1 || (lastPage != -1 && currentPage >= lastPage));
+        // Disable the button to go to the previous page only when on the first page
+        prevPageButton.setDisable(currentPage <= 0);
+    }
+
+    // Give a newly opened document the pages saved for its file and return the file's database ID, or -1 if it isn't in the folder
+    private static int restorePages(String directory, File file, Parser parser)
     {
         try
         {
-            // If the appropriate accessor for the current file type is not open, then open it
-            if (parser == null)
-            {
-                if (type == Type.TXT)
-                    parser = new TxtParser(file);
-                else if (type == Type.DOCX)
-                    parser = new DocxParser(file);
-            }
-
-            return true;
+            Integer id = Database.getFileIds(directory, List.of(file.getName())).values().stream().findFirst().orElse(null);
+            if (id == null)
+                return -1;
+            PageIndexStore.get(directory).restore(id, file, MAX_CHAR_PER_PAGE, parser);
+            return id;
         }
-        catch (FileNotFoundException | Docx4JException exception)
+        catch (RuntimeException exception)
         {
-            System.out.printf("DocumentView.accessFile: %s\n", exception.toString());
-            return false;
+            // The document can still be paginated from the start
+            System.out.printf("DocumentView.restorePages: %s\n", exception);
+            return -1;
         }
     }
+
+    // Identify a page of the current file as it would be read for this view
+    private PageKey getKey(int page) { return new PageKey(file.getAbsolutePath(), fileModified, page, defaultFont, MAX_CHAR_PER_PAGE); }
+
+    // Determine the type of document from its file extension
+    private static Type getType(File file)
+    {
+        int dotIndex = file.getName().lastIndexOf('.');
+        if (dotIndex != -1)
+        {
+            String extension = file.getName().substring(dotIndex).toLowerCase();
+            if (extension.equals(".txt"))
+                return Type.TXT;
+            else if (extension.equals(".docx"))
+                return Type.DOCX;
+            else
+                System.out.printf("DocumentView.getType: Unrecognized file extension \"%s\"\n", extension);
+        }
+        else
+            System.out.println("DocumentView.getType: No file extension");
+        return Type.UNSUPPORTED;
+    }
 }
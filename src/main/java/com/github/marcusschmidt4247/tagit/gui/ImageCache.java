@@ -0,0 +1,279 @@
+/* TagIt
+ * ImageCache.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.gui;
+
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Vector;
+
+/**
+ * Keeps decoded images in memory so that every <code>MultiMediaView</code> in the application can share them instead of decoding the same
+ * file again. Images are identified by their file's path, its last modified time, and the size they were decoded at, and an image decoded
+ * at a larger size is also used for requests at smaller sizes.
+ * <p/>
+ * The memory used by the images' pixels is limited to a budget. When it is exceeded, the least recently used images are moved to soft
+ * references, where they can still be used until the garbage collector needs their memory. Should only be used on the JavaFX application
+ * thread.
+ */
+public class ImageCache
+{
+    private static final long MAX_BUDGET_BYTES = 512L * 1024 * 1024;
+    // Assumed size of an image that hasn't finished decoding yet at full resolution
+    private static final long DEFAULT_IMAGE_BYTES = 32L * 1024 * 1024;
+
+    private record Key(String path, long modified, double width, double height) {}
+
+    private static class Entry
+    {
+        final Image image;
+        long bytes;
+
+        Entry(Image image, long bytes)
+        {
+            this.image = image;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final long budgetBytes = Math.min(MAX_BUDGET_BYTES, Runtime.getRuntime().maxMemory() / 4);
+    private static long usedBytes = 0;
+
+    // Ordered from least to most recently used
+    private static final LinkedHashMap<Key, Entry> images = new LinkedHashMap<>(16, 0.75f, true);
+    // Images that were evicted from the budget but may not have been collected yet
+    private static final HashMap<Key, SoftReference<Image>> overflow = new HashMap<>();
+    // Every key in 'images' and 'overflow' for each file path
+    private static final HashMap<String, Vector<Key>> keysByPath = new HashMap<>();
+
+    private static long hits = 0;
+    private static long softHits = 0;
+    private static long misses = 0;
+
+    /**
+     * Gets a cached image of a file.
+     * @param file the image file
+     * @param width the width in pixels that the image is needed at, or <code>0</code> for its full width
+     * @param height the height in pixels that the image is needed at, or <code>0</code> for its full height
+     * @return the smallest cached image that is at least as large as the requested size, which may still be loading; <code>null</code> if
+     * there isn't one
+     */
+    public static Image get(File file, double width, double height)
+    {
+        String path = file.getAbsolutePath();
+        Vector<Key> keys = keysByPath.get(path);
+        if (keys != null)
+        {
+            long modified = file.lastModified();
+            Key best = null;
+            for (Iterator<Key> iterator = keys.iterator(); iterator.hasNext(); )
+            {
+                Key key = iterator.next();
+                // The file has changed since this image was decoded
+                if (key.modified() != modified)
+                {
+                    iterator.remove();
+                    discard(key);
+                }
+                else if (covers(key.width(), width) && covers(key.height(), height) && (best == null || isSmaller(key, best)))
+                    best = key;
+            }
+
+            if (best != null)
+            {
+                Entry entry = images.get(best);
+                if (entry != null)
+                {
+                    hits++;
+                    return entry.image;
+                }
+
+                // Bring the image back into the budget if it hasn't been collected
+                Image image = overflow.remove(best).get();
+                if (image != null)
+                {
+                    softHits++;
+                    add(best, image);
+                    return image;
+                }
+                keys.remove(best);
+            }
+            if (keys.isEmpty())
+                keysByPath.remove(path);
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Gets a cached image of a file, or starts decoding the file in the background and caches it if there isn't one.
+     * @param file the image file
+     * @param width the width in pixels to decode the image at, or <code>0</code> for its full width
+     * @param height the height in pixels to decode the image at, or <code>0</code> for its full height
+     * @return the image, which may still be loading
+     */
+    public static Image load(File file, double width, double height)
+    {
+        Image image = get(file, width, height);
+        if (image == null)
+        {
+            image = new Image(file.toURI().toString(), width, height, true, true, true);
+            put(file, image);
+        }
+        return image;
+    }
+
+    /**
+     * Adds an image of a file to the cache, replacing any image of the file that was decoded at the same size.
+     * @param file the image file
+     * @param image the image, which must have been created with the file's URL and may still be loading
+     */
+    public static void put(File file, Image image)
+    {
+        Key key = new Key(file.getAbsolutePath(), file.lastModified(), image.getRequestedWidth(), image.getRequestedHeight());
+        discard(key);
+        Vector<Key> keys = keysByPath.computeIfAbsent(key.path(), path -> new Vector<>());
+        if (!keys.contains(key))
+            keys.add(key);
+        add(key, image);
+
+        if (image.isError())
+            remove(file, image);
+        else if (image.getProgress() < 1.0)
+        {
+            // Count the image's actual size once it is decoded, or forget it if it can't be
+            image.progressProperty().addListener((observable, oldValue, newValue) ->
+            {
+                Entry entry = images.get(key);
+                if (newValue.doubleValue() >= 1.0 && !image.isError() && entry != null && entry.image == image)
+                {
+                    usedBytes += getSize(image) - entry.bytes;
+                    entry.bytes = getSize(image);
+                    trim();
+                }
+            });
+            image.errorProperty().addListener((observable, oldValue, newValue) ->
+            {
+                if (newValue)
+                    remove(file, image);
+            });
+        }
+    }
+
+    /**
+     * Removes an image from the cache, such as when it is cancelled before it finishes loading.
+     * @param file the image file
+     * @param image the image to remove
+     */
+    public static void remove(File file, Image image)
+    {
+        Vector<Key> keys = keysByPath.get(file.getAbsolutePath());
+        if (keys == null)
+            return;
+
+        for (Iterator<Key> iterator = keys.iterator(); iterator.hasNext(); )
+        {
+            Key key = iterator.next();
+            Entry entry = images.get(key);
+            SoftReference<Image> reference = overflow.get(key);
+            if ((entry != null && entry.image == image) || (reference != null && reference.get() == image))
+            {
+                iterator.remove();
+                discard(key);
+            }
+        }
+        if (keys.isEmpty())
+            keysByPath.remove(file.getAbsolutePath());
+    }
+
+    /**
+     * Summarizes how effective the cache has been since the application started.
+     * @return a description of the cache's hit rate and memory use
+     */
+    public static String getStatistics()
+    {
+        long total = hits + softHits + misses;
+        double hitRate = (total > 0) ? (100.0 * (hits + softHits) / total) : 0.0;
+        return String.format("%d hits (%d from soft references), %d misses (%.1f%% hit rate), %d images using %d of %d MB", hits + softHits, softHits,
+                misses, hitRate, images.size(), usedBytes / (1024 * 1024), budgetBytes / (1024 * 1024));
+    }
+
+    // Add an image to the budget, evicting the least recently used images if it no longer fits
+    private static void add(Key key, Image image)
+    {
+        Entry entry = new Entry(image, (image.getProgress() < 1.0) ? getSize(key.width(), key.height()) : getSize(image));
+        images.put(key, entry);
+        usedBytes += entry.bytes;
+        trim();
+    }
+
+    private static void trim()
+    {
+        Iterator<Map.Entry<Key, Entry>> iterator = images.entrySet().iterator();
+        // Always keep the most recently used image, even if it is larger than the whole budget
+        while (usedBytes > budgetBytes && images.size() > 1 && iterator.hasNext())
+        {
+            Map.Entry<Key, Entry> eldest = iterator.next();
+            iterator.remove();
+            usedBytes -= eldest.getValue().bytes;
+            overflow.put(eldest.getKey(), new SoftReference<>(eldest.getValue().image));
+        }
+
+        // Forget the soft references that have been collected
+        overflow.entrySet().removeIf(entry ->
+        {
+            if (entry.getValue().get() == null)
+            {
+                Vector<Key> keys = keysByPath.get(entry.getKey().path());
+                if (keys != null && keys.remove(entry.getKey()) && keys.isEmpty())
+                    keysByPath.remove(entry.getKey().path());
+                return true;
+            }
+            return false;
+        });
+    }
+
+    // Remove a key from the budget and the overflow, but not from 'keysByPath'
+    private static void discard(Key key)
+    {
+        Entry entry = images.remove(key);
+        if (entry != null)
+            usedBytes -= entry.bytes;
+        overflow.remove(key);
+    }
+
+    // Check if a size that an image was decoded at covers the size it is needed at (a size of 0 means full resolution)
+    private static boolean covers(double decodedSize, double neededSize)
+    {
+        return decodedSize <= 0 || (neededSize > 0 && decodedSize >= neededSize);
+    }
+
+    private static boolean isSmaller(Key key, Key other)
+    {
+        // Full resolution images are the largest
+        if (key.width() <= 0 || key.height() <= 0)
+            return false;
+        else if (other.width() <= 0 || other.height() <= 0)
+            return true;
+        return key.width() * key.height() < other.width() * other.height();
+    }
+
+    private static long getSize(Image image) { return (long) image.getWidth() * (long) image.getHeight() * 4; }
+
+    // Get the most memory that an image decoded at a size could use
+    private static long getSize(double width, double height)
+    {
+        if (width <= 0 || height <= 0)
+            return DEFAULT_IMAGE_BYTES;
+        return (long) width * (long) height * 4;
+    }
+}
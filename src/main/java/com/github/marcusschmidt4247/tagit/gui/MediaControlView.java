@@ -19,17 +19,37 @@ import javafx.scene.layout.Priority;
 import javafx.scene.layout.StackPane;
 import javafx.scene.layout.VBox;
 import javafx.scene.media.Media;
+import javafx.scene.media.MediaException;
 import javafx.scene.media.MediaPlayer;
 import javafx.scene.media.MediaView;
 import javafx.util.Duration;
 import org.kordamp.ikonli.javafx.FontIcon;
 
 import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MediaControlView extends StackPane
 {
+    private static final ExecutorService disposer = Executors.newSingleThreadExecutor(runnable ->
+    {
+        Thread thread = new Thread(runnable, "MediaControlView");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Time from loading a video until it started playing
+    private static long prerolledLoads = 0;
+    private static long prerolledNanos = 0;
+    private static long coldLoads = 0;
+    private static long coldNanos = 0;
+
     private final MediaView mediaView;
     private MediaPlayer mediaPlayer = null;
+    // Hidden player for the file that is expected to be loaded next
+    private final MediaView prerollView;
+    private MediaPlayer prerollPlayer = null;
+    private File prerollFile = null;
 
     private final Button playButton;
     private final Button volumeButton;
@@ -63,6 +83,11 @@ public class MediaControlView extends StackPane
         });
         getChildren().add(mediaView);
 
+        prerollView = new MediaView();
+        prerollView.setManaged(false);
+        prerollView.setVisible(false);
+        getChildren().add(prerollView);
+
         // Create a horizontal layout where the media player controls will be placed
         HBox controlBox = new HBox();
         controlBox.setAlignment(Pos.CENTER_LEFT);
@@ -177,38 +202,103 @@ public class MediaControlView extends StackPane
     }
 
     /**
-     * Loads and begins playing a media file. The volume setting is preserved from the previous media played.
+     * Loads and begins playing a media file. The volume setting is preserved from the previous media played. If the file was prerolled, its
+     * player is swapped in instead of creating a new one.
      * @param file the media file to play
      */
     public void load(File file)
     {
-        // Create a new MediaPlayer that will play the provided File and assign the previous audio settings to it
-        Media media = new Media(file.toPath().toUri().toString());
-        if (mediaPlayer != null)
-            mediaPlayer.dispose();
-        mediaPlayer = new MediaPlayer(media);
-        mediaPlayer.setAutoPlay(true);
-        mediaPlayer.setMute(mute);
-        mediaPlayer.setVolume(volume);
+        long loadStart = System.nanoTime();
+        MediaPlayer player = null;
+        if (prerollPlayer != null && file.equals(prerollFile) && prerollPlayer.getStatus() != MediaPlayer.Status.HALTED)
+            player = prerollPlayer;
+        else
+            unloadPreroll();
+        prerollPlayer = null;
+        prerollFile = null;
+
+        boolean prerolled = (player != null);
+        if (prerolled)
+            prerollView.setMediaPlayer(null);
+        else
+            player = new MediaPlayer(new Media(file.toPath().toUri().toString()));
+        unload();
+        mediaPlayer = player;
+
+        // Assign the previous audio settings to the new player
+        final MediaPlayer current = mediaPlayer;
+        current.setMute(mute);
+        current.setVolume(volume);
         // Create a listener that updates the timeline slider and time label to accurately represent the current time in this media
-        mediaPlayer.currentTimeProperty().addListener(new ChangeListener<Duration>()
+        current.currentTimeProperty().addListener(new ChangeListener<Duration>()
         {
+            private boolean firstFrame = true;
+
             @Override
             public void changed(ObservableValue<? extends Duration> observableValue, Duration duration, Duration t1)
             {
-                timeSlider.setValue(timeSlider.getMax() * (mediaPlayer.getCurrentTime().toSeconds() / media.getDuration().toSeconds()));
-                currentTime.setText(formatTime(mediaPlayer.getCurrentTime()));
+                // Playback has started once the time first moves forward
+                if (firstFrame)
+                {
+                    firstFrame = false;
+                    recordFirstFrame(System.nanoTime() - loadStart, prerolled);
+                }
+                timeSlider.setValue(timeSlider.getMax() * (current.getCurrentTime().toSeconds() / current.getMedia().getDuration().toSeconds()));
+                currentTime.setText(formatTime(current.getCurrentTime()));
             }
         });
-        mediaPlayer.setOnReady(() ->
+        // Set the MediaPlayer to loop
+        current.setOnEndOfMedia(() -> current.seek(current.getStartTime()));
+        mediaView.setMediaPlayer(current);
+
+        // A prerolled player may have already become ready, in which case it won't notify again
+        Runnable onReady = () ->
         {
-            totalTime.setText(String.format(" / %s", formatTime(mediaPlayer.getTotalDuration())));
-            mediaRatio = (double) media.getWidth() / media.getHeight();
+            totalTime.setText(String.format(" / %s", formatTime(current.getTotalDuration())));
+            mediaRatio = (double) current.getMedia().getWidth() / current.getMedia().getHeight();
             centerMedia();
-        });
-        // Set the MediaPlayer to loop
-        mediaPlayer.setOnEndOfMedia(() -> mediaPlayer.seek(mediaPlayer.getStartTime()));
-        mediaView.setMediaPlayer(mediaPlayer);
+        };
+        if (current.getStatus() == MediaPlayer.Status.READY || current.getStatus() == MediaPlayer.Status.PAUSED)
+        {
+            onReady.run();
+            current.play();
+        }
+        else
+        {
+            current.setAutoPlay(true);
+            current.setOnReady(onReady);
+        }
+    }
+
+    /**
+     * Prepares a media file that is likely to be played next in a hidden player, paused at its start, so that it can begin playing
+     * immediately when it is loaded. Replaces any file that was prerolled before.
+     * @param file the media file to prepare, or <code>null</code> to only release the previously prepared file
+     */
+    public void preroll(File file)
+    {
+        if (file != null && file.equals(prerollFile))
+            return;
+
+        unloadPreroll();
+        if (file != null)
+        {
+            try
+            {
+                // Decode the first frame into a hidden view, without any audio, and wait there
+                MediaPlayer player = new MediaPlayer(new Media(file.toPath().toUri().toString()));
+                player.setMute(true);
+                player.setOnReady(player::pause);
+                prerollView.setMediaPlayer(player);
+                prerollPlayer = player;
+                prerollFile = file;
+            }
+            catch (MediaException exception)
+            {
+                // The file will show its error when it is loaded
+                System.out.printf("MediaControlView.preroll: Unable to preroll \"%s\" (%s)\n", file.getName(), exception.getMessage());
+            }
+        }
     }
 
     /**
@@ -218,12 +308,23 @@ public class MediaControlView extends StackPane
     {
         if (mediaPlayer != null)
         {
-            mediaPlayer.dispose();
+            mediaView.setMediaPlayer(null);
+            dispose(mediaPlayer);
             mediaPlayer = null;
             mediaRatio = -1;
         }
     }
 
+    /**
+     * Summarizes how long videos have taken to start playing since the application started.
+     * @return a description of the average time to the first frame with and without prerolling
+     */
+    public static String getStatistics()
+    {
+        return String.format("%d prerolled loads averaging %.0f ms and %d other loads averaging %.0f ms to the first frame", prerolledLoads,
+                getAverageMillis(prerolledNanos, prerolledLoads), coldLoads, getAverageMillis(coldNanos, coldLoads));
+    }
+
     public void setVisibility(boolean visible)
     {
         setVisible(visible);
@@ -234,11 +335,40 @@ public class MediaControlView extends StackPane
         else if (!visible)
         {
             setControlsVisible(false);
-            if (mediaPlayer != null)
-                mediaPlayer.dispose();
+            unload();
         }
     }
 
+    private void unloadPreroll()
+    {
+        if (prerollPlayer != null)
+        {
+            prerollView.setMediaPlayer(null);
+            dispose(prerollPlayer);
+            prerollPlayer = null;
+            prerollFile = null;
+        }
+    }
+
+    // Tearing down a player's pipeline can take a noticeable amount of time, so it is done in the background
+    private static void dispose(MediaPlayer player) { disposer.execute(player::dispose); }
+
+    private static synchronized void recordFirstFrame(long nanos, boolean prerolled)
+    {
+        if (prerolled)
+        {
+            prerolledLoads++;
+            prerolledNanos += nanos;
+        }
+        else
+        {
+            coldLoads++;
+            coldNanos += nanos;
+        }
+    }
+
+    private static double getAverageMillis(long nanos, long loads) { return (loads > 0) ? (nanos / 1_000_000.0 / loads) : 0.0; }
+
     /**
      * Centers the <code>MediaView</code>'s content in its parent <code>StackPane</code>. The <code>MediaPlayer</code> preserves
      * its content's aspect ratio but needs a translation along the axis the media does not fill.
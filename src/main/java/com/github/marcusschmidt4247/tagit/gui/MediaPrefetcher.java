@@ -0,0 +1,193 @@
+/* TagIt
+ * MediaPrefetcher.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.gui;
+
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
+import com.github.marcusschmidt4247.tagit.parsers.Parser;
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Loads the files that are likely to be viewed next before they are needed. Images are decoded on JavaFX's background loading threads and
+ * added to the <code>ImageCache</code> once they have finished, and documents are opened on a virtual thread. The files to load are given in
+ * order of priority, and loading stops early once the decoded images would take up more than the memory budget.
+ * <p/>
+ * Only the most recent set of files is kept: when a new set is given, anything that isn't in it is cancelled or closed. Images are only
+ * cancelled while nothing else can see them, so an image that is taken to be displayed or that has been shared through the
+ * <code>ImageCache</code> is never cancelled. Should only be used on the JavaFX application thread.
+ */
+public class MediaPrefetcher
+{
+    private static final long MAX_BUDGET_BYTES = 512L * 1024 * 1024;
+    // Assumed size of an image that hasn't finished decoding yet at full resolution
+    private static final long DEFAULT_IMAGE_BYTES = 32L * 1024 * 1024;
+
+    private static final ExecutorService documentExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final long budgetBytes = Math.min(MAX_BUDGET_BYTES, Runtime.getRuntime().maxMemory() / 4);
+
+    private final LinkedHashMap<File, Image> images = new LinkedHashMap<>();
+    // The images in 'images' that this prefetcher started and that nothing else has seen yet
+    private final HashSet<Image> unshared = new HashSet<>();
+    private final LinkedHashMap<File, CompletableFuture<Parser>> documents = new LinkedHashMap<>();
+
+    /**
+     * Starts loading a set of files and forgets any loaded files that aren't in it.
+     * @param files the files to load, most likely to be viewed first
+     * @param width the width in pixels to decode images at, or <code>0</code> for their full width
+     * @param height the height in pixels to decode images at, or <code>0</code> for their full height
+     */
+    public void prefetch(List<File> files, double width, double height)
+    {
+        // Cancel everything that has fallen out of the set
+        images.entrySet().removeIf(entry ->
+        {
+            // Images decoded smaller than the new size are also replaced
+            if (!files.contains(entry.getKey()) || !isLargeEnough(entry.getValue(), width, height))
+            {
+                // Images that finished loading stay in the shared cache, and the rest haven't been seen by anything else
+                if (unshared.remove(entry.getValue()))
+                    entry.getValue().cancel();
+                return true;
+            }
+            return false;
+        });
+        documents.entrySet().removeIf(entry ->
+        {
+            if (!files.contains(entry.getKey()))
+            {
+                close(entry.getValue());
+                return true;
+            }
+            return false;
+        });
+
+        long usedBytes = 0;
+        for (File file : files)
+        {
+            switch (FileTypes.getType(file.getName()))
+            {
+                case IMAGE:
+                    Image image = images.get(file);
+                    if (image == null)
+                    {
+                        // Another view may have already decoded the image
+                        image = ImageCache.get(file, width, height);
+                        if (image == null)
+                        {
+                            if (usedBytes + getSize(width, height) > budgetBytes)
+                                continue;
+                            image = load(file, width, height);
+                        }
+                        images.put(file, image);
+                    }
+                    usedBytes += getSize(image, width, height);
+                    break;
+                case TEXT:
+                    if (!documents.containsKey(file))
+                        documents.put(file, CompletableFuture.supplyAsync(() -> DocumentView.open(file), documentExecutor));
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Takes a prefetched image that hasn't finished loading yet, so that it can be displayed without being cancelled by a later prefetch.
+     * The image is no longer prefetched, and the caller becomes responsible for adding it to the <code>ImageCache</code>. Images that have
+     * finished loading are already in the cache.
+     * @param file the image file
+     * @param width the width in pixels that the image is needed at, or <code>0</code> for its full width
+     * @param height the height in pixels that the image is needed at, or <code>0</code> for its full height
+     * @return the loading image; <code>null</code> if it was not prefetched, is too small, or is already in the cache
+     */
+    public Image takeImage(File file, double width, double height)
+    {
+        Image image = images.get(file);
+        if (image != null && unshared.contains(image) && !image.isError() && isLargeEnough(image, width, height))
+        {
+            images.remove(file);
+            unshared.remove(image);
+            return image;
+        }
+        return null;
+    }
+
+    /**
+     * Takes a prefetched document if it has finished opening. The document is no longer prefetched, and the caller becomes responsible for
+     * closing it.
+     * @param file the document file
+     * @return the open document; <code>null</code> if it was not prefetched or isn't ready
+     */
+    public Parser takeDocument(File file)
+    {
+        CompletableFuture<Parser> document = documents.get(file);
+        if (document != null && document.isDone())
+        {
+            documents.remove(file);
+            return document.getNow(null);
+        }
+        return null;
+    }
+
+    /**
+     * Cancels and closes everything that was prefetched.
+     */
+    public void clear() { prefetch(List.of(), 0, 0); }
+
+    // Start decoding an image that is only shared through the cache once it has finished, so that it can be cancelled until then
+    private Image load(File file, double width, double height)
+    {
+        Image image = new Image(file.toURI().toString(), width, height, true, true, true);
+        unshared.add(image);
+        image.progressProperty().addListener((observable, oldValue, newValue) ->
+        {
+            // Leave the image to whoever took it
+            if (newValue.doubleValue() >= 1.0 && unshared.remove(image) && !image.isError())
+                ImageCache.put(file, image);
+        });
+        return image;
+    }
+
+    // Check if an image was decoded at a size at least as large as the one requested (a requested size of 0 means full resolution)
+    private static boolean isLargeEnough(Image image, double width, double height)
+    {
+        return covers(image.getRequestedWidth(), width) && covers(image.getRequestedHeight(), height);
+    }
+
+    private static boolean covers(double decodedSize, double neededSize)
+    {
+        return decodedSize <= 0 || (neededSize > 0 && decodedSize >= neededSize);
+    }
+
+    // Estimate the memory used by an image's pixels, or the most it could use at the requested size if it is still loading
+    private static long getSize(Image image, double width, double height)
+    {
+        if (image.getProgress() < 1.0 || image.isError())
+            return getSize(width, height);
+        return (long) image.getWidth() * (long) image.getHeight() * 4;
+    }
+
+    private static long getSize(double width, double height)
+    {
+        if (width <= 0 || height <= 0)
+            return DEFAULT_IMAGE_BYTES;
+        return (long) width * (long) height * 4;
+    }
+
+    private static void close(CompletableFuture<Parser> document)
+    {
+        document.thenAccept(parser ->
+        {
+            if (parser != null)
+                parser.close();
+        });
+    }
+}
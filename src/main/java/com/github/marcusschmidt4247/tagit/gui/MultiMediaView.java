@@ -7,23 +7,34 @@ package com.github.marcusschmidt4247.tagit.gui;
 
 import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
 import com.github.marcusschmidt4247.tagit.miscellaneous.OffsetDoubleBinding;
+import javafx.animation.PauseTransition;
 import javafx.beans.value.ObservableDoubleValue;
 import javafx.scene.control.Label;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.layout.StackPane;
+import javafx.stage.Window;
+import javafx.util.Duration;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
+import java.util.List;
 
 public class MultiMediaView extends StackPane
 {
+    // Images are decoded at a multiple of this many pixels, so that small changes in size don't need a new decode
+    private static final int DECODE_STEP = 256;
+
     private Label errorLabel;
     private DocumentView documentView;
     private ImageView imageView;
     private MediaControlView mediaControlView;
 
+    private final MediaPrefetcher prefetcher = new MediaPrefetcher();
+    // Waits for the view to stop being resized before decoding the current image at a higher resolution
+    private final PauseTransition resizeDelay = new PauseTransition(Duration.millis(250));
+    private File imageFile = null;
+    private Image pendingImage = null;
+
     /**
      * Performs necessary setup. Must be called before any file is loaded.
      * @param bordered <code>true</code> if this view is styled with a border; <code>false</code> otherwise
@@ -51,6 +62,10 @@ public class MultiMediaView extends StackPane
         imageView.fitHeightProperty().bind(heightBinding);
         imageView.fitWidthProperty().bind(widthBinding);
         getChildren().add(imageView);
+        // Images are only decoded at the size they are displayed at, so decode the image again if it has become too small for the view
+        resizeDelay.setOnFinished(event -> reloadImage());
+        imageView.fitWidthProperty().addListener((observable, oldValue, newValue) -> onResize(oldValue.doubleValue(), newValue.doubleValue()));
+        imageView.fitHeightProperty().addListener((observable, oldValue, newValue) -> onResize(oldValue.doubleValue(), newValue.doubleValue()));
 
         mediaControlView = new MediaControlView();
         mediaControlView.setVisible(false);
@@ -65,6 +80,13 @@ public class MultiMediaView extends StackPane
         getChildren().add(documentView);
     }
 
+    /**
+     * Sets the <code>ManagedFolder</code> that the displayed files belong to, so that documents can reuse the pages found the last time they
+     * were opened. Must be called after <code>init()</code>.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public void setDirectory(String directory) { documentView.setDirectory(directory); }
+
     /**
      * Loads and displays a file with the correct media view.
      * @param file the source in device storage to be loaded
@@ -77,6 +99,9 @@ public class MultiMediaView extends StackPane
             return;
         }
 
+        cancelReload();
+        imageFile = null;
+
         FileTypes.Type fileType = FileTypes.Type.UNSUPPORTED;
         if (file == null)
             errorLabel.setText("No files");
@@ -84,19 +109,11 @@ public class MultiMediaView extends StackPane
         {
             fileType = FileTypes.getType(file.getName());
             if (fileType == FileTypes.Type.TEXT)
-                documentView.load(file);
+                documentView.load(file, prefetcher.takeDocument(file));
             else if (fileType == FileTypes.Type.IMAGE)
             {
-                try (FileInputStream input = new FileInputStream(file))
-                {
-                    Image image = new Image(input);
-                    imageView.setImage(image);
-                }
-                catch (IOException e)
-                {
-                    errorLabel.setText(String.format("Unable to load image file \"%s\"", file.getName()));
+                if (!loadImage(file))
                     fileType = FileTypes.Type.UNSUPPORTED;
-                }
             }
             else if (fileType == FileTypes.Type.VIDEO)
                 mediaControlView.load(file);
@@ -107,6 +124,162 @@ public class MultiMediaView extends StackPane
         setVisibility(fileType);
     }
 
+    /**
+     * Starts loading files in the background that are likely to be displayed soon, and cancels any earlier prefetching of files that aren't
+     * in the list. Only images and documents are prefetched.
+     * @param files the files to load, most likely to be displayed first
+     */
+    public void prefetch(List<File> files) { prefetcher.prefetch(files, getDecodeWidth(), getDecodeHeight()); }
+
+    /**
+     * Prepares the video that is expected to be displayed next, so that it starts playing without delay if it is loaded. Only one video is
+     * prepared at a time.
+     * @param file the video file, or <code>null</code> to release the previously prepared video
+     */
+    public void preroll(File file)
+    {
+        if (mediaControlView != null)
+            mediaControlView.preroll(file);
+    }
+
+    // Display an image file, decoded at the size of this view, and return false if it can't be loaded
+    private boolean loadImage(File file)
+    {
+        // Use the cached image if there is one, such as one that was prefetched or is shown in another view, or take the prefetcher's image if
+        // it is still loading so that the next prefetch doesn't cancel it
+        Image image = ImageCache.get(file, getDecodeWidth(), getDecodeHeight());
+        if (image == null)
+        {
+            image = prefetcher.takeImage(file, getDecodeWidth(), getDecodeHeight());
+            if (image != null)
+                ImageCache.put(file, image);
+            else
+                image = ImageCache.load(file, getDecodeWidth(), getDecodeHeight());
+        }
+        imageView.setImage(image);
+        imageFile = file;
+
+        // Images are decoded in the background, so errors are only known once loading has finished
+        if (image.isError())
+        {
+            showImageError(file);
+            return false;
+        }
+
+        final Image loading = image;
+        image.errorProperty().addListener((observable, oldValue, newValue) ->
+        {
+            if (newValue && imageView.getImage() == loading)
+            {
+                showImageError(file);
+                setVisibility(FileTypes.Type.UNSUPPORTED);
+            }
+        });
+        // The view may have grown while the image was being decoded
+        image.progressProperty().addListener((observable, oldValue, newValue) ->
+        {
+            if (newValue.doubleValue() >= 1.0 && imageView.getImage() == loading)
+                reloadImage();
+        });
+        return true;
+    }
+
+    private void onResize(double oldSize, double newSize)
+    {
+        // Shrinking never needs a new decode, since the image view scales the current image down
+        if (imageFile != null && newSize > oldSize)
+            resizeDelay.playFromStart();
+    }
+
+    // Decode the current image again in the background if the view has grown larger than the image, and swap it in once it is ready
+    private void reloadImage()
+    {
+        Image current = imageView.getImage();
+        if (imageFile == null || current == null || current.isError() || current.getProgress() < 1.0)
+            return;
+        // An image without a requested size was decoded at its full resolution
+        if (current.getRequestedWidth() <= 0 || current.getRequestedHeight() <= 0)
+            return;
+
+        // The image is scaled to fit within the view while keeping its ratio, so only the dimension that reaches the edge of the view matters
+        double scale = getOutputScale();
+        double displayedWidth = Math.min(imageView.getFitWidth(), imageView.getFitHeight() * current.getWidth() / current.getHeight()) * scale;
+        if (displayedWidth <= current.getWidth() + 1)
+            return;
+
+        cancelReload();
+        final File file = imageFile;
+        // Another view may have already decoded the file at this size
+        Image cached = ImageCache.get(file, getDecodeWidth(), getDecodeHeight());
+        if (cached != null)
+        {
+            // An image that is still loading for another view is shared, so it is waited for but never cancelled
+            if (cached.getProgress() >= 1.0)
+            {
+                if (!cached.isError())
+                    imageView.setImage(cached);
+            }
+            else
+            {
+                cached.progressProperty().addListener((observable, oldValue, newValue) ->
+                {
+                    if (newValue.doubleValue() >= 1.0 && !cached.isError() && imageView.getImage() == current)
+                        imageView.setImage(cached);
+                });
+            }
+            return;
+        }
+
+        // The larger image is only shared through the cache once it has finished, so that it can be cancelled until then
+        final Image larger = new Image(file.toURI().toString(), getDecodeWidth(), getDecodeHeight(), true, true, true);
+        pendingImage = larger;
+        larger.progressProperty().addListener((observable, oldValue, newValue) ->
+        {
+            if (newValue.doubleValue() >= 1.0 && pendingImage == larger)
+            {
+                pendingImage = null;
+                // Keep the smaller image if the larger one couldn't be decoded or another file has been loaded since
+                if (!larger.isError())
+                {
+                    ImageCache.put(file, larger);
+                    if (imageFile == file)
+                        imageView.setImage(larger);
+                }
+            }
+        });
+    }
+
+    private void cancelReload()
+    {
+        resizeDelay.stop();
+        // The pending image hasn't been shared with anything else yet
+        if (pendingImage != null)
+        {
+            pendingImage.cancel();
+            pendingImage = null;
+        }
+    }
+
+    // Get the size in pixels that images should be decoded at to fill this view, or 0 to decode at full resolution if it isn't laid out yet
+    private double getDecodeWidth() { return roundUpToStep(imageView.getFitWidth() * getOutputScale()); }
+    private double getDecodeHeight() { return roundUpToStep(imageView.getFitHeight() * getOutputScale()); }
+
+    private static double roundUpToStep(double size) { return (size > 0) ? Math.ceil(size / DECODE_STEP) * DECODE_STEP : 0; }
+
+    // Get the ratio of physical pixels to layout pixels on the screen that this view is shown on
+    private double getOutputScale()
+    {
+        Window window = (getScene() != null) ? getScene().getWindow() : null;
+        return (window != null) ? Math.max(window.getOutputScaleX(), window.getOutputScaleY()) : 1.0;
+    }
+
+    private void showImageError(File file)
+    {
+        imageFile = null;
+        imageView.setImage(null);
+        errorLabel.setText(String.format("Unable to load image file \"%s\"", file.getName()));
+    }
+
     // Set the visibility for each component of the MultiMediaView according to the type of file it is currently displaying
     private void setVisibility(FileTypes.Type fileType)
     {
@@ -0,0 +1,83 @@
+/* TagIt
+ * TagSearchField.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.gui;
+
+import com.github.marcusschmidt4247.tagit.miscellaneous.TagIndex;
+import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
+import javafx.scene.control.TextField;
+import javafx.scene.control.TreeItem;
+import javafx.util.StringConverter;
+import org.controlsfx.control.textfield.AutoCompletionBinding;
+import org.controlsfx.control.textfield.TextFields;
+
+import java.util.Vector;
+
+/**
+ * A text field that suggests tags from its <code>ManagedFolder</code>'s <code>TagIndex</code> as the user types. Choosing a suggestion
+ * expands the path to that tag in a <code>DynamicCheckTreeView</code>, selects it, and scrolls it into view.
+ */
+public final class TagSearchField extends TextField
+{
+    private static final int MAX_SUGGESTIONS = 15;
+
+    private TagNode root = null;
+    private DynamicCheckTreeView treeView = null;
+
+    public TagSearchField()
+    {
+        super();
+        setPromptText("Find tag");
+    }
+
+    /**
+     * Connects this field to a tag tree. Suggestions are fetched from the index on a background thread, so the index is loaded from the
+     * database the first time the user types rather than when the window opens.
+     * @param root the root of the tag tree to search
+     * @param treeView the view in which chosen tags will be revealed
+     */
+    public void init(TagNode root, DynamicCheckTreeView treeView)
+    {
+        if (this.root == null)
+        {
+            this.root = root;
+            this.treeView = treeView;
+
+            StringConverter<TagIndex.Match> converter = new StringConverter<>()
+            {
+                @Override
+                public String toString(TagIndex.Match match) { return (match != null) ? match.path() : ""; }
+
+                @Override
+                public TagIndex.Match fromString(String string) { return null; }
+            };
+
+            AutoCompletionBinding<TagIndex.Match> binding = TextFields.bindAutoCompletion(this, request ->
+            {
+                if (request.isCancelled() || request.getUserText().isBlank())
+                    return new Vector<>();
+                return TagIndex.get(root.getDirectory()).search(request.getUserText(), MAX_SUGGESTIONS);
+            }, converter);
+            binding.setVisibleRowCount(10);
+            binding.setOnAutoCompleted(event -> reveal(event.getCompletion()));
+        }
+    }
+
+    // Expand the tree to the tag described by 'match' and select it
+    private void reveal(TagIndex.Match match)
+    {
+        TagNode node = root.findNode(match.lineage());
+        TreeItem<String> item = (node != null) ? treeView.findItem(node, true) : null;
+        if (item != null)
+        {
+            treeView.getSelectionModel().select(item);
+            treeView.scrollTo(treeView.getRow(item));
+            treeView.requestFocus();
+            clear();
+        }
+        else
+            System.out.printf("TagSearchField.reveal: Unable to find \"%s\" in tree\n", match.path());
+    }
+}
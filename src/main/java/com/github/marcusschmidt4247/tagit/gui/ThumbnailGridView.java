@@ -0,0 +1,463 @@
+/* TagIt
+ * ThumbnailGridView.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.gui;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
+import com.github.marcusschmidt4247.tagit.miscellaneous.ThumbnailStore;
+import com.github.marcusschmidt4247.tagit.tasks.AsyncScheduler;
+import javafx.application.Platform;
+import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.SimpleIntegerProperty;
+import javafx.geometry.Insets;
+import javafx.geometry.Pos;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.OverrunStyle;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.MouseButton;
+import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.StackPane;
+import javafx.scene.layout.VBox;
+import org.kordamp.ikonli.javafx.FontIcon;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntConsumer;
+
+/**
+ * Shows a list of files as a grid of thumbnails. The grid is a <code>ListView</code> of rows, so only the rows that are visible have cells,
+ * and the cells are reused as the grid scrolls. File IDs and thumbnails are only read for the rows that are shown: IDs are fetched in batches
+ * from the database, thumbnails are read from the folder's <code>ThumbnailStore</code> on background threads, and a thumbnail that hasn't
+ * started loading by the time its cell shows a different file is skipped.
+ * <p/>
+ * Files are selected by clicking them, with the shortcut key to add or remove single files and the shift key to select a range. One file is
+ * also the current file, which is the one that was clicked or moved to last.
+ */
+public class ThumbnailGridView extends ListView<Integer>
+{
+    private static final double TILE_WIDTH = 150.0;
+    private static final double THUMBNAIL_SIZE = 128.0;
+    // Room for the vertical scroll bar and the list's insets
+    private static final double SCROLL_BAR_WIDTH = 20.0;
+    private static final int MAX_CACHED_THUMBNAILS = 512;
+
+    private static final ExecutorService thumbnailLoader = Executors.newFixedThreadPool(2, runnable ->
+    {
+        Thread thread = new Thread(runnable, "ThumbnailGridView");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private String directory = null;
+    private List<String> files = List.of();
+    private int columns = 1;
+    private int current = -1;
+    // The file that a shift-click selects from
+    private int anchor = -1;
+    private final BitSet selected = new BitSet();
+    private final IntegerProperty selectedCount = new SimpleIntegerProperty(0);
+    private IntConsumer onSelect = null;
+    private IntConsumer onOpen = null;
+
+    // The cells that have been created, which are reused for whichever rows are visible
+    private final Vector<TileRow> rows = new Vector<>();
+    // File IDs (or -1 if a file wasn't found) are only fetched for files that have been shown
+    private final HashMap<String, Integer> fileIds = new HashMap<>();
+    private final LinkedHashSet<String> pendingIds = new LinkedHashSet<>();
+    private boolean idLookupScheduled = false;
+    private final LinkedHashMap<Integer, Image> thumbnails = new LinkedHashMap<>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Image> eldest) { return size() > MAX_CACHED_THUMBNAILS; }
+    };
+
+    /**
+     * Performs necessary setup. Must be called before any files are shown.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param onSelect receives the index of a file when it becomes the current file by being clicked
+     * @param onOpen receives the index of a file when it is double-clicked
+     */
+    public void init(String directory, IntConsumer onSelect, IntConsumer onOpen)
+    {
+        this.directory = directory;
+        this.onSelect = onSelect;
+        this.onOpen = onOpen;
+
+        getStyleClass().add("thumbnail-grid");
+        setCellFactory(listView ->
+        {
+            TileRow row = new TileRow();
+            rows.add(row);
+            return row;
+        });
+
+        // Fit as many columns as the width allows
+        widthProperty().addListener((observable, oldValue, newValue) ->
+        {
+            int newColumns = Math.max(1, (int) ((newValue.doubleValue() - SCROLL_BAR_WIDTH) / TILE_WIDTH));
+            if (newColumns != columns)
+            {
+                columns = newColumns;
+                rows.forEach(TileRow::layoutTiles);
+                updateRows();
+                if (current != -1)
+                    scrollTo(current / columns);
+            }
+        });
+    }
+
+    /**
+     * Shows a new list of files, clearing the selection.
+     * @param files the file names
+     * @param current the index of the current file, or -1 if there isn't one
+     */
+    public void setFiles(List<String> files, int current)
+    {
+        this.files = files;
+        // A file with the same name may have been deleted and imported again since its ID was fetched
+        fileIds.clear();
+        clearSelection();
+        updateRows();
+        setCurrent(current);
+    }
+
+    /**
+     * Changes the current file and scrolls to it.
+     * @param index the index of the file, or -1 if there isn't one
+     */
+    public void setCurrent(int index)
+    {
+        current = (index < files.size()) ? index : -1;
+        if (current != -1)
+        {
+            if (!selected.get(current))
+            {
+                clearSelection();
+                select(current, true);
+            }
+            anchor = current;
+            scrollTo(current / columns);
+        }
+        refreshTiles();
+    }
+
+    /**
+     * Shows the files' current names and selection again, such as after a file is renamed.
+     */
+    public void refreshTiles() { rows.forEach(TileRow::showTiles); }
+
+    public int getColumns() { return columns; }
+
+    public ReadOnlyIntegerProperty selectedCountProperty() { return selectedCount; }
+
+    /**
+     * Gets the selected files.
+     * @return the names of the selected files, in order
+     */
+    public Vector<String> getSelectedFiles()
+    {
+        Vector<String> selection = new Vector<>(selectedCount.get());
+        selected.stream().filter(index -> index < files.size()).forEach(index -> selection.add(files.get(index)));
+        return selection;
+    }
+
+    // Update the number of rows to fit the files in the current number of columns
+    private void updateRows()
+    {
+        int count = (files.size() + columns - 1) / columns;
+        if (getItems().size() > count)
+            getItems().remove(count, getItems().size());
+        else if (getItems().size() < count)
+        {
+            Vector<Integer> added = new Vector<>(count - getItems().size());
+            for (int row = getItems().size(); row < count; row++)
+                added.add(row);
+            getItems().addAll(added);
+        }
+        refreshTiles();
+    }
+
+    private void select(int index, boolean selecting)
+    {
+        if (selected.get(index) != selecting)
+        {
+            selected.set(index, selecting);
+            selectedCount.set(selected.cardinality());
+        }
+    }
+
+    private void clearSelection()
+    {
+        selected.clear();
+        selectedCount.set(0);
+    }
+
+    private void onTileClicked(int index, MouseEvent event)
+    {
+        if (event.getButton() != MouseButton.PRIMARY)
+            return;
+
+        if (event.getClickCount() == 2)
+        {
+            if (onOpen != null)
+                onOpen.accept(index);
+            return;
+        }
+
+        if (event.isShiftDown() && anchor != -1)
+        {
+            if (!event.isShortcutDown())
+                clearSelection();
+            for (int i = Math.min(anchor, index); i <= Math.max(anchor, index); i++)
+                select(i, true);
+        }
+        else if (event.isShortcutDown())
+        {
+            select(index, !selected.get(index));
+            anchor = index;
+        }
+        else
+        {
+            clearSelection();
+            select(index, true);
+            anchor = index;
+        }
+
+        current = index;
+        refreshTiles();
+        if (onSelect != null)
+            onSelect.accept(index);
+    }
+
+    // Fetch the IDs of every file that has been shown since the last batch, once the cells have finished updating
+    private void requestId(String fileName)
+    {
+        pendingIds.add(fileName);
+        if (!idLookupScheduled)
+        {
+            idLookupScheduled = true;
+            Platform.runLater(() ->
+            {
+                idLookupScheduled = false;
+                Vector<String> batch = new Vector<>(pendingIds);
+                pendingIds.clear();
+                final List<String> batchFiles = files;
+                AsyncScheduler.deliver(AsyncScheduler.read(directory, () -> Database.getFileIds(directory, batch)), ids ->
+                {
+                    // The IDs are no longer needed if the files have changed since they were requested
+                    if (files != batchFiles)
+                        return;
+                    batch.forEach(name -> fileIds.put(name, ids.getOrDefault(name, -1)));
+                    refreshTiles();
+                });
+            });
+        }
+    }
+
+    // A row of the grid, showing one tile for each column
+    private class TileRow extends ListCell<Integer>
+    {
+        private final HBox layout = new HBox();
+        private final Vector<Tile> tiles = new Vector<>();
+
+        TileRow()
+        {
+            layout.setSpacing(0);
+            setPadding(Insets.EMPTY);
+            layoutTiles();
+        }
+
+        // Match the number of tiles to the number of columns
+        void layoutTiles()
+        {
+            while (tiles.size() < columns)
+            {
+                Tile tile = new Tile();
+                tiles.add(tile);
+                layout.getChildren().add(tile);
+            }
+            while (tiles.size() > columns)
+            {
+                tiles.removeLast().clear();
+                layout.getChildren().removeLast();
+            }
+        }
+
+        @Override
+        protected void updateItem(Integer row, boolean empty)
+        {
+            super.updateItem(row, empty);
+            setText(null);
+            if (empty || row == null)
+            {
+                tiles.forEach(Tile::clear);
+                setGraphic(null);
+            }
+            else
+            {
+                showTiles();
+                setGraphic(layout);
+            }
+        }
+
+        void showTiles()
+        {
+            // Cells that the list has stopped using are not part of the scene
+            if (isEmpty() || getItem() == null || getParent() == null)
+                return;
+            for (int column = 0; column < tiles.size(); column++)
+            {
+                int index = (getItem() * columns) + column;
+                if (index < files.size())
+                    tiles.get(column).show(index);
+                else
+                    tiles.get(column).clear();
+            }
+        }
+    }
+
+    // One file in the grid
+    private class Tile extends VBox
+    {
+        private final StackPane holder = new StackPane();
+        private final ImageView imageView = new ImageView();
+        private final FontIcon placeholder = new FontIcon();
+        private final Label nameLabel = new Label();
+
+        private int index = -1;
+        private String fileName = null;
+        private CompletableFuture<Image> loading = null;
+
+        Tile()
+        {
+            setAlignment(Pos.TOP_CENTER);
+            setSpacing(4);
+            setPadding(new Insets(6));
+            setPrefWidth(TILE_WIDTH);
+            setMinWidth(TILE_WIDTH);
+            setMaxWidth(TILE_WIDTH);
+            getStyleClass().add("thumbnail-tile");
+
+            imageView.setPreserveRatio(true);
+            imageView.setFitWidth(THUMBNAIL_SIZE);
+            imageView.setFitHeight(THUMBNAIL_SIZE);
+            placeholder.setIconSize(48);
+            holder.setMinSize(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            holder.setPrefSize(THUMBNAIL_SIZE, THUMBNAIL_SIZE);
+            holder.getChildren().addAll(placeholder, imageView);
+
+            nameLabel.setMaxWidth(TILE_WIDTH - 12);
+            nameLabel.setTextOverrun(OverrunStyle.CENTER_ELLIPSIS);
+            getChildren().addAll(holder, nameLabel);
+
+            setOnMouseClicked(event ->
+            {
+                if (index != -1)
+                    onTileClicked(index, event);
+            });
+        }
+
+        void show(int index)
+        {
+            this.index = index;
+            setVisible(true);
+            setSelectedStyle("selected-tile", selected.get(index));
+            setSelectedStyle("current-tile", index == current);
+
+            String name = files.get(index);
+            if (name.equals(fileName) && imageView.getImage() != null)
+                return;
+
+            // The tile now shows a different file, so any thumbnail it was waiting for is no longer needed
+            cancelLoading();
+            fileName = name;
+            nameLabel.setText(name);
+            imageView.setImage(null);
+            FileTypes.Type type = FileTypes.getType(name);
+            placeholder.setIconLiteral(switch (type)
+            {
+                case IMAGE -> "bx-image";
+                case VIDEO -> "bx-movie";
+                case TEXT -> "bx-file";
+                default -> "bx-question-mark";
+            });
+            placeholder.setVisible(true);
+
+            if (type == FileTypes.Type.IMAGE)
+            {
+                Integer id = fileIds.get(name);
+                if (id == null)
+                    requestId(name);
+                else if (id != -1)
+                    loadThumbnail(id);
+            }
+        }
+
+        void clear()
+        {
+            cancelLoading();
+            index = -1;
+            fileName = null;
+            imageView.setImage(null);
+            setVisible(false);
+        }
+
+        private void loadThumbnail(int id)
+        {
+            Image cached = thumbnails.get(id);
+            if (cached != null)
+            {
+                setThumbnail(cached);
+                return;
+            }
+
+            // Thumbnails that haven't been generated yet keep showing the placeholder
+            final String name = fileName;
+            final String folder = directory;
+            loading = CompletableFuture.supplyAsync(() -> ThumbnailStore.get(folder).get(id), thumbnailLoader);
+            AsyncScheduler.deliver(loading, image ->
+            {
+                if (image != null)
+                {
+                    thumbnails.put(id, image);
+                    if (name.equals(fileName))
+                        setThumbnail(image);
+                }
+            });
+        }
+
+        private void setThumbnail(Image image)
+        {
+            imageView.setImage(image);
+            placeholder.setVisible(false);
+        }
+
+        private void cancelLoading()
+        {
+            // A load that has already started is left to finish, since it only takes a moment and its thumbnail is still cached
+            if (loading != null)
+            {
+                loading.cancel(false);
+                loading = null;
+            }
+        }
+
+        private void setSelectedStyle(String styleClass, boolean enabled)
+        {
+            if (enabled && !getStyleClass().contains(styleClass))
+                getStyleClass().add(styleClass);
+            else if (!enabled)
+                getStyleClass().remove(styleClass);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/* TagIt
+ * FileNameRegistry.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.miscellaneous;
+
+import com.github.marcusschmidt4247.tagit.Database;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the name of every file in a <code>ManagedFolder</code> in memory, so that checking whether a name is in use does not need to query
+ * the database. Names are unique regardless of case, so they are stored in lowercase. Each folder's names are read from the database the
+ * first time they are needed, and <code>Database</code> keeps them current whenever files are saved, renamed, or deleted.
+ */
+public class FileNameRegistry
+{
+    private static final ConcurrentHashMap<String, FileNameRegistry> registries = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the registry of a <code>ManagedFolder</code>, reading its file names from the database if this is the first time it is needed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return the folder's registry
+     */
+    public static FileNameRegistry get(String directory)
+    {
+        FileNameRegistry registry = registries.get(directory);
+        if (registry == null)
+        {
+            // Read the names outside of computeIfAbsent() so that other folders' registries aren't blocked by the query
+            FileNameRegistry loaded = new FileNameRegistry(Database.getFiles(directory));
+            registry = registries.putIfAbsent(directory, loaded);
+            if (registry == null)
+                registry = loaded;
+        }
+        return registry;
+    }
+
+    /**
+     * Forgets the names of a <code>ManagedFolder</code>, such as after its directory has moved or been deleted. They will be read again the
+     * next time they are needed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public static void invalidate(String directory) { registries.remove(directory); }
+
+    private final HashSet<String> names;
+
+    private FileNameRegistry(Collection<String> fileNames)
+    {
+        names = new HashSet<>(fileNames.size() * 2);
+        fileNames.forEach(name -> names.add(fold(name)));
+    }
+
+    /**
+     * Checks if a file name is in use.
+     * @param fileName the name to search for (case-insensitive)
+     * @return <code>true</code> if the file name is in use; <code>false</code> otherwise
+     */
+    public synchronized boolean contains(String fileName) { return names.contains(fold(fileName)); }
+
+    public synchronized void add(String fileName) { names.add(fold(fileName)); }
+
+    public synchronized void addAll(Collection<String> fileNames) { fileNames.forEach(name -> names.add(fold(name))); }
+
+    public synchronized void rename(String oldName, String newName)
+    {
+        names.remove(fold(oldName));
+        names.add(fold(newName));
+    }
+
+    public synchronized void remove(String fileName) { names.remove(fold(fileName)); }
+
+    public synchronized void removeAll(Collection<String> fileNames) { fileNames.forEach(name -> names.remove(fold(name))); }
+
+    private static String fold(String fileName) { return fileName.toLowerCase(Locale.ROOT); }
+}
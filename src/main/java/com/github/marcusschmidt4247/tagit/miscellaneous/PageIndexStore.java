@@ -0,0 +1,193 @@
+/* TagIt
+ * PageIndexStore.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.miscellaneous;
+
+import com.github.marcusschmidt4247.tagit.parsers.Parser;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Saves where the pages of a <code>ManagedFolder</code>'s documents start, so that a document can jump straight to a page it has been read
+ * up to before instead of paginating everything in front of it again. Each document's page boundaries are stored with the size and last
+ * modified time of the file and the maximum number of characters per page they were found with, and are ignored once any of them changes.
+ * <p/>
+ * Every document's pages are kept in one index file in the folder's directory, which is read the first time it is needed and rewritten
+ * whenever a document has found more pages than were saved. Only the most recently saved documents are kept. Safe to use from any thread.
+ */
+public class PageIndexStore
+{
+    private static final String INDEX_NAME = "pages.index";
+    private static final int INDEX_MAGIC = 0x54475049;
+    private static final int VERSION = 1;
+    private static final int MAX_DOCUMENTS = 1024;
+
+    private static final ConcurrentHashMap<String, PageIndexStore> stores = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the page index store of a <code>ManagedFolder</code>, reading its index if this is the first time it is needed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return the folder's page index store
+     */
+    public static PageIndexStore get(String directory) { return stores.computeIfAbsent(directory, PageIndexStore::new); }
+
+    /**
+     * Forgets the page index store of a <code>ManagedFolder</code>, such as when its directory is moved or deleted. Its index will be read
+     * again the next time it is needed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public static void invalidate(String directory) { stores.remove(directory); }
+
+    // The saved pages of a document and what they are valid for
+    private record Entry(long size, long modified, int maxChars, int pageCount, byte[] pages) {}
+
+    private final Path indexPath;
+    // Ordered from least to most recently saved
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>();
+
+    private PageIndexStore(String directory)
+    {
+        indexPath = Path.of(directory).resolve(INDEX_NAME);
+        readIndex();
+    }
+
+    /**
+     * Gives a newly opened document the page boundaries that were saved for its file, if they are still valid.
+     * @param fileId the file's database ID
+     * @param file the document file
+     * @param maxChars the maximum number of characters per page that the document will be read with
+     * @param parser the open document
+     * @return <code>true</code> if pages were restored; <code>false</code> otherwise
+     */
+    public synchronized boolean restore(int fileId, File file, int maxChars, Parser parser)
+    {
+        Entry entry = entries.get(fileId);
+        if (entry == null)
+            return false;
+        // The file has changed since its pages were found
+        if (entry.size() != file.length() || entry.modified() != file.lastModified() || entry.maxChars() != maxChars)
+            return false;
+
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(entry.pages())))
+        {
+            parser.readPages(input);
+            return true;
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("PageIndexStore.restore: Ignoring invalid pages of \"%s\" (%s)\n", file.getName(), exception);
+            entries.remove(fileId);
+            return false;
+        }
+    }
+
+    /**
+     * Saves the page boundaries that a document has found, unless as many have already been saved for the same version of its file.
+     * @param fileId the file's database ID
+     * @param file the document file
+     * @param maxChars the maximum number of characters per page that the document was read with
+     * @param parser the open document
+     */
+    public synchronized void save(int fileId, File file, int maxChars, Parser parser)
+    {
+        long size = file.length();
+        long modified = file.lastModified();
+        Entry previous = entries.get(fileId);
+        boolean sameFile = (previous != null && previous.size() == size && previous.modified() == modified && previous.maxChars() == maxChars);
+        // A document that is only on its first page has nothing worth saving
+        if (parser.getIndexedPageCount() <= 1 || (sameFile && previous.pageCount() >= parser.getIndexedPageCount()))
+            return;
+
+        ByteArrayOutputStream pages = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(pages))
+        {
+            parser.writePages(output);
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("PageIndexStore.save: %s\n", exception);
+            return;
+        }
+
+        // Move the document to the end of the order so that the least recently saved documents are removed first
+        entries.remove(fileId);
+        entries.put(fileId, new Entry(size, modified, maxChars, parser.getIndexedPageCount(), pages.toByteArray()));
+        while (entries.size() > MAX_DOCUMENTS)
+            entries.remove(entries.keySet().iterator().next());
+        writeIndex();
+    }
+
+    private void readIndex()
+    {
+        if (!Files.isRegularFile(indexPath))
+            return;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath))))
+        {
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != VERSION)
+                return;
+
+            int count = input.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                int fileId = input.readInt();
+                long size = input.readLong();
+                long modified = input.readLong();
+                int maxChars = input.readInt();
+                int pageCount = input.readInt();
+                byte[] pages = new byte[input.readInt()];
+                input.readFully(pages);
+                entries.put(fileId, new Entry(size, modified, maxChars, pageCount, pages));
+            }
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("PageIndexStore.readIndex: Ignoring unreadable index (%s)\n", exception);
+            entries.clear();
+        }
+    }
+
+    // Write the index to a temporary file and then rename it over the old one, so that a crash never leaves half of an index
+    private void writeIndex()
+    {
+        Path temporary = indexPath.resolveSibling(INDEX_NAME + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary))))
+        {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+            for (Map.Entry<Integer, Entry> entry : entries.entrySet())
+            {
+                output.writeInt(entry.getKey());
+                output.writeLong(entry.getValue().size());
+                output.writeLong(entry.getValue().modified());
+                output.writeInt(entry.getValue().maxChars());
+                output.writeInt(entry.getValue().pageCount());
+                output.writeInt(entry.getValue().pages().length);
+                output.write(entry.getValue().pages());
+            }
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("PageIndexStore.writeIndex: %s\n", exception);
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("PageIndexStore.writeIndex: %s\n", exception);
+        }
+    }
+}
@@ -25,8 +25,10 @@ public class SearchCriteria
     private final Vector<Integer> includeAny = new Vector<>();
     public Vector<Integer> getIncludeAny() { return includeAny; }
 
-    private final Vector<TagNode> includeAll = new Vector<>();
-    public Vector<TagNode> getIncludeAll() { return includeAll; }
+    // The comma-separated IDs of each selected tag's subtree, collected when the criteria are created since the tree can only be read on
+    // the JavaFX application thread
+    private final Vector<String> includeAll = new Vector<>();
+    public Vector<String> getIncludeAll() { return includeAll; }
 
     private final Vector<Integer> excludeIds = new Vector<>();
     public Vector<Integer> getExcludeIds() { return excludeIds; }
@@ -42,6 +44,14 @@ public class SearchCriteria
     private final String directory;
     public String getDirectory() { return directory; }
 
+    /**
+     * Class constructor. Should be called on the JavaFX application thread, after which the criteria can be used on any thread.
+     * @param root the root of the <code>TagNode</code> tree whose active and excluded tags are searched for
+     * @param fileTypes the types of files to search for; <code>null</code> for every type
+     * @param anyMatch <code>true</code> if a file only needs one of the active tags; <code>false</code> if it needs every directly active tag
+     * @param excluding <code>true</code> to leave out files with an excluded tag; <code>false</code> otherwise
+     * @param sortMethod the order of the results
+     */
     public SearchCriteria(TagNode root, Vector<FileTypes.Type> fileTypes, boolean anyMatch, boolean excluding, SortMethod sortMethod)
     {
         directory = root.getDirectory();
@@ -49,27 +59,20 @@ public class SearchCriteria
         this.anyMatch = anyMatch;
         this.excluding = excluding;
         this.sortMethod = sortMethod;
-        getNodeIds(root);
-    }
-
-    // Return a list of the activated nodes' IDs that are within this node's subtree
-    private void getNodeIds(TagNode tag)
-    {
-        if (excluding && tag.isExcluded())
-            excludeIds.add(tag.getId());
-        else if (tag.isActive())
-        {
-            if (anyMatch)
-                includeAny.add(tag.getId());
-            else if (tag.isSelfActivated())
-                includeAll.add(tag);
-        }
 
-        // Recurse only if this tag has fetched its children (if not, they can't be active)
-        if (tag.fetchedChildren())
+        // The root node tracks which nodes are active and excluded, so only those nodes need to be visited
+        if (excluding)
+            root.getExcludedNodes().forEach(tag -> excludeIds.add(tag.getId()));
+        for (TagNode tag : anyMatch ? root.getActiveNodes() : root.getSelfActivatedNodes())
         {
-            for (TagNode child : tag.getChildren())
-                getNodeIds(child);
+            // An excluded tag is never included, even if it is active
+            if (!excluding || !tag.isExcluded())
+            {
+                if (anyMatch)
+                    includeAny.add(tag.getId());
+                else
+                    includeAll.add(tag.getSubtreeIds());
+            }
         }
     }
 }
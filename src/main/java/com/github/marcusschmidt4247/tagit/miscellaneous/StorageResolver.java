@@ -0,0 +1,166 @@
+/* TagIt
+ * StorageResolver.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.miscellaneous;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.IOManager;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves the location of a file in a <code>ManagedFolder</code>'s storage directory. Files are always addressed by name, and the layout of
+ * the storage directory decides where a name is kept:
+ * <p/> <code>FLAT</code> - every file is directly inside the storage directory
+ * <p/> <code>SHARDED</code> - every file is two levels down, in subdirectories named after a hash of its lowercase name (such as "3f/a0")
+ * <p/> <code>MIGRATING</code> - a flat storage directory is being converted, so a file may be in either place
+ * <p/>
+ * Each folder's layout is cached after it is first read from the database. While a folder is being converted, the files that had to be
+ * looked for are cached too, so that the same file is not searched for on every access.
+ */
+public class StorageResolver
+{
+    public enum Layout
+    {
+        FLAT ("Flat"),
+        SHARDED ("Sharded"),
+        MIGRATING ("Converting to sharded");
+
+        public final String description;
+        Layout(String description) { this.description = description; }
+    }
+
+    private static final int MAX_CACHED_PATHS = 1024;
+
+    private static final ConcurrentHashMap<String, Layout> layouts = new ConcurrentHashMap<>();
+
+    // The most recently resolved sharded paths in folders that are being converted, keyed by folder directory and lowercase file name
+    private static final LinkedHashMap<String, String> paths = new LinkedHashMap<>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) { return size() > MAX_CACHED_PATHS; }
+    };
+
+    /**
+     * Gets the storage layout of a <code>ManagedFolder</code>.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return the current layout
+     */
+    public static Layout getLayout(String directory)
+    {
+        return layouts.computeIfAbsent(directory, key -> Layout.values()[Database.getStorageLayout(key)]);
+    }
+
+    /**
+     * Changes the storage layout of a <code>ManagedFolder</code> in the database. No files are moved.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param layout the new layout
+     * @return <code>true</code> if the layout was saved; <code>false</code> otherwise
+     */
+    public static boolean setLayout(String directory, Layout layout)
+    {
+        if (Database.setStorageLayout(directory, layout.ordinal()))
+        {
+            layouts.put(directory, layout);
+            synchronized (paths)
+            {
+                paths.clear();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the cached layout of a <code>ManagedFolder</code>, such as after its directory has moved.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public static void invalidate(String directory) { layouts.remove(directory); }
+
+    /**
+     * Forgets where a file was found in a <code>ManagedFolder</code> that is being converted, after the file has been moved.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param fileName the name of the file
+     */
+    public static void invalidate(String directory, String fileName)
+    {
+        synchronized (paths)
+        {
+            paths.remove(getCacheKey(directory, fileName));
+        }
+    }
+
+    /**
+     * Constructs the complete path to a file. In a folder that is being converted, a file that does not exist yet resolves to its sharded
+     * location.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param fileName the name of the file
+     * @return an absolute file path
+     */
+    public static String resolve(String directory, String fileName)
+    {
+        String storage = IOManager.getStorageDirectory(directory);
+        switch (getLayout(directory))
+        {
+            case SHARDED:
+                return getShardedPath(storage, fileName);
+            case MIGRATING:
+                String key = getCacheKey(directory, fileName);
+                String path;
+                synchronized (paths)
+                {
+                    path = paths.get(key);
+                }
+                if (path == null)
+                {
+                    // Files that haven't been converted yet are still directly in the storage directory. That location isn't cached because
+                    // the migration can move the file to its shard at any moment, while a sharded path never changes again
+                    path = getShardedPath(storage, fileName);
+                    String flatPath = IOManager.formatPath(storage, fileName);
+                    if (!new File(path).exists() && new File(flatPath).exists())
+                        return flatPath;
+                    synchronized (paths)
+                    {
+                        paths.put(key, path);
+                    }
+                }
+                return path;
+            default:
+                return IOManager.formatPath(storage, fileName);
+        }
+    }
+
+    /**
+     * Constructs the path to a file in a sharded storage directory.
+     * @param storage the absolute path to the storage directory
+     * @param fileName the name of the file
+     * @return an absolute file path
+     */
+    public static String getShardedPath(String storage, String fileName)
+    {
+        // Names are unique regardless of case, so the hash must be too so that changing a name's case never moves the file
+        int hash = mix(fileName.toLowerCase(Locale.ROOT).hashCode());
+        String first = String.format("%02x", (hash >>> 24) & 0xff);
+        String second = String.format("%02x", (hash >>> 16) & 0xff);
+        return IOManager.formatPath(storage, first, second, fileName);
+    }
+
+    private static String getCacheKey(String directory, String fileName) { return directory + File.pathSeparator + fileName.toLowerCase(Locale.ROOT); }
+
+    // Spread the bits of a string hash code so that similar names are not clustered into the same subdirectories
+    private static int mix(int hash)
+    {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
@@ -0,0 +1,274 @@
+/* TagIt
+ * TagIndex.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.miscellaneous;
+
+import com.github.marcusschmidt4247.tagit.Database;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+
+/**
+ * An in-memory index of every tag name in a <code>ManagedFolder</code> that can be searched by prefix, with a trigram fallback for
+ * names that only contain the query or are a close match. Indexes are loaded from the database the first time they are needed and are
+ * kept up-to-date by the <code>Database</code> methods that add, rename, move, and delete tags. Each change only updates the lookup
+ * entries of the tag that changed.
+ */
+public class TagIndex
+{
+    /**
+     * A tag as it is stored in the database.
+     * @param id the unique number assigned by the database
+     * @param name the name describing the tag
+     * @param parentId the ID of the tag's parent; <code>-1</code> if it is a root tag
+     */
+    public record Entry(int id, String name, int parentId) { }
+
+    /**
+     * A search result.
+     * @param id the unique number assigned to the tag by the database
+     * @param path the path from the tree root to the tag in the same format as <code>TagNode.getTagPath()</code>
+     * @param lineage the path of tag IDs from the tree root to the tag, which can be followed with <code>TagNode.findNode()</code>
+     */
+    public record Match(int id, String path, Vector<Integer> lineage) { }
+
+    private static final int MAX_PREFIX_CANDIDATES = 500;
+    private static final double MIN_SIMILARITY = 0.5;
+
+    private static final HashMap<String, TagIndex> indexes = new HashMap<>();
+
+    /**
+     * Gets the index for a <code>ManagedFolder</code>, loading it from the database if it has not been already.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return the folder's index
+     */
+    public static synchronized TagIndex get(String directory)
+    {
+        TagIndex index = indexes.get(directory);
+        if (index == null)
+        {
+            index = new TagIndex(Database.getTagEntries(directory));
+            indexes.put(directory, index);
+        }
+        return index;
+    }
+
+    /**
+     * Records a new, renamed, or moved tag in its folder's index (if the index has been loaded).
+     * @param tag the node that changed
+     */
+    public static synchronized void update(TagNode tag)
+    {
+        TagIndex index = indexes.get(tag.getDirectory());
+        if (index != null)
+        {
+            int parentId = tag.getParent().isRoot() ? -1 : tag.getParent().getId();
+            index.put(new Entry(tag.getId(), tag.getTag(), parentId));
+        }
+    }
+
+    /**
+     * Removes a deleted tag from its folder's index (if the index has been loaded).
+     * @param tag the node that was deleted
+     */
+    public static synchronized void remove(TagNode tag)
+    {
+        TagIndex index = indexes.get(tag.getDirectory());
+        if (index != null)
+            index.remove(tag.getId());
+    }
+
+    /**
+     * Discards a folder's index so that it will be reloaded from the database the next time it is needed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public static synchronized void invalidate(String directory) { indexes.remove(directory); }
+
+    private final HashMap<Integer, Entry> entries = new HashMap<>();
+
+    // Lookup structures for the lowercase name of every entry
+    private final TreeMap<String, TreeSet<Integer>> sortedKeys = new TreeMap<>();
+    private final HashMap<Integer, String> keys = new HashMap<>();
+    private final HashMap<String, HashSet<Integer>> trigrams = new HashMap<>();
+
+    private TagIndex(Vector<Entry> entries)
+    {
+        for (Entry entry : entries)
+            put(entry);
+    }
+
+    /**
+     * Searches for tags whose names start with, contain, or closely resemble <code>query</code> (case-insensitive). Results are ranked
+     * with exact matches first, then prefix matches, then names that contain the query, and finally approximate matches.
+     * @param query the text to search for
+     * @param maxResults the maximum number of matches to return
+     * @return the best matches in ranked order
+     */
+    public synchronized Vector<Match> search(String query, int maxResults)
+    {
+        Vector<Match> matches = new Vector<>();
+        String key = query.strip().toLowerCase();
+        if (key.isEmpty())
+            return matches;
+
+        // Lower scores are better matches
+        HashMap<Integer, Double> scores = new HashMap<>();
+
+        // Collect the names that start with the query from the sorted names
+        for (Map.Entry<String, TreeSet<Integer>> name : sortedKeys.tailMap(key, true).entrySet())
+        {
+            if (scores.size() >= MAX_PREFIX_CANDIDATES || !name.getKey().startsWith(key))
+                break;
+            for (int id : name.getValue())
+                scores.put(id, name.getKey().length() == key.length() ? 0.0 : 1.0);
+        }
+
+        /* For longer queries, also collect names that contain the query or share most of its trigrams. These always rank below prefix
+         * matches, so they can be skipped when there are already enough prefix matches */
+        if (key.length() >= 3 && scores.size() < maxResults)
+        {
+            HashSet<String> queryTrigrams = getTrigrams(key);
+            HashMap<Integer, Integer> hits = new HashMap<>();
+            for (String trigram : queryTrigrams)
+            {
+                HashSet<Integer> ids = trigrams.get(trigram);
+                if (ids != null)
+                    ids.forEach(id -> hits.merge(id, 1, Integer::sum));
+            }
+
+            hits.forEach((id, count) ->
+            {
+                if (!scores.containsKey(id))
+                {
+                    double similarity = (double) count / queryTrigrams.size();
+                    if (keys.get(id).contains(key))
+                        scores.put(id, 2.0);
+                    else if (similarity >= MIN_SIMILARITY)
+                        scores.put(id, 3.0 + (1.0 - similarity));
+                }
+            });
+        }
+
+        // Rank the candidates by score, then prefer shorter names, and then sort alphabetically
+        Comparator<Integer> ranking = Comparator.comparingDouble((Integer id) -> scores.get(id))
+                .thenComparingInt(id -> keys.get(id).length())
+                .thenComparing(keys::get);
+
+        // Only the best 'maxResults' candidates need to be sorted, so keep them in a heap with the worst one on top
+        PriorityQueue<Integer> best = new PriorityQueue<>(ranking.reversed());
+        for (int id : scores.keySet())
+        {
+            best.add(id);
+            if (best.size() > maxResults)
+                best.poll();
+        }
+        Vector<Integer> ranked = new Vector<>(best);
+        ranked.sort(ranking);
+
+        for (int id : ranked)
+        {
+            Vector<Integer> lineage = getLineage(id);
+            if (lineage != null)
+                matches.add(new Match(id, getPath(lineage), lineage));
+        }
+        return matches;
+    }
+
+    private void put(Entry entry)
+    {
+        Entry previous = entries.put(entry.id(), entry);
+        // A moved tag keeps its name, so only its parent needs to change
+        if (previous == null || !previous.name().equals(entry.name()))
+        {
+            if (previous != null)
+                removeKey(previous.id());
+            addKey(entry.id(), entry.name().toLowerCase());
+        }
+    }
+
+    private void remove(int id)
+    {
+        if (entries.remove(id) != null)
+        {
+            removeKey(id);
+            // The database deletes the parentage of this tag's children with it, which makes them root tags
+            for (Entry entry : new Vector<>(entries.values()))
+            {
+                if (entry.parentId() == id)
+                    entries.put(entry.id(), new Entry(entry.id(), entry.name(), -1));
+            }
+        }
+    }
+
+    // Add a tag's lowercase name to the sorted names and trigram postings
+    private void addKey(int id, String key)
+    {
+        keys.put(id, key);
+        sortedKeys.computeIfAbsent(key, k -> new TreeSet<>()).add(id);
+        for (String trigram : getTrigrams(key))
+            trigrams.computeIfAbsent(trigram, k -> new HashSet<>()).add(id);
+    }
+
+    // Remove a tag's lowercase name from the sorted names and trigram postings
+    private void removeKey(int id)
+    {
+        String key = keys.remove(id);
+        if (key == null)
+            return;
+
+        TreeSet<Integer> ids = sortedKeys.get(key);
+        ids.remove(id);
+        if (ids.isEmpty())
+            sortedKeys.remove(key);
+        for (String trigram : getTrigrams(key))
+        {
+            HashSet<Integer> postings = trigrams.get(trigram);
+            postings.remove(id);
+            if (postings.isEmpty())
+                trigrams.remove(trigram);
+        }
+    }
+
+    // Return the path of IDs from a root tag to the tag with this ID, or null if the path is broken
+    private Vector<Integer> getLineage(int id)
+    {
+        Vector<Integer> lineage = new Vector<>();
+        Entry entry = entries.get(id);
+        while (entry != null && lineage.size() <= entries.size())
+        {
+            lineage.insertElementAt(entry.id(), 0);
+            if (entry.parentId() == -1)
+                return lineage;
+            entry = entries.get(entry.parentId());
+        }
+        return null;
+    }
+
+    private String getPath(Vector<Integer> lineage)
+    {
+        StringBuilder path = new StringBuilder();
+        for (int id : lineage)
+        {
+            if (!path.isEmpty())
+                path.append("->");
+            path.append(entries.get(id).name());
+        }
+        return path.toString();
+    }
+
+    private static HashSet<String> getTrigrams(String text)
+    {
+        HashSet<String> result = new HashSet<>();
+        for (int i = 0; i + 3 <= text.length(); i++)
+            result.add(text.substring(i, i + 3));
+        return result;
+    }
+}
@@ -14,6 +14,9 @@ import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.control.*;
 
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.Vector;
 
 public class TagNode
@@ -39,6 +42,87 @@ public class TagNode
         }
     }
 
+    /**
+     * Merges this tag into <code>target</code>. Files tagged with this tag will be tagged with <code>target</code> instead, this tag's children
+     * will be moved to <code>target</code> (or merged into a child of <code>target</code> with the same name), and then this tag will be deleted.
+     * The database is updated in a single transaction, and afterwards the tree is patched in place rather than reloaded.
+     * @param target the tag that will absorb this one (cannot be the root node or a descendant of this tag)
+     * @return <code>true</code> if merged; <code>false</code> otherwise
+     */
+    public boolean mergeInto(TagNode target)
+    {
+        if (isRoot() || target.isRoot() || target.equals(this) || target.isDescendantOf(this))
+        {
+            System.out.printf("TagNode.mergeInto: Cannot merge \"%s\" into \"%s\"\n", tag.get(), target.getTag());
+            return false;
+        }
+
+        /* Every pair of nodes that will be merged needs its children fetched now, because afterwards the database will no longer have them.
+         * Checking the pairs for conflicts fetches them */
+        TagNode conflict = getMergeConflict(target);
+        if (conflict != null)
+        {
+            System.out.printf("TagNode.mergeInto: \"%s\" has files and would no longer be a leaf\n", conflict.getTagPath());
+            return false;
+        }
+
+        if (Database.mergeTags(this, target))
+        {
+            patchMerge(target, getRoot());
+            return true;
+        }
+        return false;
+    }
+    /**
+     * Finds a tag with files that would be merged with a tag that has children if this tag were merged into <code>target</code>. Files can
+     * only be tagged with leaves, so such a merge is not allowed. Every pair of tags that would be merged is checked, including children
+     * that would be merged because they have the same name.
+     * @param target the tag that would absorb this one
+     * @return the tag with files; <code>null</code> if there is none
+     */
+    public TagNode getMergeConflict(TagNode target)
+    {
+        boolean leaf = getChildren().isEmpty();
+        if (leaf != target.getChildren().isEmpty())
+        {
+            TagNode leafNode = leaf ? this : target;
+            if (Database.getFileCount(leafNode) > 0)
+                return leafNode;
+        }
+
+        for (TagNode child : getChildren())
+        {
+            TagNode match = target.getChild(child.getTag());
+            if (match != null)
+            {
+                TagNode conflict = child.getMergeConflict(match);
+                if (conflict != null)
+                    return conflict;
+            }
+        }
+        return null;
+    }
+    private void patchMerge(TagNode target, TagNode root)
+    {
+        for (TagNode child : new Vector<>(children))
+        {
+            TagNode match = target.getChild(child.getTag());
+            if (match != null)
+                child.patchMerge(match, root);
+            else
+            {
+                // The child no longer inherits this node's search state, but it does inherit its new parent's
+                child.inherit(target.activationWeight - activationWeight, target.exclusionWeight - exclusionWeight, root);
+
+                // Add the child to its new parent before removing it from this one so that checked tree items can follow it
+                child.parent.set(target);
+                target.children.add(child);
+                children.remove(child);
+            }
+        }
+        parent.get().removeChild(this);
+    }
+
     private final StringProperty tag;
     public StringProperty tagProperty() { return tag; }
     public String getTag() { return tag.getValue(); }
@@ -70,19 +154,13 @@ public class TagNode
         boolean added = true;
         if (!isRoot() && isLeaf())
         {
-            Vector<String> files = Database.getTaggedFiles(this);
-            if (!files.isEmpty())
+            int fileCount = Database.getFileCount(this);
+            if (fileCount > 0)
             {
-                String header = String.format("There are %d files tagged with \"%s\" that will now also be tagged with \"%s\".", files.size(), tag.get(), child.getTag());
+                String header = String.format("There are %d files tagged with \"%s\" that will now also be tagged with \"%s\".", fileCount, tag.get(), child.getTag());
                 String description = "All tags a file is associated with must be part of a chain that ends with a childless tag.";
                 if (WindowManager.confirmationDialog("New Tag", header, description))
-                {
-                    for (String file : files)
-                    {
-                        Database.deleteFileTag(file, this);
-                        Database.addFileTag(file, child);
-                    }
-                }
+                    Database.retagFiles(this, child);
                 else
                     added = false;
             }
@@ -98,15 +176,21 @@ public class TagNode
         }
         return added;
     }
-    public void removeChild(TagNode child) { children.remove(child); }
-    public boolean hasChild(String name)
+    public void removeChild(TagNode child)
+    {
+        // If the child is leaving the tree rather than moving to another parent, it can no longer be part of a search
+        if (children.remove(child) && child.getParent() == this)
+            getRoot().untrack(child);
+    }
+    public boolean hasChild(String name) { return getChild(name) != null; }
+    public TagNode getChild(String name)
     {
         for (TagNode child : getChildren())
         {
             if (child.getTag().equals(name))
-                return true;
+                return child;
         }
-        return false;
+        return null;
     }
 
     public boolean isLeaf()
@@ -143,16 +227,19 @@ public class TagNode
 
     private int activationWeight;
     private int parentActivationWeight;
-    public void activateNode(boolean on)
+    public void activateNode(boolean on) { activateNode(on, false, getRoot()); }
+    private void activateNode(boolean on, boolean fromParent, TagNode root)
     {
+        boolean wasActive = isActive();
+        boolean wasSelfActivated = isSelfActivated();
+        if (fromParent)
+            parentActivationWeight += on ? 1 : -1;
         activationWeight += on ? 1 : -1;
+        track(root.activeNodes, wasActive, isActive());
+        track(root.selfActivatedNodes, wasSelfActivated, isSelfActivated());
+
         for (TagNode child : getChildren())
-            child.activateChildNode(on);
-    }
-    private void activateChildNode(boolean on)
-    {
-        parentActivationWeight += on ? 1 : -1;
-        activateNode(on);
+            child.activateNode(on, true, root);
     }
     public boolean isActive() { return activationWeight > 0; }
     /**
@@ -162,14 +249,75 @@ public class TagNode
     public boolean isSelfActivated() { return activationWeight > parentActivationWeight; }
 
     private int exclusionWeight = 0;
-    public void excludeNode(boolean on)
+    public void excludeNode(boolean on) { excludeNode(on, getRoot()); }
+    private void excludeNode(boolean on, TagNode root)
     {
+        boolean wasExcluded = isExcluded();
         exclusionWeight += on ? 1 : -1;
+        track(root.excludedNodes, wasExcluded, isExcluded());
+
         for (TagNode child : getChildren())
-            child.excludeNode(on);
+            child.excludeNode(on, root);
     }
     public boolean isExcluded() { return exclusionWeight > 0; }
 
+    // Change the search state this subtree inherits from its parent, such as when it is moved to a different parent
+    private void inherit(int activationDelta, int exclusionDelta, TagNode root)
+    {
+        boolean wasActive = isActive();
+        boolean wasSelfActivated = isSelfActivated();
+        boolean wasExcluded = isExcluded();
+        activationWeight += activationDelta;
+        parentActivationWeight += activationDelta;
+        exclusionWeight += exclusionDelta;
+        track(root.activeNodes, wasActive, isActive());
+        track(root.selfActivatedNodes, wasSelfActivated, isSelfActivated());
+        track(root.excludedNodes, wasExcluded, isExcluded());
+
+        for (TagNode child : getChildren())
+            child.inherit(activationDelta, exclusionDelta, root);
+    }
+
+    /* The root node keeps the set of nodes in each search state so that a search does not have to traverse the tree to find them. The sets
+     * are updated whenever a node's state changes and are null for every other node */
+    private final LinkedHashSet<TagNode> activeNodes;
+    private final LinkedHashSet<TagNode> selfActivatedNodes;
+    private final LinkedHashSet<TagNode> excludedNodes;
+    /**
+     * Gets every node in this node's tree that is active, either directly or because of an active parent.
+     * @return an unmodifiable view of the active nodes
+     */
+    public Set<TagNode> getActiveNodes() { return Collections.unmodifiableSet(getRoot().activeNodes); }
+    /**
+     * Gets every node in this node's tree that is enabled directly.
+     * @return an unmodifiable view of the self-activated nodes
+     */
+    public Set<TagNode> getSelfActivatedNodes() { return Collections.unmodifiableSet(getRoot().selfActivatedNodes); }
+    /**
+     * Gets every node in this node's tree that is excluded, either directly or because of an excluded parent.
+     * @return an unmodifiable view of the excluded nodes
+     */
+    public Set<TagNode> getExcludedNodes() { return Collections.unmodifiableSet(getRoot().excludedNodes); }
+
+    // Add this node to or remove it from one of the root's sets if its state changed
+    private void track(LinkedHashSet<TagNode> nodes, boolean before, boolean after)
+    {
+        if (!before && after)
+            nodes.add(this);
+        else if (before && !after)
+            nodes.remove(this);
+    }
+
+    // Remove a subtree that is no longer part of this (root) node's tree from its sets
+    private void untrack(TagNode node)
+    {
+        activeNodes.remove(node);
+        selfActivatedNodes.remove(node);
+        excludedNodes.remove(node);
+        for (TagNode child : node.children)
+            untrack(child);
+    }
+
     public boolean isRoot() { return (parent.get() == null); }
     public TagNode getRoot()
     {
@@ -178,6 +326,15 @@ public class TagNode
         else
             return parent.get().getRoot();
     }
+    public boolean isDescendantOf(TagNode ancestor)
+    {
+        for (TagNode node = parent.get(); node != null; node = node.getParent())
+        {
+            if (node == ancestor)
+                return true;
+        }
+        return false;
+    }
 
     private ManagedFolder folder = null;
     /**
@@ -201,6 +358,9 @@ public class TagNode
         parent.set(null);
         tag = new SimpleStringProperty("root");
         this.folder = folder;
+        activeNodes = new LinkedHashSet<>();
+        selfActivatedNodes = new LinkedHashSet<>();
+        excludedNodes = new LinkedHashSet<>();
     }
 
     /**
@@ -223,6 +383,9 @@ public class TagNode
         this.id = id;
         activationWeight = 0;
         parentActivationWeight = 0;
+        activeNodes = null;
+        selfActivatedNodes = null;
+        excludedNodes = null;
     }
 
     public boolean equals(TagNode other)
@@ -0,0 +1,511 @@
+/* TagIt
+ * ThumbnailStore.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.miscellaneous;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Stores small copies of the images in a <code>ManagedFolder</code>, so that they can be shown without decoding the original files. Every
+ * thumbnail is appended to a single pack file in the folder directory, and an index file maps each file's database ID to the position of
+ * its thumbnail in the pack. Each thumbnail is read with a single positional read of its bytes, so any thumbnail can be found and read
+ * directly. The pack is deliberately not memory mapped, since a mapping stays open until it is garbage collected and would keep the pack
+ * from being renamed or deleted on some platforms.
+ * <p/>
+ * Each thumbnail is stored as its dimensions followed by its compressed BGRA pixels. A thumbnail is never changed once it is written, so a
+ * crash can only leave an incomplete thumbnail at the end of the pack, which is removed the next time the pack is opened. The thumbnails of
+ * deleted files stay in the pack until <code>compact()</code> copies the rest into a new pack. The index is only a shortcut: if it is
+ * missing or does not match the pack, it is rebuilt by reading the pack.
+ */
+public class ThumbnailStore
+{
+    /**
+     * The largest width or height of a thumbnail, in pixels.
+     */
+    public static final int MAX_SIZE = 256;
+
+    private static final String PACK_PREFIX = "thumbnails-";
+    private static final String PACK_EXTENSION = ".pack";
+    private static final String INDEX_NAME = "thumbnails.index";
+    private static final int PACK_MAGIC = 0x54475450;
+    private static final int INDEX_MAGIC = 0x54475449;
+    private static final int VERSION = 1;
+    private static final int PACK_HEADER_BYTES = 8;
+    // File ID, width, height, and compressed length
+    private static final int RECORD_HEADER_BYTES = 16;
+    // The largest a thumbnail can be in the pack, allowing for pixels that don't compress at all
+    private static final int MAX_RECORD_BYTES = RECORD_HEADER_BYTES + (MAX_SIZE * MAX_SIZE * 4) + 4096;
+    // A pack is only compacted once this much of it, and at least a quarter of it, belongs to deleted files
+    private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+    private static final ConcurrentHashMap<String, ThumbnailStore> stores = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the thumbnail store of a <code>ManagedFolder</code>, opening it if this is the first time it is needed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @return the folder's thumbnail store
+     */
+    public static ThumbnailStore get(String directory) { return stores.computeIfAbsent(directory, ThumbnailStore::new); }
+
+    /**
+     * Closes the thumbnail store of a <code>ManagedFolder</code>, such as before its directory is moved or deleted. It will be opened again
+     * the next time it is needed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public static void invalidate(String directory)
+    {
+        ThumbnailStore store = stores.remove(directory);
+        if (store != null)
+            store.close();
+    }
+
+    // Where a thumbnail is in the pack, including its header
+    private record Location(long offset, int length) {}
+
+    private final Path directory;
+    private final Path indexPath;
+    private int generation = 0;
+    private FileChannel channel = null;
+    private long packLength = 0;
+
+    // The position of each file's thumbnail in the pack
+    private final HashMap<Integer, Location> locations = new HashMap<>();
+    // The number of bytes in the pack that belong to replaced or deleted thumbnails
+    private long deadBytes = 0;
+    private boolean indexChanged = false;
+
+    private ThumbnailStore(String directory)
+    {
+        this.directory = Path.of(directory);
+        indexPath = this.directory.resolve(INDEX_NAME);
+        try
+        {
+            open();
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ThumbnailStore: Unable to open thumbnails in \"%s\" (%s)\n", directory, exception);
+            close();
+        }
+    }
+
+    /**
+     * Checks if a file has a thumbnail.
+     * @param fileId the file's database ID
+     * @return <code>true</code> if the file has a thumbnail; <code>false</code> otherwise
+     */
+    public synchronized boolean contains(int fileId) { return locations.containsKey(fileId); }
+
+    /**
+     * Reads a file's thumbnail.
+     * @param fileId the file's database ID
+     * @return the thumbnail; <code>null</code> if the file doesn't have one or it could not be read
+     */
+    public synchronized Image get(int fileId)
+    {
+        Location location = locations.get(fileId);
+        if (location == null || channel == null)
+            return null;
+
+        try
+        {
+            if (location.length() < RECORD_HEADER_BYTES || location.length() > MAX_RECORD_BYTES)
+                throw new DataFormatException("Thumbnail location is invalid");
+
+            ByteBuffer record = ByteBuffer.allocate(location.length());
+            while (record.hasRemaining())
+            {
+                if (channel.read(record, location.offset() + record.position()) == -1)
+                    throw new EOFException("Thumbnail is past the end of the pack");
+            }
+            int width = record.getInt(4);
+            int height = record.getInt(8);
+            int length = record.getInt(12);
+            if (width <= 0 || height <= 0 || width > MAX_SIZE || height > MAX_SIZE || length != location.length() - RECORD_HEADER_BYTES)
+                throw new DataFormatException("Thumbnail header is invalid");
+
+            byte[] pixels = new byte[width * height * 4];
+            Inflater inflater = new Inflater();
+            try
+            {
+                inflater.setInput(record.array(), RECORD_HEADER_BYTES, length);
+                if (inflater.inflate(pixels) != pixels.length)
+                    throw new DataFormatException("Thumbnail is incomplete");
+            }
+            finally
+            {
+                inflater.end();
+            }
+
+            WritableImage image = new WritableImage(width, height);
+            image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getByteBgraInstance(), pixels, 0, width * 4);
+            return image;
+        }
+        catch (IOException | DataFormatException exception)
+        {
+            System.out.printf("ThumbnailStore.get: Unable to read thumbnail of file %d (%s)\n", fileId, exception);
+            return null;
+        }
+    }
+
+    /**
+     * Adds a file's thumbnail to the end of the pack, replacing any thumbnail it already had. The index is not saved until
+     * <code>flush()</code> is called.
+     * @param fileId the file's database ID
+     * @param image the thumbnail, no larger than <code>MAX_SIZE</code> in either dimension
+     * @return <code>true</code> if the thumbnail was added; <code>false</code> otherwise
+     */
+    public boolean add(int fileId, Image image)
+    {
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        if (width <= 0 || height <= 0 || width > MAX_SIZE || height > MAX_SIZE)
+        {
+            System.out.printf("ThumbnailStore.add: Thumbnail of file %d is %dx%d pixels\n", fileId, width, height);
+            return false;
+        }
+
+        // Compress the pixels before locking the store
+        byte[] pixels = new byte[width * height * 4];
+        image.getPixelReader().getPixels(0, 0, width, height, PixelFormat.getByteBgraInstance(), pixels, 0, width * 4);
+        byte[] compressed = compress(pixels);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + compressed.length);
+        record.putInt(fileId).putInt(width).putInt(height).putInt(compressed.length).put(compressed).flip();
+
+        synchronized (this)
+        {
+            if (channel == null)
+                return false;
+
+            try
+            {
+                long offset = packLength;
+                while (record.hasRemaining())
+                    channel.write(record, offset + record.position());
+                packLength += record.limit();
+                put(fileId, new Location(offset, record.limit()));
+                indexChanged = true;
+                return true;
+            }
+            catch (IOException exception)
+            {
+                System.out.printf("ThumbnailStore.add: Unable to add thumbnail of file %d (%s)\n", fileId, exception);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Saves the index if any thumbnails have been added since it was last saved.
+     */
+    public synchronized void flush()
+    {
+        if (indexChanged && channel != null)
+        {
+            writeIndex();
+            indexChanged = false;
+        }
+    }
+
+    /**
+     * Forgets the thumbnails of deleted files, and copies the remaining thumbnails into a new pack if the deleted ones take up enough of the
+     * current pack to be worth reclaiming.
+     * @param fileIds the database ID of every file that still exists
+     * @return <code>true</code> if the pack was compacted; <code>false</code> otherwise
+     */
+    public synchronized boolean compact(Collection<Integer> fileIds)
+    {
+        if (channel == null)
+            return false;
+
+        HashSet<Integer> existing = new HashSet<>(fileIds);
+        for (var iterator = locations.entrySet().iterator(); iterator.hasNext(); )
+        {
+            Map.Entry<Integer, Location> entry = iterator.next();
+            if (!existing.contains(entry.getKey()))
+            {
+                deadBytes += entry.getValue().length();
+                iterator.remove();
+                indexChanged = true;
+            }
+        }
+
+        if (deadBytes < Math.max(MIN_COMPACT_BYTES, (packLength - PACK_HEADER_BYTES) / 4))
+        {
+            flush();
+            return false;
+        }
+
+        // Write the new pack under a temporary name so that it is only found once it is complete
+        Path packPath = getPackPath(generation + 1);
+        Path temporary = packPath.resolveSibling(packPath.getFileName() + ".tmp");
+        HashMap<Integer, Location> compactedLocations = new HashMap<>();
+        try (FileChannel compacted = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            compacted.write(getPackHeader());
+            for (Map.Entry<Integer, Location> entry : locations.entrySet())
+            {
+                Location location = entry.getValue();
+                compactedLocations.put(entry.getKey(), new Location(compacted.position(), location.length()));
+                long copied = 0;
+                while (copied < location.length())
+                    copied += channel.transferTo(location.offset() + copied, location.length() - copied, compacted);
+            }
+            compacted.force(true);
+            Files.move(temporary, packPath, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ThumbnailStore.compact: %s\n", exception);
+            try
+            {
+                Files.deleteIfExists(temporary);
+            }
+            catch (IOException ignored) {}
+            flush();
+            return false;
+        }
+
+        // Switch to the new pack and save an index for it before removing the old one
+        Path oldPack = getPackPath(generation);
+        try
+        {
+            channel.close();
+            channel = FileChannel.open(packPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            generation++;
+            packLength = channel.size();
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ThumbnailStore.compact: Unable to open compacted pack (%s)\n", exception);
+            close();
+            return false;
+        }
+        locations.clear();
+        locations.putAll(compactedLocations);
+        deadBytes = 0;
+        writeIndex();
+        indexChanged = false;
+        deletePack(oldPack);
+        return true;
+    }
+
+    // Open the newest pack and read its index, rebuilding the index from the pack if it doesn't match
+    private void open() throws IOException
+    {
+        // Older packs are left behind if they couldn't be deleted after being compacted
+        HashSet<Path> oldPacks = new HashSet<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PACK_PREFIX + "*" + PACK_EXTENSION))
+        {
+            for (Path pack : stream)
+            {
+                String name = pack.getFileName().toString();
+                try
+                {
+                    int packGeneration = Integer.parseInt(name.substring(PACK_PREFIX.length(), name.length() - PACK_EXTENSION.length()));
+                    if (packGeneration > generation)
+                    {
+                        if (Files.exists(getPackPath(generation)))
+                            oldPacks.add(getPackPath(generation));
+                        generation = packGeneration;
+                    }
+                    else if (packGeneration < generation)
+                        oldPacks.add(pack);
+                }
+                catch (NumberFormatException exception)
+                {
+                    System.out.printf("ThumbnailStore.open: Ignoring unrecognized file \"%s\"\n", name);
+                }
+            }
+        }
+        oldPacks.add(getPackPath(generation + 1).resolveSibling(getPackPath(generation + 1).getFileName() + ".tmp"));
+        oldPacks.forEach(ThumbnailStore::deletePack);
+
+        channel = FileChannel.open(getPackPath(generation), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(PACK_HEADER_BYTES);
+        channel.read(header, 0);
+        if (channel.size() < PACK_HEADER_BYTES || header.getInt(0) != PACK_MAGIC || header.getInt(4) != VERSION)
+        {
+            // Start over with an empty pack, since the thumbnails can always be generated again
+            if (channel.size() > 0)
+                System.out.println("ThumbnailStore.open: Replacing unreadable pack");
+            channel.truncate(0);
+            channel.write(getPackHeader(), 0);
+        }
+        packLength = channel.size();
+
+        if (!readIndex())
+            scan();
+    }
+
+    private synchronized void close()
+    {
+        if (channel != null)
+        {
+            flush();
+            try
+            {
+                channel.close();
+            }
+            catch (IOException exception)
+            {
+                System.out.printf("ThumbnailStore.close: %s\n", exception);
+            }
+            channel = null;
+        }
+        locations.clear();
+    }
+
+    // Read the index, returning false if it is missing or was saved for a different version of the pack
+    private boolean readIndex()
+    {
+        if (!Files.isRegularFile(indexPath))
+            return false;
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath))))
+        {
+            if (input.readInt() != INDEX_MAGIC || input.readInt() != VERSION || input.readInt() != generation || input.readLong() != packLength)
+                return false;
+
+            deadBytes = input.readLong();
+            int count = input.readInt();
+            for (int i = 0; i < count; i++)
+                locations.put(input.readInt(), new Location(input.readLong(), input.readInt()));
+            return true;
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ThumbnailStore.readIndex: Ignoring unreadable index (%s)\n", exception);
+            locations.clear();
+            deadBytes = 0;
+            return false;
+        }
+    }
+
+    // Rebuild the index by reading the header of every thumbnail in the pack, removing an incomplete thumbnail from the end
+    private void scan() throws IOException
+    {
+        locations.clear();
+        deadBytes = 0;
+
+        long offset = PACK_HEADER_BYTES;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (offset + RECORD_HEADER_BYTES <= packLength)
+        {
+            header.clear();
+            while (header.hasRemaining() && channel.read(header, offset + header.position()) != -1);
+            int length = header.getInt(12);
+            if (length < 0 || offset + RECORD_HEADER_BYTES + length > packLength)
+                break;
+
+            put(header.getInt(0), new Location(offset, RECORD_HEADER_BYTES + length));
+            offset += RECORD_HEADER_BYTES + length;
+        }
+
+        if (offset < packLength)
+        {
+            System.out.printf("ThumbnailStore.scan: Removing %d bytes of incomplete thumbnails\n", packLength - offset);
+            channel.truncate(offset);
+            packLength = offset;
+        }
+        indexChanged = true;
+        flush();
+    }
+
+    // Write the index to a temporary file and then rename it over the old one, so that a crash never leaves half of an index
+    private void writeIndex()
+    {
+        Path temporary = indexPath.resolveSibling(INDEX_NAME + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary))))
+        {
+            output.writeInt(INDEX_MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(generation);
+            output.writeLong(packLength);
+            output.writeLong(deadBytes);
+            output.writeInt(locations.size());
+            for (Map.Entry<Integer, Location> entry : locations.entrySet())
+            {
+                output.writeInt(entry.getKey());
+                output.writeLong(entry.getValue().offset());
+                output.writeInt(entry.getValue().length());
+            }
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ThumbnailStore.writeIndex: %s\n", exception);
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ThumbnailStore.writeIndex: %s\n", exception);
+        }
+    }
+
+    // Record the location of a file's thumbnail, counting the thumbnail it replaces as dead
+    private void put(int fileId, Location location)
+    {
+        Location previous = locations.put(fileId, location);
+        if (previous != null)
+            deadBytes += previous.length();
+    }
+
+    private Path getPackPath(int packGeneration) { return directory.resolve(String.format("%s%d%s", PACK_PREFIX, packGeneration, PACK_EXTENSION)); }
+
+    private static ByteBuffer getPackHeader() { return ByteBuffer.allocate(PACK_HEADER_BYTES).putInt(PACK_MAGIC).putInt(VERSION).flip(); }
+
+    private static byte[] compress(byte[] pixels)
+    {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try
+        {
+            deflater.setInput(pixels);
+            deflater.finish();
+            ByteArrayOutputStream output = new ByteArrayOutputStream(pixels.length / 2);
+            byte[] buffer = new byte[64 * 1024];
+            while (!deflater.finished())
+                output.write(buffer, 0, deflater.deflate(buffer));
+            return output.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    // A pack that is still open elsewhere can't be deleted on some platforms, so it is deleted the next time the store is opened instead
+    private static void deletePack(Path pack)
+    {
+        try
+        {
+            Files.deleteIfExists(pack);
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ThumbnailStore.deletePack: Unable to delete \"%s\" until later (%s)\n", pack.getFileName(), exception);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/* TagIt
+ * WatchedDirectory.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.miscellaneous;
+
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Vector;
+
+/**
+ * A directory outside of a <code>ManagedFolder</code> whose new files are imported automatically with a default set of tags.
+ */
+public final class WatchedDirectory
+{
+    private int id;
+    public int getId() { return id; }
+    public void setId(int id)
+    {
+        if (this.id == -1)
+            this.id = id;
+    }
+
+    private final String path;
+    public String getPath() { return path; }
+
+    private volatile List<TagNode> tags;
+    /**
+     * Gets the tags applied to every file imported from this directory. Safe to call from any thread.
+     * @return an unmodifiable list of tags
+     */
+    public List<TagNode> getTags() { return tags; }
+    public void setTags(Collection<TagNode> tags)
+    {
+        this.tags = List.copyOf(tags);
+
+        // Update the string representation shown in tables
+        StringBuilder builder = new StringBuilder();
+        for (TagNode tag : this.tags)
+        {
+            if (!builder.isEmpty())
+                builder.append(",  ");
+            builder.append(tag.getTagPath());
+        }
+        tagsString.set(builder.toString());
+    }
+
+    private final StringProperty tagsString = new SimpleStringProperty();
+    public StringProperty tagsProperty() { return tagsString; }
+
+    private volatile int rateLimit;
+    /**
+     * Gets the maximum number of files imported from this directory per minute. Safe to call from any thread.
+     * @return the limit; <code>0</code> if there is no limit
+     */
+    public int getRateLimit() { return rateLimit; }
+    public void setRateLimit(int rateLimit) { this.rateLimit = rateLimit; }
+
+    private final StringProperty status = new SimpleStringProperty("Not watching");
+    /**
+     * Gets a short description of what the watcher is doing with this directory. Should only be changed on the JavaFX application thread.
+     * @return the status property
+     */
+    public StringProperty statusProperty() { return status; }
+    public void setStatus(String status) { this.status.set(status); }
+
+    /**
+     * Class constructor for a directory that has not been saved to the database yet.
+     * @param path the absolute path to the directory
+     * @param tags the tags to apply to every file imported from the directory
+     * @param rateLimit the maximum number of files to import per minute; <code>0</code> for no limit
+     */
+    public WatchedDirectory(String path, Collection<TagNode> tags, int rateLimit) { this(-1, path, tags, rateLimit); }
+
+    /**
+     * Class constructor.
+     * @param id the directory's database ID; <code>-1</code> if it has not been saved to the database yet
+     * @param path the absolute path to the directory
+     * @param tags the tags to apply to every file imported from the directory
+     * @param rateLimit the maximum number of files to import per minute; <code>0</code> for no limit
+     */
+    public WatchedDirectory(int id, String path, Collection<TagNode> tags, int rateLimit)
+    {
+        this.id = id;
+        this.path = path;
+        this.rateLimit = rateLimit;
+        setTags(tags);
+    }
+
+    /**
+     * Gets the IDs of this directory's tags.
+     * @return a list of tag IDs
+     */
+    public Vector<Integer> getTagIds()
+    {
+        Vector<Integer> ids = new Vector<>(tags.size());
+        tags.forEach(tag -> ids.add(tag.getId()));
+        return ids;
+    }
+}
@@ -9,6 +9,7 @@ import com.github.marcusschmidt4247.tagit.Database;
 import com.github.marcusschmidt4247.tagit.IOManager;
 import com.github.marcusschmidt4247.tagit.WindowManager;
 import com.github.marcusschmidt4247.tagit.miscellaneous.ManagedFolder;
+import com.github.marcusschmidt4247.tagit.tasks.FolderWatcher;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
 import javafx.collections.ObservableList;
@@ -79,7 +80,11 @@ public class ManagedFoldersModel
         // If needed, attempt to move or rename the directory in storage
         boolean update = true;
         if (delta.getName() != null || delta.getLocation() != null)
+        {
+            // The folder's watcher is tied to its current directory, so it is restarted the next time the folder is opened
+            FolderWatcher.stop(folder.getFullPath());
             update = IOManager.moveManagedFolder(folder, delta);
+        }
 
         // Update the database and ManagedFolder object unless changes in device storage failed
         if (update)
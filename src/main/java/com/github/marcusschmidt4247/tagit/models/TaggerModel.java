@@ -9,6 +9,8 @@ import com.github.marcusschmidt4247.tagit.IOManager;
 import com.github.marcusschmidt4247.tagit.miscellaneous.ManagedFolder;
 import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Vector;
 
 public class TaggerModel
@@ -26,6 +28,8 @@ public class TaggerModel
 
     private final Vector<String> files = new Vector<>();
     private int currFileIndex = -1;
+    // 1 if the user last moved to the next file, or -1 if they last moved to the previous file
+    private int direction = 1;
 
     public TaggerModel(ManagedFolder folder)
     {
@@ -33,6 +37,31 @@ public class TaggerModel
         tagTreeRoot = new TagNode(folder);
     }
 
+    /**
+     * Gets the files from the current search.
+     * @return a read-only view of the file names, in search order
+     */
+    public List<String> getFiles() { return Collections.unmodifiableList(files); }
+
+    public int getCurrentIndex() { return currFileIndex; }
+
+    /**
+     * Moves to a file from the current search.
+     * @param index the file's position in <code>getFiles()</code>
+     * @return the file's name; <code>null</code> if <code>index</code> is out of range
+     */
+    public String selectFile(int index)
+    {
+        if (index >= 0 && index < files.size())
+        {
+            direction = (index < currFileIndex) ? -1 : 1;
+            currFileIndex = index;
+            return files.get(currFileIndex);
+        }
+        else
+            return null;
+    }
+
     public String firstFile()
     {
         if (!files.isEmpty())
@@ -57,6 +86,7 @@ public class TaggerModel
         if (!files.isEmpty())
         {
             currFileIndex++;
+            direction = 1;
             if (currFileIndex >= files.size())
                 currFileIndex = 0;
 
@@ -71,6 +101,7 @@ public class TaggerModel
         if (!files.isEmpty())
         {
             currFileIndex--;
+            direction = -1;
             if (currFileIndex < 0)
                 currFileIndex = files.size() - 1;
 
@@ -79,9 +110,37 @@ public class TaggerModel
         return null;
     }
 
+    /**
+     * Gets the files on either side of the current file, which are the ones most likely to be viewed next. More files are included in the
+     * direction that the user last moved in, and the list wraps around at either end like <code>nextFile()</code> and
+     * <code>prevFile()</code>.
+     * @param ahead the number of files to include in the direction of travel
+     * @param behind the number of files to include in the other direction
+     * @return the file names, ordered from most to least likely to be viewed next; never includes the current file
+     */
+    public Vector<String> getNeighbors(int ahead, int behind)
+    {
+        Vector<String> neighbors = new Vector<>();
+        if (files.size() <= 1)
+            return neighbors;
+
+        // Alternate between the two directions so that the nearest files on each side come first
+        ahead = Math.min(ahead, files.size() - 1);
+        behind = Math.min(behind, files.size() - 1 - ahead);
+        for (int distance = 1; distance <= Math.max(ahead, behind); distance++)
+        {
+            if (distance <= ahead)
+                neighbors.add(files.get(Math.floorMod(currFileIndex + (distance * direction), files.size())));
+            if (distance <= behind)
+                neighbors.add(files.get(Math.floorMod(currFileIndex - (distance * direction), files.size())));
+        }
+        return neighbors;
+    }
+
     public void setFiles(Vector<String> files)
     {
         currFileIndex = 0;
+        direction = 1;
         this.files.removeAllElements();
         this.files.addAll(files);
     }
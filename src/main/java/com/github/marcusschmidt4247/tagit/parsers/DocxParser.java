@@ -15,7 +15,10 @@ import org.docx4j.openpackaging.exceptions.Docx4JException;
 import org.docx4j.openpackaging.packages.WordprocessingMLPackage;
 import org.docx4j.wml.*;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
@@ -321,6 +324,41 @@ public class DocxParser extends Parser
 
     @Override public void close() { }
 
+    @Override public int getIndexedPageCount() { return pages.size(); }
+
+    @Override
+    public void writePages(DataOutputStream output) throws IOException
+    {
+        output.writeInt(pages.size());
+        for (PageStart pageStart : pages)
+        {
+            // The first page doesn't start in a paragraph
+            output.writeBoolean(pageStart.paraId() != null);
+            if (pageStart.paraId() != null)
+                output.writeUTF(pageStart.paraId());
+            output.writeInt(pageStart.offset());
+        }
+    }
+
+    @Override
+    public void readPages(DataInputStream input) throws IOException
+    {
+        int count = input.readInt();
+        Vector<PageStart> restored = new Vector<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String paraId = input.readBoolean() ? input.readUTF() : null;
+            restored.add(new PageStart(paraId, input.readInt()));
+        }
+
+        // Keep the current index if it has already found more pages (pages that can't be found in the document are re-indexed when traversed)
+        if (restored.size() > pages.size())
+        {
+            pages.clear();
+            pages.addAll(restored);
+        }
+    }
+
     // Use the provided callback method to traverse the .docx file, and if the StartPage cannot be found then re-index the pages and try again
     private boolean traverseDocument(final int maxChars, DocxTraversalCallback callback)
     {
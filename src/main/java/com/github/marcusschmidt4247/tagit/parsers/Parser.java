@@ -7,6 +7,9 @@ package com.github.marcusschmidt4247.tagit.parsers;
 
 import javafx.scene.text.Font;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.Vector;
 
@@ -17,6 +20,12 @@ public abstract class Parser
     abstract public ParserResults readNextPage(final Font font, final int maxChars);
     abstract public void close();
 
+    // The page boundaries that have been found so far can be saved and restored, so that the document doesn't need to be re-paginated the
+    // next time it is opened (they are only valid for the same file contents and maximum number of characters per page)
+    abstract public int getIndexedPageCount();
+    abstract public void writePages(DataOutputStream output) throws IOException;
+    abstract public void readPages(DataInputStream input) throws IOException;
+
     // Search backwards from the end of the string for a good character to end on
     protected static String neatCutoff(String text)
     {
@@ -8,134 +8,201 @@ package com.github.marcusschmidt4247.tagit.parsers;
 import javafx.scene.text.Font;
 import javafx.scene.text.Text;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 import java.util.Vector;
 
+/**
+ * Reads a UTF-8 text file one page at a time. Pages are located by the byte offset where they start, and each page is read with a
+ * positional read from its offset, so moving to any page that has already been indexed doesn't read anything before it. Unknown pages are
+ * reached by reading forward from the last indexed page. Invalid UTF-8 is shown as replacement characters.
+ */
 public class TxtParser extends Parser
 {
-    private final File file;
-    private FileReader fileReader;
-    private int filePos;
+    // The most bytes that UTF-8 uses for a single char (characters outside the BMP use four bytes for a pair of chars)
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    private final FileChannel channel;
+    private final CharsetDecoder decoder;
 
     private int nextPage;
     public int getNextPageNum() { return nextPage; }
 
-    private final Vector<Integer> pages;
-    private String carryover;
+    // The byte offset where each indexed page starts
+    private final Vector<Long> pages;
+
+    // The text of a page and whether it is the last one in the file
+    private record PageText(String text, boolean endOfFile) {}
 
     public TxtParser(File file) throws FileNotFoundException
     {
-        this.file = file;
-        fileReader = new FileReader(file);
-        filePos = 0;
+        channel = new FileInputStream(file).getChannel();
+        decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
         nextPage = 0;
         pages = new Vector<>();
-        pages.add(filePos);
-        carryover = "";
+        pages.add(0L);
     }
 
     @Override
     public boolean setNextPage(int targetPage, final int maxChars)
     {
-        // Unless reading a future page, reset the file reader to the beginning of the file
-        if (targetPage >= nextPage || resetFileReader())
+        // Jump directly to the target page if it has already been indexed, or else to the last page that has been
+        int destPage = (targetPage < pages.size()) ? targetPage : (pages.size() - 1);
+        try
         {
-            // Skip as close to the target page as has already been indexed
-            int destPage = (targetPage < pages.size()) ? targetPage : (pages.size() - 1);
-            int destPos = pages.get(destPage);
-            long skipped = -1;
-            try
+            // If the page starts past the end of the file, then the file has likely been truncated and the pages need to be re-indexed
+            if (pages.get(destPage) > channel.size())
             {
-                skipped = fileReader.skip(destPos);
+                pages.clear();
+                pages.add(0L);
+                nextPage = 0;
+                return setNextPage(targetPage, maxChars);
             }
-            catch (IOException exception)
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("TxtParser.setNextPage: %s\n", exception.toString());
+            return false;
+        }
+        nextPage = destPage;
+
+        // If there are any pages left to traverse, index them until the destination or end of file is reached
+        while (nextPage < targetPage)
+        {
+            PageText page = readPageText(maxChars);
+            if (page == null)
+                return false;
+            else if (page.endOfFile())
             {
-                System.out.printf("TxtParser.setNextPage: %s\n", exception.toString());
+                // Stop at the last page
+                nextPage--;
+                return true;
             }
+        }
+        return true;
+    }
 
-            if (skipped != -1 && skipped == destPos)
-            {
-                filePos = destPos;
-                nextPage = destPage;
+    @Override
+    public ParserResults readNextPage(final Font font, final int maxChars)
+    {
+        PageText page = readPageText(maxChars);
+        if (page == null)
+            return null;
 
-                // If there are any pages left to traverse, read them until the destination or end of file is reached
-                while (nextPage < targetPage)
-                {
-                    ParserResults page = readNextPage(Font.font(1.0), maxChars);
-                    if (page == null)
-                        return false;
-                    else if (page.isEndOfFile())
-                    {
-                        int lastPage = nextPage - 1;
-                        return resetFileReader() && setNextPage(lastPage, maxChars);
-                    }
-                }
+        Text content = new Text(page.text());
+        content.setFont(font);
+        return new ParserResults(content, page.endOfFile());
+    }
 
-                return true;
-            }
-            // If less than the full amount could be skipped, then the file has likely been truncated and the pages need to be re-indexed
-            else if (skipped != -1)
-            {
-                pages.clear();
-                pages.add(0);
-                return resetFileReader() && setNextPage(targetPage, maxChars);
-            }
+    @Override
+    public int getIndexedPageCount() { return pages.size(); }
+
+    @Override
+    public void writePages(DataOutputStream output) throws IOException
+    {
+        output.writeInt(pages.size());
+        for (long pageStart : pages)
+            output.writeLong(pageStart);
+    }
+
+    @Override
+    public void readPages(DataInputStream input) throws IOException
+    {
+        int count = input.readInt();
+        Vector<Long> restored = new Vector<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            long pageStart = input.readLong();
+            // Every page must start after the one before it
+            if ((i == 0) ? (pageStart != 0) : (pageStart <= restored.getLast()))
+                throw new IOException("Invalid page offset");
+            restored.add(pageStart);
         }
 
-        return false;
+        // Keep the current index if it has already found more pages
+        if (restored.size() > pages.size())
+        {
+            pages.clear();
+            pages.addAll(restored);
+        }
     }
 
     @Override
-    public ParserResults readNextPage(final Font font, final int maxChars)
+    public void close()
+    {
+        try { channel.close(); }
+        catch (IOException exception) { System.out.println("TxtParser.close: Failed to close channel"); }
+    }
+
+    // Read the next page's text, indexing where the page after it starts if it hasn't been already
+    private PageText readPageText(final int maxChars)
     {
         try
         {
-            // Attempt to read the maximum number of characters for a new page, or exactly the length of a known page
-            int pageLen = (nextPage + 1 < pages.size()) ? (pages.get(nextPage + 1) - pages.get(nextPage)) : maxChars;
-            int bufferLen = pageLen - carryover.length();
-            char[] buffer = new char[bufferLen];
-            int length = fileReader.read(buffer, 0, bufferLen);
-            if (length != -1)
+            long pageStart = pages.get(nextPage);
+            String text;
+            boolean eof;
+            if (nextPage + 1 < pages.size())
+            {
+                // Read exactly the bytes of a known page
+                long pageEnd = pages.get(nextPage + 1);
+                ByteBuffer bytes = ByteBuffer.allocate((int) (pageEnd - pageStart));
+                while (bytes.hasRemaining())
+                {
+                    if (channel.read(bytes, pageStart + bytes.position()) == -1)
+                        break;
+                }
+                bytes.flip();
+                decoder.reset();
+                text = decoder.decode(bytes).toString();
+                eof = false;
+            }
+            else
             {
-                filePos += length;
-                String text = carryover + new String(buffer, 0, length);
-                length += carryover.length();
-                carryover = "";
-                nextPage++;
+                // Attempt to read the maximum number of characters for a new page
+                CharBuffer chars = CharBuffer.allocate(maxChars);
+                long consumed = decode(pageStart, chars);
+                text = chars.flip().toString();
 
                 // Determine whether the end of the file has been reached before a full page could be read
-                boolean eof = (length < pageLen);
-                // If the file continues onto another page
-                if (!eof)
+                eof = (pageStart + consumed >= channel.size());
+                // If the file continues onto another page, find a good place to stop this page if it doesn't already end with a space
+                if (!eof && text.charAt(text.length() - 1) != ' ')
                 {
-                    int pageStart = filePos;
-                    // Find a good place to stop this page if it doesn't already end with a space
-                    if (buffer[bufferLen - 1] != ' ')
+                    String trimmed = neatCutoff(text);
+                    if (!trimmed.isEmpty() && trimmed.length() < text.length())
                     {
-                        String trimmed = neatCutoff(text);
-                        carryover = text.substring(trimmed.length());
+                        // Decode the page again up to where it was cut off to find the byte offset of the cutoff
                         text = trimmed;
-                        pageStart -= length - text.length();
+                        consumed = decode(pageStart, CharBuffer.allocate(text.length()));
                     }
-
-                    // Record the position where the next page starts if it has not been already
-                    if (nextPage >= pages.size())
-                        pages.add(pageStart);
                 }
 
-                Text content = new Text(text);
-                content.setFont(font);
-                return new ParserResults(content, eof);
+                // Record the position where the next page starts
+                if (!eof)
+                    pages.add(pageStart + consumed);
             }
-            else
+
+            if (text.isEmpty() && eof)
             {
                 // If there was nothing to be read, the previous page must be the last one
                 System.out.println("TxtParser.readPage: Already reached EOF");
                 return null;
             }
+            nextPage++;
+            return new PageText(text, eof);
         }
         catch (IOException exception)
         {
@@ -143,28 +210,30 @@ public class TxtParser extends Parser
         }
     }
 
-    @Override
-    public void close()
-    {
-        try { fileReader.close(); }
-        catch (IOException exception) { System.out.println("TxtParser.close: Failed to close fileReader"); }
-    }
-
-    private boolean resetFileReader()
+    // Decode characters starting at a byte offset until the buffer is full or the file ends, and return the number of bytes decoded
+    private long decode(long position, CharBuffer chars) throws IOException
     {
-        try
+        ByteBuffer bytes = ByteBuffer.allocate(chars.capacity() * MAX_BYTES_PER_CHAR + MAX_BYTES_PER_CHAR);
+        decoder.reset();
+        long readPos = position;
+        boolean endOfInput = false;
+        while (chars.hasRemaining() && !endOfInput)
         {
-            filePos = 0;
-            nextPage = 0;
-            carryover = "";
-            close();
-            fileReader = new FileReader(file);
-            return true;
-        }
-        catch (FileNotFoundException exception)
-        {
-            System.out.println("TxtParser.resetFileReader: File not found");
-            return false;
+            int read = channel.read(bytes, readPos);
+            if (read == -1)
+                endOfInput = true;
+            else
+                readPos += read;
+
+            bytes.flip();
+            boolean overflow = decoder.decode(bytes, chars, endOfInput).isOverflow();
+            if (endOfInput)
+                decoder.flush(chars);
+            bytes.compact();
+            if (overflow)
+                break;
         }
+        // Bytes that are still in the buffer were read but not decoded
+        return readPos - position - bytes.position();
     }
 }
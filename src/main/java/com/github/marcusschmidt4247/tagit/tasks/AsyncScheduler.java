@@ -0,0 +1,192 @@
+/* TagIt
+ * AsyncScheduler.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import javafx.application.Platform;
+
+import java.util.Vector;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Runs <code>Database</code> and <code>IOManager</code> operations on virtual threads so that slow storage never blocks the JavaFX
+ * application thread. Operations on the same <code>ManagedFolder</code> keep the order they were submitted in, except that consecutive
+ * reads run at the same time: a read waits for the last write submitted before it, and a write waits for every operation submitted before
+ * it, so a write always runs alone.
+ * <p/>
+ * A read can also be submitted with a key, such as "search", that identifies what it is for. Submitting another read with the same key
+ * cancels the earlier one, and the result of a cancelled read is never delivered, so a slow request cannot overwrite a newer one.
+ * <p/>
+ * Later operations wait for an earlier one to actually finish rather than for its future, so cancelling an operation that is already
+ * running never lets a write start alongside it.
+ */
+public class AsyncScheduler
+{
+    /**
+     * Runs the dependent stages of a <code>CompletableFuture</code> on the JavaFX application thread, such as with
+     * <code>thenAcceptAsync()</code>.
+     */
+    public static final Executor FX_THREAD = Platform::runLater;
+
+    // The operations on one folder that later operations must wait for
+    private static class FolderQueue
+    {
+        // Completes when the last write that was submitted has finished running or been skipped
+        CompletableFuture<?> lastWrite = CompletableFuture.completedFuture(null);
+        // Complete when each read submitted since the last write has finished running or been skipped
+        final Vector<CompletableFuture<?>> reads = new Vector<>();
+    }
+
+    private static final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private static final ConcurrentHashMap<String, FolderQueue> queues = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, CompletableFuture<?>> latest = new ConcurrentHashMap<>();
+
+    /**
+     * Reads from a <code>ManagedFolder</code> on a virtual thread.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param operation the work to run, which must not change the folder
+     * @return a future that completes with the result of <code>operation</code>; cancelling it interrupts the operation
+     */
+    public static <T> CompletableFuture<T> read(String directory, Callable<T> operation)
+    {
+        FolderQueue queue = getQueue(directory);
+        synchronized (queue)
+        {
+            // Wait for the write that was submitted first, so that a read always sees it
+            CompletableFuture<T> result = new CompletableFuture<>();
+            CompletableFuture<Void> finished = new CompletableFuture<>();
+            queue.lastWrite.whenComplete((value, exception) -> submit(operation, result, finished));
+            queue.reads.removeIf(CompletableFuture::isDone);
+            queue.reads.add(finished);
+            return result;
+        }
+    }
+
+    /**
+     * Changes a <code>ManagedFolder</code> on a virtual thread, after every operation on the folder that was submitted before it.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param operation the work to run
+     * @return a future that completes with the result of <code>operation</code>; cancelling it before it starts skips the operation
+     */
+    public static <T> CompletableFuture<T> write(String directory, Callable<T> operation)
+    {
+        FolderQueue queue = getQueue(directory);
+        synchronized (queue)
+        {
+            // Start after the previous write and the reads since then, whether or not they succeeded
+            queue.reads.add(queue.lastWrite);
+            CompletableFuture<Void> previous = CompletableFuture.allOf(queue.reads.toArray(new CompletableFuture<?>[0]));
+            queue.reads.clear();
+
+            CompletableFuture<T> result = new CompletableFuture<>();
+            CompletableFuture<Void> finished = new CompletableFuture<>();
+            previous.whenComplete((value, exception) -> submit(operation, result, finished));
+            queue.lastWrite = finished;
+            return result;
+        }
+    }
+
+    /**
+     * Reads from a <code>ManagedFolder</code> on a virtual thread, cancelling the previous read submitted with the same key, and passes the
+     * result to <code>onResult</code> on the JavaFX application thread unless this read has been replaced by then. Exceptions are logged.
+     * Should be called on the JavaFX application thread.
+     * @param key identifies what the read is for
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param operation the work to run, which must not change the folder
+     * @param onResult receives the result of <code>operation</code>
+     * @return a future that completes with the result of <code>operation</code>
+     */
+    public static <T> CompletableFuture<T> replace(String key, String directory, Callable<T> operation, Consumer<T> onResult)
+    {
+        CompletableFuture<T> result = read(directory, operation);
+        CompletableFuture<?> previous = latest.put(key, result);
+        if (previous != null)
+            previous.cancel(true);
+
+        result.whenCompleteAsync((value, exception) ->
+        {
+            // Another read may have replaced this one while its result was waiting to be delivered
+            if (latest.get(key) != result)
+                return;
+            latest.remove(key);
+
+            if (exception == null)
+                onResult.accept(value);
+            else if (!(exception instanceof CancellationException))
+                System.out.printf("AsyncScheduler.replace: \"%s\" failed (%s)\n", key, exception);
+        }, FX_THREAD);
+        return result;
+    }
+
+    /**
+     * Cancels the read that was last submitted with a key, if it has not finished yet, so that its result is never delivered. Should be
+     * called on the JavaFX application thread.
+     * @param key identifies what the read is for
+     * @return <code>true</code> if a read was cancelled; <code>false</code> otherwise
+     */
+    public static boolean cancel(String key)
+    {
+        CompletableFuture<?> previous = latest.remove(key);
+        return previous != null && previous.cancel(true);
+    }
+
+    /**
+     * Passes the result of a future to <code>onResult</code> on the JavaFX application thread. Exceptions are logged instead.
+     * @param future the operation to wait for
+     * @param onResult receives the result of the operation
+     */
+    public static <T> void deliver(CompletableFuture<T> future, Consumer<T> onResult)
+    {
+        future.whenCompleteAsync((value, exception) ->
+        {
+            if (exception == null)
+                onResult.accept(value);
+            else if (!(exception instanceof CancellationException))
+                System.out.printf("AsyncScheduler.deliver: %s\n", exception);
+        }, FX_THREAD);
+    }
+
+    private static FolderQueue getQueue(String directory) { return queues.computeIfAbsent(directory, key -> new FolderQueue()); }
+
+    // Run the operation on a virtual thread, unless 'result' is cancelled first, and complete 'finished' once the operation has returned
+    private static <T> void submit(Callable<T> operation, CompletableFuture<T> result, CompletableFuture<Void> finished)
+    {
+        if (result.isDone())
+        {
+            finished.complete(null);
+            return;
+        }
+
+        AtomicReference<Thread> runner = new AtomicReference<>();
+        executor.execute(() ->
+        {
+            runner.set(Thread.currentThread());
+            try
+            {
+                if (!result.isDone())
+                    result.complete(operation.call());
+            }
+            catch (Throwable exception)
+            {
+                result.completeExceptionally(exception);
+            }
+            finally
+            {
+                finished.complete(null);
+            }
+        });
+
+        // CompletableFuture.cancel() doesn't interrupt anything itself, so pass the cancellation on to the thread if it has started. A thread
+        // that hasn't will see that 'result' is done and skip the operation.
+        result.whenComplete((value, exception) ->
+        {
+            Thread thread = runner.get();
+            if (result.isCancelled() && thread != null)
+                thread.interrupt();
+        });
+    }
+}
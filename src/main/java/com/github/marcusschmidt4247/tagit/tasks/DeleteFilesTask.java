@@ -0,0 +1,120 @@
+/* TagIt
+ * DeleteFilesTask.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.IOManager;
+import javafx.concurrent.Task;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Deletes a batch of files from a <code>ManagedFolder</code>. The files are removed from storage concurrently on a small pool of I/O threads,
+ * and then every file that was removed (or was already missing) is deleted from the database in a single transaction. Files that could not
+ * be removed from storage keep their database records so that they are not left untracked.
+ * <p/>
+ * If the task is cancelled, no more files are removed from storage, but the files already removed are still deleted from the database.
+ * The value of this task is the number of files deleted. If the database records could not be deleted, the task fails instead, leaving
+ * records for files that are no longer in storage until the folder is reconciled.
+ */
+public class DeleteFilesTask extends Task<Integer>
+{
+    private static final int MAX_IO_THREADS = 8;
+
+    private final String directory;
+    private final Vector<String> files;
+    private final boolean updateDatabase;
+
+    private final Vector<String> failures = new Vector<>();
+    /**
+     * Gets the files that could not be deleted. Should not be called until this task has finished running.
+     * @return the names of the files that are still in storage
+     */
+    public Vector<String> getFailures() { return failures; }
+
+    /**
+     * Class constructor.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param files the names of the files to delete
+     * @param updateDatabase <code>true</code> to delete the files' database records too; <code>false</code> to only delete them from storage
+     */
+    public DeleteFilesTask(String directory, Collection<String> files, boolean updateDatabase)
+    {
+        this.directory = directory;
+        this.files = new Vector<>(files);
+        this.updateDatabase = updateDatabase;
+    }
+
+    @Override
+    protected Integer call()
+    {
+        Vector<String> deleted = new Vector<>(files.size());
+        AtomicInteger completed = new AtomicInteger();
+        int threads = Math.max(1, Math.min(MAX_IO_THREADS, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable ->
+        {
+            Thread thread = new Thread(runnable, "DeleteFilesTask");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        updateMessage(String.format("Deleting %d files...", files.size()));
+        for (String file : files)
+        {
+            executor.execute(() ->
+            {
+                try
+                {
+                    // A file that is already missing is treated as deleted so that its record can be cleaned up
+                    Files.deleteIfExists(Path.of(IOManager.getFilePath(directory, file)));
+                    deleted.add(file);
+                }
+                catch (IOException | SecurityException exception)
+                {
+                    System.out.printf("DeleteFilesTask.call: Unable to delete file \"%s\" (%s)\n", file, exception);
+                    failures.add(file);
+                }
+                completed.incrementAndGet();
+            });
+        }
+        executor.shutdown();
+
+        // Report progress until every unlink has finished, or stop the ones that haven't started if this task is cancelled
+        while (!executor.isTerminated())
+        {
+            try
+            {
+                if (!executor.awaitTermination(100, TimeUnit.MILLISECONDS))
+                    updateProgress(completed.get(), files.size());
+            }
+            catch (InterruptedException exception)
+            {
+                // Cancelling this task interrupts its thread
+            }
+
+            if (isCancelled())
+                executor.shutdownNow();
+        }
+        updateProgress(completed.get(), files.size());
+
+        // Remove the records of every file that is no longer in storage
+        if (updateDatabase && !deleted.isEmpty())
+        {
+            updateMessage("Updating database...");
+            if (!Database.deleteFiles(directory, deleted))
+                throw new IllegalStateException(String.format("Unable to delete the records of %d files from the database", deleted.size()));
+        }
+        return deleted.size();
+    }
+}
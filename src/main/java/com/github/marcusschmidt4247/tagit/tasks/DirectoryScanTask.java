@@ -0,0 +1,118 @@
+/* TagIt
+ * DirectoryScanTask.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
+import javafx.application.Platform;
+import javafx.concurrent.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.Vector;
+import java.util.function.Consumer;
+
+/**
+ * Finds every supported file in a directory and, optionally, its subdirectories. Files are handed to the JavaFX application thread in
+ * chunks while the scan continues, so the first file is available almost immediately even in very large directories. The first file found
+ * is delivered on its own, and after that a chunk is delivered whenever it is full or has been waiting for a short time.
+ * <p/>
+ * Directories that cannot be read are skipped, and symbolic links to directories are not followed. If the task is cancelled, the scan stops
+ * and no more chunks are delivered. The value of this task is the number of files found.
+ */
+public class DirectoryScanTask extends Task<Integer>
+{
+    /**
+     * The deepest level of subdirectories that is scanned when subdirectories are included.
+     */
+    public static final int MAX_DEPTH = 32;
+
+    private static final int CHUNK_SIZE = 500;
+    private static final long CHUNK_DELAY_MILLIS = 100;
+
+    private final Path directory;
+    private final int maxDepth;
+    private final Consumer<Vector<File>> consumer;
+
+    private Vector<File> chunk = new Vector<>();
+    private long lastDelivery = 0;
+    private int found = 0;
+
+    /**
+     * Class constructor.
+     * @param directory the absolute path to the directory to scan
+     * @param maxDepth the number of directory levels to scan (<code>1</code> to only scan <code>directory</code> itself)
+     * @param consumer receives each chunk of files on the JavaFX application thread
+     */
+    public DirectoryScanTask(String directory, int maxDepth, Consumer<Vector<File>> consumer)
+    {
+        this.directory = Path.of(directory);
+        this.maxDepth = maxDepth;
+        this.consumer = consumer;
+    }
+
+    @Override
+    protected Integer call() throws IOException
+    {
+        updateMessage("Scanning...");
+        // The depth of walkFileTree() counts the directory itself as level 0, so its files are at level 1
+        Files.walkFileTree(directory, EnumSet.noneOf(FileVisitOption.class), maxDepth, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes)
+            {
+                return isCancelled() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            {
+                if (isCancelled())
+                    return FileVisitResult.TERMINATE;
+
+                if (attributes.isRegularFile() && FileTypes.isSupported(file.getFileName().toString()))
+                {
+                    chunk.add(file.toFile());
+                    found++;
+                    // Deliver the first file right away, then wait until the chunk is full or has been waiting long enough
+                    if (found == 1 || chunk.size() >= CHUNK_SIZE || System.currentTimeMillis() - lastDelivery >= CHUNK_DELAY_MILLIS)
+                        deliver();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exception)
+            {
+                System.out.printf("DirectoryScanTask.call: Unable to read \"%s\" (%s)\n", file, exception);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        deliver();
+
+        updateMessage(String.format("Found %d files", found));
+        return found;
+    }
+
+    // Pass the current chunk to the consumer on the JavaFX application thread and start a new one
+    private void deliver()
+    {
+        if (!chunk.isEmpty())
+        {
+            final Vector<File> files = chunk;
+            chunk = new Vector<>(CHUNK_SIZE);
+            lastDelivery = System.currentTimeMillis();
+            Platform.runLater(() ->
+            {
+                // A chunk that was waiting when the task was cancelled is dropped
+                if (!isCancelled())
+                    consumer.accept(files);
+            });
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/* TagIt
+ * FileTransfer.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+
+/**
+ * Transfers files into storage. Copies are made in chunks directly between file channels so they can report progress and be cancelled,
+ * and moves and links take a fast path when the source is on the same file system as the target. Copied data is not forced to the disk
+ * until <code>sync()</code> is called, so that a batch of files can be synced together, except that a move that has to copy a file syncs
+ * the copy before deleting the original.
+ */
+public class FileTransfer
+{
+    public enum Mode
+    {
+        COPY ("Copy"),
+        MOVE ("Move"),
+        LINK ("Link (same drive only)");
+
+        public final String description;
+        Mode(String description) { this.description = description; }
+    }
+
+    private static final long CHUNK_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * Transfers a file to a new location that must not already exist.
+     * @param source the file to transfer
+     * @param target the new location
+     * @param mode how to transfer the file (<code>LINK</code> falls back to a copy on another file system)
+     * @param progress receives the number of bytes transferred since it was last called; can be <code>null</code>
+     * @param cancelled checked between chunks to stop a copy early; can be <code>null</code>
+     * @return <code>true</code> if the data was copied and needs to be synced; <code>false</code> if it was renamed, linked, or moved by a
+     * copy that has already been synced
+     * @throws FileAlreadyExistsException if <code>target</code> exists
+     * @throws CancellationException if the copy was cancelled (nothing will be left at <code>target</code>)
+     * @throws IOException if the file could not be transferred (a <code>MOVE</code> that copied the file but couldn't sync the copy or delete
+     * the source leaves nothing at <code>target</code>)
+     */
+    public static boolean transfer(Path source, Path target, Mode mode, LongConsumer progress, BooleanSupplier cancelled) throws IOException
+    {
+        // Some file systems replace an existing file when renaming, so check for one first
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+            throw new FileAlreadyExistsException(target.toString());
+        // A sharded storage directory creates its subdirectories as they are needed
+        Files.createDirectories(target.getParent());
+
+        long size = Files.size(source);
+        switch (mode)
+        {
+            case MOVE:
+                try
+                {
+                    // A rename is only possible on the same file system, so fall back to a copy if that fails
+                    Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                    report(progress, size);
+                    return false;
+                }
+                catch (AtomicMoveNotSupportedException exception)
+                {
+                    copy(source, target, progress, cancelled);
+                    try
+                    {
+                        // The copy must be on the disk before the source is deleted, or a crash could lose the only copy of the file
+                        sync(List.of(target));
+                        Files.delete(source);
+                    }
+                    catch (IOException | SecurityException deleteException)
+                    {
+                        // Leave the file where it was instead of keeping an untracked copy in storage
+                        Files.deleteIfExists(target);
+                        throw deleteException;
+                    }
+                    return false;
+                }
+            case LINK:
+                if (Files.getFileStore(source).equals(Files.getFileStore(target.getParent())))
+                {
+                    try
+                    {
+                        Files.createLink(target, source);
+                        report(progress, size);
+                        return false;
+                    }
+                    catch (UnsupportedOperationException exception)
+                    {
+                        System.out.printf("FileTransfer.transfer: Unable to link \"%s\", copying instead\n", source.getFileName());
+                    }
+                }
+                copy(source, target, progress, cancelled);
+                return true;
+            default:
+                copy(source, target, progress, cancelled);
+                return true;
+        }
+    }
+
+    /**
+     * Forces the contents of copied files to the storage device.
+     * @param files the files to sync
+     * @throws IOException if a file could not be synced
+     */
+    public static void sync(Collection<Path> files) throws IOException
+    {
+        for (Path file : files)
+        {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+            {
+                channel.force(true);
+            }
+        }
+    }
+
+    // Copy the file in chunks between channels, keeping its timestamps and deleting the partial copy if anything goes wrong
+    private static void copy(Path source, Path target, LongConsumer progress, BooleanSupplier cancelled) throws IOException
+    {
+        FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        try (in; FileChannel out = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW))
+        {
+            long size = in.size();
+            long position = 0;
+            while (position < size)
+            {
+                if (cancelled != null && cancelled.getAsBoolean())
+                    throw new CancellationException();
+
+                long transferred = in.transferTo(position, Math.min(CHUNK_SIZE, size - position), out);
+                // A source that shrank while being copied will stop transferring before its original size
+                if (transferred <= 0)
+                    break;
+                position += transferred;
+                report(progress, transferred);
+            }
+        }
+        catch (FileAlreadyExistsException exception)
+        {
+            // The target belongs to someone else, so leave it alone
+            throw exception;
+        }
+        catch (IOException | RuntimeException exception)
+        {
+            // Both channels have been closed by now, so the partial copy can be deleted
+            Files.deleteIfExists(target);
+            throw exception;
+        }
+
+        // Keep the original timestamps like a copy with COPY_ATTRIBUTES would
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        Files.getFileAttributeView(target, BasicFileAttributeView.class).setTimes(attributes.lastModifiedTime(), attributes.lastAccessTime(), attributes.creationTime());
+    }
+
+    private static void report(LongConsumer progress, long bytes)
+    {
+        if (progress != null)
+            progress.accept(bytes);
+    }
+}
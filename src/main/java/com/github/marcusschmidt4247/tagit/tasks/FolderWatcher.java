@@ -0,0 +1,458 @@
+/* TagIt
+ * FolderWatcher.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
+import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
+import com.github.marcusschmidt4247.tagit.miscellaneous.WatchedDirectory;
+import javafx.application.Platform;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Automatically imports new files from the watched directories of a <code>ManagedFolder</code>. Each <code>ManagedFolder</code> has at
+ * most one watcher, which runs on its own background thread until the folder is deleted or moved.
+ * <p/>
+ * A new file is not imported until its size has stopped changing for a short time, so files that are still being written are left alone.
+ * Files that are ready are moved into storage in batches with their directory's tags, and a directory with a rate limit only imports as
+ * many files as its limit allows, leaving the rest to wait. Files that already exist when a directory is first watched are imported too.
+ * A file whose name is already taken is imported under a numbered name. Files that cannot be imported are left in place and logged: a file
+ * that failed for a reason that may pass, such as being locked, is tried again after a minute, and a file that was rejected, such as for
+ * having the same contents as a file already in the folder, is ignored until its size or modified time changes. Before each batch, the
+ * directory's tags are checked against the database, and any that have since been deleted or given children are removed from the directory.
+ */
+public class FolderWatcher
+{
+    private static final long POLL_MILLIS = 500;
+    private static final long STABLE_MILLIS = 2000;
+    private static final long RETRY_MILLIS = 60000;
+    private static final int MAX_BATCH_SIZE = 200;
+
+    private static final HashMap<String, FolderWatcher> watchers = new HashMap<>();
+
+    /**
+     * Starts watching every watched directory of a <code>ManagedFolder</code>, unless its watcher is already running. Should be called on the
+     * JavaFX application thread.
+     * @param root the root of the <code>ManagedFolder</code>'s <code>TagNode</code> tree
+     * @return the folder's watcher; <code>null</code> if it could not be started
+     */
+    public static FolderWatcher start(TagNode root)
+    {
+        String folder = root.getDirectory();
+        synchronized (watchers)
+        {
+            FolderWatcher watcher = watchers.get(folder);
+            if (watcher == null)
+            {
+                try
+                {
+                    watcher = new FolderWatcher(folder);
+                }
+                catch (IOException exception)
+                {
+                    System.out.printf("FolderWatcher.start: Unable to create watch service (%s)\n", exception);
+                    return null;
+                }
+                watchers.put(folder, watcher);
+
+                for (WatchedDirectory directory : Database.getWatchedDirectories(root))
+                {
+                    watcher.directories.add(directory);
+                    watcher.watch(directory);
+                }
+                watcher.thread.start();
+            }
+            return watcher;
+        }
+    }
+
+    /**
+     * Stops watching the watched directories of a <code>ManagedFolder</code>. Any files waiting to be imported are left in place.
+     * @param folder the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public static void stop(String folder)
+    {
+        FolderWatcher watcher;
+        synchronized (watchers)
+        {
+            watcher = watchers.remove(folder);
+        }
+
+        if (watcher != null)
+        {
+            watcher.stopped = true;
+            try
+            {
+                watcher.service.close();
+            }
+            catch (IOException exception)
+            {
+                System.out.printf("FolderWatcher.stop: %s\n", exception);
+            }
+        }
+    }
+
+    // A file that was created or changed and has not been imported yet
+    private static class Candidate
+    {
+        final WatchedDirectory directory;
+        long size = -1;
+        long stableSince;
+
+        Candidate(WatchedDirectory directory, long now)
+        {
+            this.directory = directory;
+            stableSince = now;
+        }
+    }
+
+    // The size and modified time of a rejected file, which is ignored until either changes
+    private record Signature(long size, long modified) {}
+
+    // The rate limit and import totals of one watched directory
+    private static class DirectoryState
+    {
+        double tokens = -1;
+        long lastRefill;
+        int imported = 0;
+        int skipped = 0;
+
+        // Take up to 'count' files from the rate limit, which refills continuously over each minute
+        int acquire(int count, int rateLimit, long now)
+        {
+            if (rateLimit <= 0)
+                return count;
+
+            tokens = (tokens < 0) ? rateLimit : Math.min(rateLimit, tokens + (now - lastRefill) * rateLimit / 60000.0);
+            lastRefill = now;
+            int granted = Math.min(count, (int) tokens);
+            tokens -= granted;
+            return granted;
+        }
+    }
+
+    private final String folder;
+    private final WatchService service;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    private final ObservableList<WatchedDirectory> directories = FXCollections.observableArrayList();
+    /**
+     * Gets the directories being watched. Should only be used on the JavaFX application thread.
+     * @return the list of watched directories
+     */
+    public ObservableList<WatchedDirectory> getDirectories() { return directories; }
+
+    // Shared with the JavaFX application thread
+    private final ConcurrentHashMap<WatchKey, WatchedDirectory> keys = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<WatchedDirectory> rescans = new ConcurrentLinkedQueue<>();
+
+    // Only used by the watcher thread
+    private final LinkedHashMap<Path, Candidate> pending = new LinkedHashMap<>();
+    private final HashMap<Path, Signature> ignored = new HashMap<>();
+    private final HashMap<WatchedDirectory, DirectoryState> states = new HashMap<>();
+
+    private FolderWatcher(String folder) throws IOException
+    {
+        this.folder = folder;
+        service = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this::run, "FolderWatcher");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts watching a new directory and saves it to the database.
+     * @param directory the directory to watch
+     * @return <code>true</code> if the directory was saved; <code>false</code> otherwise
+     */
+    public boolean add(WatchedDirectory directory)
+    {
+        if (Database.addWatchedDirectory(folder, directory))
+        {
+            directories.add(directory);
+            watch(directory);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Saves changes to a watched directory's tags or rate limit. The changes take effect immediately.
+     * @param directory the changed directory
+     * @return <code>true</code> if the changes were saved; <code>false</code> otherwise
+     */
+    public boolean update(WatchedDirectory directory)
+    {
+        return Database.updateWatchedDirectory(folder, directory);
+    }
+
+    /**
+     * Stops watching a directory and deletes it from the database. The directory's files are not affected.
+     * @param directory the directory to stop watching
+     */
+    public void remove(WatchedDirectory directory)
+    {
+        keys.entrySet().removeIf(entry ->
+        {
+            if (entry.getValue() == directory)
+            {
+                entry.getKey().cancel();
+                return true;
+            }
+            return false;
+        });
+        directory.setStatus("Not watching");
+        directories.remove(directory);
+        Database.deleteWatchedDirectory(folder, directory);
+    }
+
+    // Register a directory with the watch service and queue a scan for the files that are already in it
+    private void watch(WatchedDirectory directory)
+    {
+        try
+        {
+            WatchKey key = Path.of(directory.getPath()).register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            keys.put(key, directory);
+            rescans.add(directory);
+            directory.setStatus("Watching");
+        }
+        catch (IOException | InvalidPathException | ClosedWatchServiceException exception)
+        {
+            System.out.printf("FolderWatcher.watch: Unable to watch \"%s\" (%s)\n", directory.getPath(), exception);
+            directory.setStatus("Unable to watch directory");
+        }
+    }
+
+    private void run()
+    {
+        while (!stopped)
+        {
+            try
+            {
+                // Handle every event that is waiting, then check whether any files are ready to import
+                WatchKey key = service.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                while (key != null)
+                {
+                    handleEvents(key);
+                    key = service.poll();
+                }
+
+                WatchedDirectory directory = rescans.poll();
+                while (directory != null)
+                {
+                    scan(directory);
+                    directory = rescans.poll();
+                }
+
+                importReadyFiles();
+            }
+            catch (InterruptedException exception)
+            {
+                // The watcher only stops when 'stopped' is set
+            }
+            catch (ClosedWatchServiceException exception)
+            {
+                return;
+            }
+        }
+    }
+
+    private void handleEvents(WatchKey key)
+    {
+        WatchedDirectory directory = keys.get(key);
+        if (directory != null)
+        {
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                // If events were lost, look through the whole directory instead
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                    rescans.add(directory);
+                else
+                    offer(directory, Path.of(directory.getPath()).resolve((Path) event.context()));
+            }
+
+            if (!key.reset())
+            {
+                keys.remove(key);
+                setStatus(directory, "Directory is no longer available");
+            }
+        }
+    }
+
+    // Add every file already in a directory to the pending files
+    private void scan(WatchedDirectory directory)
+    {
+        if (keys.containsValue(directory))
+        {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Path.of(directory.getPath())))
+            {
+                for (Path file : stream)
+                    offer(directory, file);
+            }
+            catch (IOException | DirectoryIteratorException exception)
+            {
+                System.out.printf("FolderWatcher.scan: Unable to read \"%s\" (%s)\n", directory.getPath(), exception);
+            }
+        }
+    }
+
+    private void offer(WatchedDirectory directory, Path file)
+    {
+        if (!pending.containsKey(file) && FileTypes.isSupported(file.getFileName().toString()) && Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS))
+        {
+            // A rejected file is only tried again once it has changed
+            Signature signature = ignored.get(file);
+            if (signature != null)
+            {
+                if (signature.equals(getSignature(file)))
+                    return;
+                ignored.remove(file);
+            }
+            pending.put(file, new Candidate(directory, System.currentTimeMillis()));
+        }
+    }
+
+    // Get the size and modified time of a file; null if they can't be read
+    private static Signature getSignature(Path file)
+    {
+        try
+        {
+            return new Signature(Files.size(file), Files.getLastModifiedTime(file).toMillis());
+        }
+        catch (IOException exception)
+        {
+            return null;
+        }
+    }
+
+    private void importReadyFiles()
+    {
+        long now = System.currentTimeMillis();
+
+        // Find the files whose sizes have not changed for long enough
+        LinkedHashMap<WatchedDirectory, Vector<Path>> ready = new LinkedHashMap<>();
+        Iterator<Map.Entry<Path, Candidate>> iterator = pending.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            Map.Entry<Path, Candidate> entry = iterator.next();
+            Candidate candidate = entry.getValue();
+            if (!keys.containsValue(candidate.directory))
+            {
+                iterator.remove();
+                continue;
+            }
+
+            long size;
+            try
+            {
+                size = Files.size(entry.getKey());
+            }
+            catch (NoSuchFileException exception)
+            {
+                iterator.remove();
+                continue;
+            }
+            catch (IOException exception)
+            {
+                // The file may still be locked by the program writing it
+                continue;
+            }
+
+            if (size != candidate.size)
+            {
+                candidate.size = size;
+                candidate.stableSince = now;
+            }
+            else if (now - candidate.stableSince >= STABLE_MILLIS)
+                ready.computeIfAbsent(candidate.directory, directory -> new Vector<>()).add(entry.getKey());
+        }
+
+        for (Map.Entry<WatchedDirectory, Vector<Path>> entry : ready.entrySet())
+        {
+            WatchedDirectory directory = entry.getKey();
+            Vector<Path> files = entry.getValue();
+            List<TagNode> tags = getLiveTags(directory);
+            if (tags.isEmpty())
+            {
+                setStatus(directory, String.format("%d files waiting for tags", files.size()));
+                continue;
+            }
+
+            DirectoryState state = states.computeIfAbsent(directory, key -> new DirectoryState());
+            int count = state.acquire(Math.min(files.size(), MAX_BATCH_SIZE), directory.getRateLimit(), now);
+            if (count > 0)
+            {
+                Vector<File> batch = new Vector<>(count);
+                for (Path file : files.subList(0, count))
+                    batch.add(file.toFile());
+
+                ImportTask task = new ImportTask(folder, batch, tags, FileTransfer.Mode.MOVE);
+                task.setRenameConflicts(true);
+                task.run();
+                state.imported += task.getImported().size();
+                state.skipped += task.getRejected().size();
+                for (String conflict : task.getConflicts())
+                    System.out.printf("FolderWatcher.importReadyFiles: Skipped %s\n", conflict);
+
+                // Forget the files that were imported, ignore the ones that were rejected, and wait a while before trying the rest again
+                HashSet<File> imported = new HashSet<>(task.getImported());
+                HashSet<File> rejected = new HashSet<>(task.getRejected());
+                for (Path file : files.subList(0, count))
+                {
+                    if (imported.contains(file.toFile()))
+                        pending.remove(file);
+                    else if (rejected.contains(file.toFile()))
+                    {
+                        pending.remove(file);
+                        Signature signature = getSignature(file);
+                        if (signature != null)
+                            ignored.put(file, signature);
+                    }
+                    else
+                        pending.get(file).stableSince = now + RETRY_MILLIS;
+                }
+            }
+
+            if (files.size() > count)
+                setStatus(directory, String.format("Imported %d, skipped %d, %d waiting (rate limited)", state.imported, state.skipped, files.size() - count));
+            else
+                setStatus(directory, String.format("Imported %d, skipped %d", state.imported, state.skipped));
+        }
+    }
+
+    // Get a directory's tags without any that have been deleted or given children since they were chosen, and remove those from the directory
+    private List<TagNode> getLiveTags(WatchedDirectory directory)
+    {
+        List<TagNode> tags = directory.getTags();
+        HashSet<Integer> leaves = Database.getLeafTagIds(folder, directory.getTagIds());
+        if (leaves.size() == tags.size())
+            return tags;
+
+        List<TagNode> live = tags.stream().filter(tag -> leaves.contains(tag.getId())).toList();
+        System.out.printf("FolderWatcher.getLiveTags: Removing %d unusable tags from \"%s\"\n", tags.size() - live.size(), directory.getPath());
+        Platform.runLater(() ->
+        {
+            // The directory's tags may have been changed by the user in the meantime
+            if (directory.getTags() == tags)
+            {
+                directory.setTags(live);
+                update(directory);
+            }
+        });
+        return live;
+    }
+
+    private void setStatus(WatchedDirectory directory, String status) { Platform.runLater(() -> directory.setStatus(status)); }
+}
@@ -0,0 +1,97 @@
+/* TagIt
+ * HashBacklogTask.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.IOManager;
+import javafx.concurrent.Task;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Hashes the files in a <code>ManagedFolder</code> that were imported before content hashes were recorded. Files are hashed in small
+ * batches and each batch is saved before the next begins, so the work resumes where it left off the next time the folder is opened.
+ * Files that cannot be read are skipped until then. The value of this task is the number of files hashed.
+ */
+public class HashBacklogTask extends Task<Integer>
+{
+    private static final int BATCH_SIZE = 100;
+
+    private static final HashSet<String> running = new HashSet<>();
+
+    /**
+     * Starts hashing a folder's backlog on a low-priority background thread, unless it is already being hashed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public static void start(String directory)
+    {
+        synchronized (running)
+        {
+            if (!running.add(directory))
+                return;
+        }
+
+        HashBacklogTask task = new HashBacklogTask(directory);
+        Thread thread = new Thread(() ->
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                synchronized (running)
+                {
+                    running.remove(directory);
+                }
+            }
+        }, "HashBacklogTask");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private final String directory;
+
+    private HashBacklogTask(String directory) { this.directory = directory; }
+
+    @Override
+    protected Integer call()
+    {
+        int hashed = 0;
+        int lastId = 0;
+        LinkedHashMap<Integer, String> batch = Database.getUnhashedFiles(directory, lastId, BATCH_SIZE);
+        while (!batch.isEmpty() && !isCancelled())
+        {
+            HashMap<Integer, String> hashes = new HashMap<>();
+            for (Map.Entry<Integer, String> file : batch.entrySet())
+            {
+                try
+                {
+                    hashes.put(file.getKey(), FileHasher.hash(Path.of(IOManager.getFilePath(directory, file.getValue()))));
+                }
+                catch (IOException | SecurityException exception)
+                {
+                    System.out.printf("HashBacklogTask.call: Unable to hash \"%s\" (%s)\n", file.getValue(), exception);
+                }
+                lastId = file.getKey();
+            }
+
+            if (!hashes.isEmpty() && Database.setFileHashes(directory, hashes))
+                hashed += hashes.size();
+            updateMessage(String.format("Hashed %d files", hashed));
+
+            // Files that failed are behind 'lastId', so they are not retried until the next time the backlog is started
+            batch = Database.getUnhashedFiles(directory, lastId, BATCH_SIZE);
+        }
+        return hashed;
+    }
+}
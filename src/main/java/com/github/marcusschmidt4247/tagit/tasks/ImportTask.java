@@ -0,0 +1,387 @@
+/* TagIt
+ * ImportTask.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.IOManager;
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileNameRegistry;
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
+import com.github.marcusschmidt4247.tagit.miscellaneous.TagNode;
+import javafx.concurrent.Task;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports a batch of files into a <code>ManagedFolder</code> with the same tags. Every file is checked for name conflicts first, then the
+ * files are hashed and transferred into storage on a small pool of I/O threads, and the imported files are saved to the database in batches as they
+ * arrive. The queue between the two stages is bounded, so the I/O threads wait whenever the database falls behind. Copied files are synced
+ * to the disk once per batch, just before the batch is saved.
+ * <p/>
+ * Each file is hashed before it is transferred, and a file with the same contents as one already in the folder (or earlier in the batch)
+ * is reported as a duplicate and skipped unless duplicates are allowed.
+ * <p/>
+ * Files that cannot be imported are skipped rather than interrupting the batch, and the reason for each is added to the conflict report.
+ * Files skipped for a reason that trying again won't change, such as an invalid name or duplicate contents, are also reported as rejected.
+ * A file whose name is already taken can be imported under a numbered name instead.
+ * If a batch can't be saved to the database, its files are taken back out of storage: moved files are moved back to where they came from,
+ * and copies and links are deleted.
+ * If the task is cancelled, no more files are copied or moved, but the files already in storage are still saved to the database.
+ * The value of this task is the number of files imported.
+ */
+public class ImportTask extends Task<Integer>
+{
+    private static final int MAX_IO_THREADS = 4;
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int BATCH_SIZE = 200;
+
+    private final String directory;
+    private final Vector<Source> sources = new Vector<>();
+    private final Vector<TagNode> tags;
+    private final FileTransfer.Mode mode;
+
+    private final Vector<File> imported = new Vector<>();
+    /**
+     * Gets the source files that were imported. Should not be called until this task has finished running.
+     * @return the imported files at their original locations
+     */
+    public Vector<File> getImported() { return imported; }
+
+    private final Vector<String> conflicts = new Vector<>();
+    /**
+     * Gets a description of every file that was not imported. Should not be called until this task has finished running.
+     * @return a list of messages in the form "file name: reason"
+     */
+    public Vector<String> getConflicts() { return conflicts; }
+
+    private final Vector<File> rejected = new Vector<>();
+    /**
+     * Gets the files that were skipped for a reason that will not change by trying again, such as an unsupported extension, a name that is
+     * already taken, or contents that are already in the folder. Should not be called until this task has finished running.
+     * @return the rejected files at their original locations
+     */
+    public Vector<File> getRejected() { return rejected; }
+
+    private final ConcurrentHashMap<String, String> duplicates = new ConcurrentHashMap<>();
+    /**
+     * Gets the files that were skipped because their contents were already in the folder. Should not be called until this task has
+     * finished running.
+     * @return a map from the name of each skipped file to the name of the file with the same contents
+     */
+    public Map<String, String> getDuplicates() { return duplicates; }
+
+    private boolean allowDuplicates = false;
+    /**
+     * Sets whether files with the same contents as a file already in the folder are imported anyway. Should be called before this task
+     * starts running.
+     * @param allowDuplicates <code>true</code> to import duplicates; <code>false</code> to skip them (default)
+     */
+    public void setAllowDuplicates(boolean allowDuplicates) { this.allowDuplicates = allowDuplicates; }
+
+    private boolean renameConflicts = false;
+    /**
+     * Sets whether a file whose name is already taken is imported under a new name with a number added, such as "photo (2).jpg". Should be
+     * called before this task starts running.
+     * @param renameConflicts <code>true</code> to rename such files; <code>false</code> to skip them (default)
+     */
+    public void setRenameConflicts(boolean renameConflicts) { this.renameConflicts = renameConflicts; }
+
+    // Maps the hash of every file being imported to its name
+    private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>();
+
+    // A file to import and the name it will have in storage
+    private record Source(File file, String name) { }
+
+    // A file that is in storage and waiting to be saved to the database
+    private record StoredFile(File source, Path target, boolean needsSync, Database.FileRecord record) { }
+
+    /**
+     * Class constructor for a batch of files that will keep their current names.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param files the files to import
+     * @param tags the tags to apply to every file (cannot be empty)
+     * @param mode how to transfer the files into storage
+     */
+    public ImportTask(String directory, Collection<File> files, Collection<TagNode> tags, FileTransfer.Mode mode)
+    {
+        this.directory = directory;
+        files.forEach(file -> sources.add(new Source(file, file.getName())));
+        this.tags = new Vector<>(tags);
+        this.mode = mode;
+    }
+
+    /**
+     * Class constructor for a single file with a new name.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param file the file to import
+     * @param name the name the file will have in storage
+     * @param tags the tags to apply to the file (cannot be empty)
+     * @param mode how to transfer the file into storage
+     */
+    public ImportTask(String directory, File file, String name, Collection<TagNode> tags, FileTransfer.Mode mode)
+    {
+        this.directory = directory;
+        sources.add(new Source(file, name));
+        this.tags = new Vector<>(tags);
+        this.mode = mode;
+    }
+
+    @Override
+    protected Integer call()
+    {
+        // Check every name before touching any files so that conflicts within the batch are caught too
+        updateMessage("Checking file names...");
+        FileNameRegistry registry = FileNameRegistry.get(directory);
+        TreeSet<String> batchNames = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        Vector<Source> accepted = new Vector<>(sources.size());
+        long totalBytes = 0;
+        for (Source source : sources)
+        {
+            String name = source.name();
+            boolean taken = registry.contains(name) || batchNames.contains(name);
+            if (!IOManager.validInput(name))
+                reject(source, String.format("%s: Name cannot contain slashes or quotes", name));
+            else if (!FileTypes.isSupported(name))
+                reject(source, String.format("%s: Unsupported file extension", name));
+            else if (taken && !renameConflicts)
+                reject(source, String.format("%s: A file with this name already exists", name));
+            else
+            {
+                if (taken)
+                    source = new Source(source.file(), getFreeName(name, registry, batchNames));
+                batchNames.add(source.name());
+                accepted.add(source);
+                totalBytes += source.file().length();
+            }
+        }
+
+        // Progress is measured in bytes so that a single large file still shows its progress
+        final long progressMax = Math.max(1, totalBytes);
+        AtomicLong transferredBytes = new AtomicLong();
+        BlockingQueue<StoredFile> stored = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_IO_THREADS, runnable ->
+        {
+            Thread thread = new Thread(runnable, "ImportTask");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        updateMessage(String.format("Importing %d files...", accepted.size()));
+        for (Source source : accepted)
+        {
+            executor.execute(() ->
+            {
+                StoredFile storedFile = store(source, transferredBytes);
+                if (storedFile != null)
+                {
+                    // Wait for room in the queue, but never drop a file that is already in storage
+                    boolean queued = false;
+                    while (!queued)
+                    {
+                        try
+                        {
+                            stored.put(storedFile);
+                            queued = true;
+                        }
+                        catch (InterruptedException exception)
+                        {
+                            // Cancelling the task interrupts the I/O threads
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+
+        // Save the stored files to the database in batches until the I/O threads are done and the queue is empty
+        Vector<StoredFile> batch = new Vector<>(BATCH_SIZE);
+        while (!executor.isTerminated() || !stored.isEmpty())
+        {
+            try
+            {
+                StoredFile storedFile = stored.poll(100, TimeUnit.MILLISECONDS);
+                if (storedFile != null)
+                {
+                    batch.add(storedFile);
+                    stored.drainTo(batch, BATCH_SIZE - batch.size());
+                }
+            }
+            catch (InterruptedException exception)
+            {
+                // Cancelling this task interrupts its thread
+            }
+
+            if (batch.size() >= BATCH_SIZE || (!batch.isEmpty() && stored.isEmpty()))
+                save(batch);
+            updateProgress(Math.min(transferredBytes.get(), progressMax), progressMax);
+
+            if (isCancelled())
+                executor.shutdownNow();
+        }
+        save(batch);
+
+        // Generate thumbnails for the new files in the background
+        if (!imported.isEmpty())
+            ThumbnailTask.start(directory);
+
+        return imported.size();
+    }
+
+    // Transfer a file into storage and return its record, or return null if it could not be stored
+    private StoredFile store(Source sourceFile, AtomicLong transferredBytes)
+    {
+        File file = sourceFile.file();
+        Path source = file.toPath();
+        Path target = Path.of(IOManager.getFilePath(directory, sourceFile.name()));
+
+        // Hash the file before transferring it so that a duplicate is never copied into storage
+        String hash;
+        try
+        {
+            hash = FileHasher.hash(source);
+        }
+        catch (IOException | SecurityException exception)
+        {
+            conflicts.add(String.format("%s: %s", sourceFile.name(), exception));
+            return null;
+        }
+        // Look for a file with the same contents in the folder and then among the other files being imported
+        String original = allowDuplicates ? null : Database.getFileWithHash(directory, hash);
+        if (original == null)
+            original = hashes.putIfAbsent(hash, sourceFile.name());
+        if (original != null && !allowDuplicates)
+        {
+            duplicates.put(sourceFile.name(), original);
+            reject(sourceFile, String.format("%s: Has the same contents as \"%s\"", sourceFile.name(), original));
+            return null;
+        }
+
+        // Attempt to retrieve the time that this file was created as milliseconds since the epoch
+        long creationTime;
+        try
+        {
+            creationTime = Files.readAttributes(source, BasicFileAttributes.class).creationTime().toMillis();
+        }
+        catch (IOException | UnsupportedOperationException | SecurityException exception)
+        {
+            creationTime = -1;
+        }
+
+        try
+        {
+            boolean needsSync = FileTransfer.transfer(source, target, mode, transferredBytes::addAndGet, this::isCancelled);
+            return new StoredFile(file, target, needsSync, new Database.FileRecord(sourceFile.name(), creationTime, hash));
+        }
+        catch (FileAlreadyExistsException exception)
+        {
+            reject(sourceFile, String.format("%s: A file not tracked by this folder already exists in its storage directory", sourceFile.name()));
+        }
+        catch (IOException | SecurityException exception)
+        {
+            // A copy interrupted by cancelling the task is not a conflict
+            if (!isCancelled())
+                conflicts.add(String.format("%s: %s", sourceFile.name(), exception));
+        }
+        catch (CancellationException exception)
+        {
+            // The partial copy has already been deleted
+        }
+
+        // Let a later file with the same contents be imported in place of this one
+        hashes.remove(hash, sourceFile.name());
+        return null;
+    }
+
+    private void reject(Source source, String conflict)
+    {
+        rejected.add(source.file());
+        conflicts.add(conflict);
+    }
+
+    // Add the lowest number that makes a name unique, such as "photo (2).jpg"
+    private static String getFreeName(String name, FileNameRegistry registry, TreeSet<String> batchNames)
+    {
+        int dot = name.lastIndexOf('.');
+        String base = (dot > 0) ? name.substring(0, dot) : name;
+        String extension = (dot > 0) ? name.substring(dot) : "";
+        String candidate;
+        int number = 2;
+        do
+        {
+            candidate = String.format("%s (%d)%s", base, number++, extension);
+        } while (registry.contains(candidate) || batchNames.contains(candidate));
+        return candidate;
+    }
+
+    // Save a batch of stored files to the database in one transaction
+    private void save(Vector<StoredFile> batch)
+    {
+        if (!batch.isEmpty())
+        {
+            // Make sure the copied data is on the disk before the files are recorded
+            Vector<Path> unsynced = new Vector<>();
+            for (StoredFile storedFile : batch)
+            {
+                if (storedFile.needsSync())
+                    unsynced.add(storedFile.target());
+            }
+            try
+            {
+                FileTransfer.sync(unsynced);
+            }
+            catch (IOException exception)
+            {
+                System.out.printf("ImportTask.save: Unable to sync files (%s)\n", exception);
+            }
+
+            Vector<Database.FileRecord> records = new Vector<>(batch.size());
+            batch.forEach(storedFile -> records.add(storedFile.record()));
+            if (Database.saveFiles(directory, records, tags))
+                batch.forEach(storedFile -> imported.add(storedFile.source()));
+            else
+                batch.forEach(this::undo);
+            batch.clear();
+        }
+    }
+
+    // Take a file that couldn't be saved to the database back out of storage, so that it isn't left there untracked
+    private void undo(StoredFile storedFile)
+    {
+        String name = storedFile.record().name();
+        try
+        {
+            // A moved file no longer exists at its source, so it has to be moved back (possibly by copying it to another file system)
+            if (mode == FileTransfer.Mode.MOVE)
+                Files.move(storedFile.target(), storedFile.source().toPath());
+            else
+                Files.delete(storedFile.target());
+            conflicts.add(String.format("%s: Could not be saved to the database", name));
+        }
+        catch (IOException | SecurityException exception)
+        {
+            System.out.printf("ImportTask.undo: Unable to remove \"%s\" from storage (%s)\n", name, exception);
+            conflicts.add(String.format("%s: Could not be saved to the database and was left untracked at \"%s\"", name, storedFile.target()));
+        }
+        // Let a later file with the same contents be imported in place of this one
+        hashes.remove(storedFile.record().hash(), name);
+    }
+}
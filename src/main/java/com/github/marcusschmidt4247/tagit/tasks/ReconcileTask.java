@@ -0,0 +1,363 @@
+/* TagIt
+ * ReconcileTask.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.IOManager;
+import com.github.marcusschmidt4247.tagit.miscellaneous.StorageResolver;
+import javafx.concurrent.Task;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Consumer;
+
+/**
+ * Checks that a <code>ManagedFolder</code>'s storage directory and database agree. The file names in the database are read on a second
+ * thread while the storage directory is listed, and then both sorted lists are merged to find files that are missing from storage, files
+ * in storage that are not in the database, files whose names differ only in case, and files in the wrong shard subdirectory. Each problem
+ * is checked again before it is reported, so files being imported while the check runs are not reported.
+ * <p/>
+ * The modification time of every storage directory is saved to a snapshot file in the folder, and a directory that has not been modified
+ * since the last check is not listed again. The value of this task is the number of problems found.
+ */
+public class ReconcileTask extends Task<Integer>
+{
+    public enum Type
+    {
+        MISSING ("Missing from storage"),
+        UNTRACKED ("Not in database"),
+        CASE_CONFLICT ("Name differs in case"),
+        MISPLACED ("In the wrong subdirectory");
+
+        public final String description;
+        Type(String description) { this.description = description; }
+    }
+
+    /**
+     * A disagreement between storage and the database.
+     * @param type the kind of problem
+     * @param name the file's name in the database, or in storage if it is not in the database
+     * @param path the file's location in storage; <code>null</code> if it is missing
+     */
+    public record Problem(Type type, String name, Path path) { }
+
+    private static final String SNAPSHOT_NAME = "storage.snapshot";
+    private static final int SNAPSHOT_VERSION = 1;
+    // Directory times within this long of the last snapshot are not trusted, since some file systems only store them to the nearest 2 seconds
+    private static final long MODIFIED_SLACK_MILLIS = 2000;
+    // Files are kept at most two subdirectories below storage
+    private static final int MAX_SUBDIRECTORY_DEPTH = 2;
+
+    private static final HashSet<String> running = new HashSet<>();
+
+    /**
+     * Checks a folder on a low-priority background thread, unless it is already being checked. Should be called on the JavaFX application
+     * thread.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     * @param onProblems called on the JavaFX application thread with the finished task if any problems were found
+     */
+    public static void start(String directory, Consumer<ReconcileTask> onProblems)
+    {
+        synchronized (running)
+        {
+            if (!running.add(directory))
+                return;
+        }
+
+        ReconcileTask task = new ReconcileTask(directory);
+        task.setOnSucceeded(event ->
+        {
+            if (!task.getProblems().isEmpty())
+                onProblems.accept(task);
+        });
+        Thread thread = new Thread(() ->
+        {
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                synchronized (running)
+                {
+                    running.remove(directory);
+                }
+            }
+        }, "ReconcileTask");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    // A file name with the key that it is sorted and matched by
+    private record Entry(String name, String key, Path path) { }
+
+    // The contents of one storage directory when it was last listed
+    private record DirectorySnapshot(long modified, Vector<String> files, Vector<String> subdirectories) { }
+
+    // Every storage directory's contents at the time of the last check, keyed by path relative to storage
+    private record Snapshot(long taken, HashMap<String, DirectorySnapshot> directories) { }
+
+    private final String directory;
+
+    private final Vector<Problem> problems = new Vector<>();
+    /**
+     * Gets the problems that were found. Should not be called until this task has finished running.
+     * @return a list of problems sorted by file name
+     */
+    public Vector<Problem> getProblems() { return problems; }
+
+    /**
+     * Class constructor.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public ReconcileTask(String directory) { this.directory = directory; }
+
+    public String getDirectory() { return directory; }
+
+    @Override
+    protected Integer call() throws IOException, InterruptedException, ExecutionException
+    {
+        // Read the database on another thread while storage is listed on this one
+        updateMessage("Reading database and storage...");
+        FutureTask<Vector<String>> databaseNames = new FutureTask<>(() -> Database.getFiles(directory));
+        Thread thread = new Thread(databaseNames, "ReconcileTask");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.currentThread().getPriority());
+        thread.start();
+
+        Path storage = Path.of(IOManager.getStorageDirectory(directory));
+        Path snapshotPath = Path.of(IOManager.formatPath(directory, SNAPSHOT_NAME));
+        long snapshotTime = System.currentTimeMillis();
+        Snapshot previous = readSnapshot(snapshotPath);
+        HashMap<String, DirectorySnapshot> current = new HashMap<>();
+        Vector<Entry> stored = new Vector<>();
+        listDirectory(storage, storage, 0, previous, current, stored);
+
+        Vector<Entry> tracked = new Vector<>();
+        for (String name : databaseNames.get())
+            tracked.add(new Entry(name, name.toLowerCase(Locale.ROOT), null));
+        if (isCancelled())
+            return 0;
+
+        updateMessage("Comparing...");
+        Comparator<Entry> order = Comparator.comparing(Entry::key).thenComparing(Entry::name);
+        tracked.sort(order);
+        stored.sort(order);
+        merge(tracked, stored, storage);
+
+        // Check each problem again in case a file was imported, renamed, or deleted while the lists were being read
+        updateMessage("Checking problems...");
+        problems.removeIf(problem -> switch (problem.type())
+        {
+            case MISSING -> Files.exists(Path.of(IOManager.getFilePath(directory, problem.name())));
+            case UNTRACKED -> Database.fileExists(directory, problem.name()) || !Files.exists(problem.path());
+            default -> !Files.exists(problem.path());
+        });
+
+        writeSnapshot(snapshotPath, snapshotTime, current);
+        return problems.size();
+    }
+
+    // Add every file in a storage directory (and its subdirectories) to 'stored', listing only the directories modified since the snapshot
+    private void listDirectory(Path storage, Path dir, int depth, Snapshot previous, HashMap<String, DirectorySnapshot> current, Vector<Entry> stored)
+            throws IOException
+    {
+        if (isCancelled())
+            return;
+
+        // A directory modified just before the last snapshot may have changed again without its time changing
+        String relativePath = storage.relativize(dir).toString();
+        long modified = Files.getLastModifiedTime(dir).toMillis();
+        DirectorySnapshot snapshot = previous.directories().get(relativePath);
+        if (snapshot == null || snapshot.modified() != modified || modified >= previous.taken() - MODIFIED_SLACK_MILLIS)
+        {
+            final Vector<String> files = new Vector<>();
+            final Vector<String> subdirectories = new Vector<>();
+            Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>()
+            {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+                {
+                    if (attributes.isDirectory() && depth < MAX_SUBDIRECTORY_DEPTH)
+                        subdirectories.add(file.getFileName().toString());
+                    else if (attributes.isRegularFile())
+                        files.add(file.getFileName().toString());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exception)
+                {
+                    System.out.printf("ReconcileTask.listDirectory: Unable to read \"%s\" (%s)\n", file, exception);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            snapshot = new DirectorySnapshot(modified, files, subdirectories);
+        }
+        current.put(relativePath, snapshot);
+
+        for (String file : snapshot.files())
+            stored.add(new Entry(file, file.toLowerCase(Locale.ROOT), dir.resolve(file)));
+        for (String subdirectory : snapshot.subdirectories())
+        {
+            Path child = dir.resolve(subdirectory);
+            if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS))
+                listDirectory(storage, child, depth + 1, previous, current, stored);
+        }
+    }
+
+    // Walk both sorted lists at once, comparing each group of names that only differ in case
+    private void merge(Vector<Entry> tracked, Vector<Entry> stored, Path storage)
+    {
+        StorageResolver.Layout layout = StorageResolver.getLayout(directory);
+        int i = 0;
+        int j = 0;
+        while (i < tracked.size() || j < stored.size())
+        {
+            String key;
+            if (i >= tracked.size())
+                key = stored.get(j).key();
+            else if (j >= stored.size())
+                key = tracked.get(i).key();
+            else
+                key = (tracked.get(i).key().compareTo(stored.get(j).key()) <= 0) ? tracked.get(i).key() : stored.get(j).key();
+
+            Vector<Entry> trackedGroup = new Vector<>();
+            while (i < tracked.size() && tracked.get(i).key().equals(key))
+                trackedGroup.add(tracked.get(i++));
+            Vector<Entry> storedGroup = new Vector<>();
+            while (j < stored.size() && stored.get(j).key().equals(key))
+                storedGroup.add(stored.get(j++));
+
+            // Pair up the exact matches first
+            Iterator<Entry> iterator = trackedGroup.iterator();
+            while (iterator.hasNext())
+            {
+                Entry entry = iterator.next();
+                for (Entry storedEntry : storedGroup)
+                {
+                    if (storedEntry.name().equals(entry.name()))
+                    {
+                        if (!isInPlace(storage, layout, storedEntry))
+                            problems.add(new Problem(Type.MISPLACED, entry.name(), storedEntry.path()));
+                        storedGroup.remove(storedEntry);
+                        iterator.remove();
+                        break;
+                    }
+                }
+            }
+
+            // Anything left over either differs in case from its counterpart or doesn't have one
+            for (int k = 0; k < Math.max(trackedGroup.size(), storedGroup.size()); k++)
+            {
+                if (k < trackedGroup.size() && k < storedGroup.size())
+                    problems.add(new Problem(Type.CASE_CONFLICT, trackedGroup.get(k).name(), storedGroup.get(k).path()));
+                else if (k < trackedGroup.size())
+                    problems.add(new Problem(Type.MISSING, trackedGroup.get(k).name(), null));
+                else
+                    problems.add(new Problem(Type.UNTRACKED, storedGroup.get(k).name(), storedGroup.get(k).path()));
+            }
+        }
+    }
+
+    // Check whether a file is where its name resolves to in the current layout (a folder being converted allows either location)
+    private static boolean isInPlace(Path storage, StorageResolver.Layout layout, Entry entry)
+    {
+        boolean flat = entry.path().getParent().equals(storage);
+        boolean sharded = entry.path().equals(Path.of(StorageResolver.getShardedPath(storage.toString(), entry.name())));
+        return switch (layout)
+        {
+            case FLAT -> flat;
+            case SHARDED -> sharded;
+            case MIGRATING -> flat || sharded;
+        };
+    }
+
+    private static Snapshot readSnapshot(Path path)
+    {
+        HashMap<String, DirectorySnapshot> directories = new HashMap<>();
+        if (Files.isRegularFile(path))
+        {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(path))))
+            {
+                if (input.readInt() == SNAPSHOT_VERSION)
+                {
+                    long taken = input.readLong();
+                    int count = input.readInt();
+                    for (int i = 0; i < count; i++)
+                    {
+                        String relativePath = input.readUTF();
+                        long modified = input.readLong();
+                        Vector<String> files = readNames(input);
+                        Vector<String> subdirectories = readNames(input);
+                        directories.put(relativePath, new DirectorySnapshot(modified, files, subdirectories));
+                    }
+                    return new Snapshot(taken, directories);
+                }
+            }
+            catch (IOException exception)
+            {
+                System.out.printf("ReconcileTask.readSnapshot: Ignoring unreadable snapshot (%s)\n", exception);
+                directories.clear();
+            }
+        }
+        return new Snapshot(0, directories);
+    }
+
+    private static Vector<String> readNames(DataInputStream input) throws IOException
+    {
+        int count = input.readInt();
+        Vector<String> names = new Vector<>(count);
+        for (int i = 0; i < count; i++)
+            names.add(input.readUTF());
+        return names;
+    }
+
+    // Write the snapshot to a temporary file and then rename it over the old one, so that a crash never leaves half of a snapshot
+    private static void writeSnapshot(Path path, long taken, HashMap<String, DirectorySnapshot> directories)
+    {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary))))
+        {
+            output.writeInt(SNAPSHOT_VERSION);
+            output.writeLong(taken);
+            output.writeInt(directories.size());
+            for (Map.Entry<String, DirectorySnapshot> entry : directories.entrySet())
+            {
+                output.writeUTF(entry.getKey());
+                output.writeLong(entry.getValue().modified());
+                writeNames(output, entry.getValue().files());
+                writeNames(output, entry.getValue().subdirectories());
+            }
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ReconcileTask.writeSnapshot: %s\n", exception);
+            return;
+        }
+
+        try
+        {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException exception)
+        {
+            System.out.printf("ReconcileTask.writeSnapshot: %s\n", exception);
+        }
+    }
+
+    private static void writeNames(DataOutputStream output, Vector<String> names) throws IOException
+    {
+        output.writeInt(names.size());
+        for (String name : names)
+            output.writeUTF(name);
+    }
+}
@@ -0,0 +1,412 @@
+/* TagIt
+ * RelocationTask.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.IOManager;
+import com.github.marcusschmidt4247.tagit.miscellaneous.ManagedFolder;
+import javafx.concurrent.Task;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves a <code>ManagedFolder</code> directory to a new location. If the new location is on the same file system, the whole directory is
+ * renamed at once. Otherwise, every file is copied on a small pool of I/O threads, synced, and compared with the original, and the original
+ * directory is only deleted once every file has been copied. The folder's new location is saved to the database as soon as the copies are
+ * complete, so the folder is never left without a complete copy.
+ * <p/>
+ * A journal in the root <code>TagIt</code> directory records the move, which phase it has reached, and every file that has been copied. If
+ * the application stops during a move, the journal is found the next time it launches, and the move can be resumed from the last copied
+ * file or rolled back. Whether a move can be committed is decided by its phase, so an original folder that can't be found (such as on a
+ * drive that isn't mounted) is never mistaken for one that has already been moved. If a copy fails or the task is cancelled, the move is
+ * rolled back immediately and the files that were already copied are deleted. The value of this task is the number of files copied
+ * (<code>0</code> if the directory was renamed).
+ */
+public class RelocationTask extends Task<Integer>
+{
+    private static final int MAX_IO_THREADS = 4;
+    private static final String JOURNAL_HEADER = "TagIt relocation 2";
+    private static final String JOURNAL_EXTENSION = ".relocation";
+    private static final String PHASE_PREFIX = "phase ";
+    private static final String FILE_PREFIX = "file ";
+
+    // How far a move got, each of which is recorded in the journal before it starts
+    private enum Phase
+    {
+        // The directory is being renamed, which either happens completely or not at all
+        RENAMING,
+        // The files are being copied to the new location
+        COPYING,
+        // Every file has been copied, so the folder's new location can be saved and the original directory deleted
+        COMMITTED
+    }
+
+    /**
+     * Finds the moves that were interrupted the last time the application ran.
+     * @return a task for every interrupted move, which will resume the move unless it is set to roll back
+     */
+    public static Vector<RelocationTask> getInterrupted()
+    {
+        Vector<RelocationTask> tasks = new Vector<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Path.of(IOManager.getRootDirectory()), "*" + JOURNAL_EXTENSION))
+        {
+            for (Path journal : stream)
+            {
+                List<String> lines = Files.readAllLines(journal, StandardCharsets.UTF_8);
+                if (lines.size() < 5 || !lines.getFirst().equals(JOURNAL_HEADER))
+                {
+                    System.out.printf("RelocationTask.getInterrupted: Ignoring unreadable journal \"%s\"\n", journal.getFileName());
+                    continue;
+                }
+
+                RelocationTask task = new RelocationTask(Integer.parseInt(lines.get(1)), lines.get(2), lines.get(3), lines.get(4));
+                for (String line : lines.subList(5, lines.size()))
+                {
+                    if (line.startsWith(PHASE_PREFIX))
+                        task.phase = Phase.valueOf(line.substring(PHASE_PREFIX.length()));
+                    else if (line.startsWith(FILE_PREFIX))
+                        task.copied.add(line.substring(FILE_PREFIX.length()));
+                }
+                tasks.add(task);
+            }
+        }
+        catch (IOException | IllegalArgumentException exception)
+        {
+            System.out.printf("RelocationTask.getInterrupted: %s\n", exception);
+        }
+        return tasks;
+    }
+
+    private final int folderId;
+    private final Path source;
+    private final String targetLocation;
+    private final String targetName;
+    private final Path target;
+    private final Path journal;
+
+    // The phase this move had reached when it was interrupted; null if it hasn't started
+    private Phase phase = null;
+    // The files that were copied before this move was interrupted, relative to the source directory
+    private final HashSet<String> copied = new HashSet<>();
+    private BufferedWriter journalWriter = null;
+
+    private final Vector<String> failures = new Vector<>();
+    /**
+     * Gets the files that could not be copied. Should not be called until this task has finished running.
+     * @return a list of messages in the form "file path: reason"
+     */
+    public Vector<String> getFailures() { return failures; }
+
+    private boolean rollBack = false;
+    /**
+     * Sets whether an interrupted move is undone instead of resumed. Should be called before this task starts running, and only if the move
+     * has not been committed.
+     * @param rollBack <code>true</code> to delete the copied files and leave the folder where it was; <code>false</code> to resume (default)
+     */
+    public void setRollBack(boolean rollBack) { this.rollBack = rollBack; }
+
+    public int getFolderId() { return folderId; }
+    public String getTargetLocation() { return targetLocation; }
+    public String getTargetName() { return targetName; }
+
+    /**
+     * Class constructor.
+     * @param folderId the database ID of the <code>ManagedFolder</code>
+     * @param source the absolute path to the <code>ManagedFolder</code> directory
+     * @param targetLocation the absolute path to the directory that the folder will be moved into
+     * @param targetName the folder's new name
+     */
+    public RelocationTask(int folderId, String source, String targetLocation, String targetName)
+    {
+        this.folderId = folderId;
+        this.source = Path.of(source);
+        this.targetLocation = targetLocation;
+        this.targetName = targetName;
+        target = Path.of(IOManager.formatPath(targetLocation, targetName));
+        journal = Path.of(IOManager.formatPath(IOManager.getRootDirectory(), String.format("folder-%d%s", folderId, JOURNAL_EXTENSION)));
+    }
+
+    /**
+     * Checks whether the folder's new location has been saved, after which the move can only be finished and not rolled back.
+     * @param currentPath the folder's current path in the database
+     * @return <code>true</code> if the move has been committed; <code>false</code> otherwise
+     */
+    public boolean isCommitted(String currentPath)
+    {
+        // A rename that was interrupted either happened completely or not at all, and the target didn't exist before it
+        return target.equals(Path.of(currentPath)) || phase == Phase.COMMITTED || (phase == Phase.RENAMING && Files.exists(target, LinkOption.NOFOLLOW_LINKS));
+    }
+
+    @Override
+    protected Integer call() throws IOException
+    {
+        if (rollBack)
+        {
+            updateMessage("Rolling back...");
+            undo();
+            return 0;
+        }
+
+        // Every file was copied before the application stopped, so only the original directory is left to delete
+        if (phase == Phase.COMMITTED)
+        {
+            commit();
+            updateMessage("Removing original files...");
+            if (Files.exists(source))
+                deleteTree(source);
+            Files.delete(journal);
+            return 0;
+        }
+
+        // The directory was renamed just before the application stopped
+        if (phase == Phase.RENAMING && Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+        {
+            commit();
+            Files.delete(journal);
+            return 0;
+        }
+
+        // The original directory may be on a drive that isn't mounted, and the copies can't be completed or trusted without it
+        if (!Files.isDirectory(source))
+        {
+            String message = String.format("The original folder \"%s\" can't be found", source);
+            failures.add(message);
+            throw new NoSuchFileException(source.toString(), null, message);
+        }
+
+        if (phase == null)
+        {
+            // The application may have stopped after writing the journal but before the move started
+            if (!Files.exists(journal))
+            {
+                if (Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+                    throw new FileAlreadyExistsException(target.toString());
+                Files.writeString(journal, String.join(System.lineSeparator(), JOURNAL_HEADER, String.valueOf(folderId), source.toString(), targetLocation,
+                        targetName, ""), StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW, StandardOpenOption.SYNC);
+            }
+            setPhase(Phase.RENAMING);
+        }
+
+        if (phase == Phase.RENAMING)
+        {
+            try
+            {
+                // A rename is only possible on the same file system
+                updateMessage("Moving folder...");
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                commit();
+                Files.delete(journal);
+                return 0;
+            }
+            catch (AtomicMoveNotSupportedException exception)
+            {
+                // Copy the files instead
+                setPhase(Phase.COPYING);
+            }
+            catch (IOException exception)
+            {
+                Files.deleteIfExists(journal);
+                throw exception;
+            }
+        }
+
+        int count;
+        try (BufferedWriter writer = Files.newBufferedWriter(journal, StandardCharsets.UTF_8, StandardOpenOption.APPEND))
+        {
+            journalWriter = writer;
+            count = copyAll();
+        }
+        catch (IOException | RuntimeException exception)
+        {
+            System.out.printf("RelocationTask.call: %s\n", exception);
+            failures.add(exception.toString());
+            count = -1;
+        }
+
+        if (count == -1 || isCancelled())
+        {
+            updateMessage("Rolling back...");
+            undo();
+            return 0;
+        }
+
+        setPhase(Phase.COMMITTED);
+        commit();
+        updateMessage("Removing original files...");
+        deleteTree(source);
+        Files.delete(journal);
+        return count;
+    }
+
+    // Copy every file that was not copied before the move was interrupted, returning the number of files or -1 if any could not be copied
+    private int copyAll() throws IOException
+    {
+        updateMessage("Finding files...");
+        Vector<Path> files = new Vector<>();
+        AtomicLong totalBytes = new AtomicLong();
+        Files.walkFileTree(source, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException
+            {
+                Files.createDirectories(target.resolve(source.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            {
+                if (attributes.isRegularFile())
+                {
+                    files.add(file);
+                    totalBytes.addAndGet(attributes.size());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // Progress is measured in bytes so that a single large file still shows its progress
+        final long progressMax = Math.max(1, totalBytes.get());
+        AtomicLong copiedBytes = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(MAX_IO_THREADS, runnable ->
+        {
+            Thread thread = new Thread(runnable, "RelocationTask");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        updateMessage(String.format("Copying %d files...", files.size()));
+        for (Path file : files)
+        {
+            executor.execute(() ->
+            {
+                if (isCancelled() || !failures.isEmpty())
+                    return;
+
+                String relativePath = source.relativize(file).toString();
+                Path copy = target.resolve(relativePath);
+                try
+                {
+                    // Files copied before the move was interrupted are kept if they are complete
+                    if (copied.contains(relativePath) && Files.exists(copy) && Files.size(copy) == Files.size(file))
+                    {
+                        copiedBytes.addAndGet(Files.size(file));
+                        return;
+                    }
+
+                    // A copy that was in progress when the move was interrupted is started over
+                    Files.deleteIfExists(copy);
+                    FileTransfer.transfer(file, copy, FileTransfer.Mode.COPY, copiedBytes::addAndGet, this::isCancelled);
+                    FileTransfer.sync(List.of(copy));
+                    if (!FileHasher.hash(file).equals(FileHasher.hash(copy)))
+                        throw new IOException("Copy does not match the original");
+                    record(relativePath);
+                }
+                catch (CancellationException exception)
+                {
+                    // The copy was deleted, and the move will be rolled back
+                }
+                catch (IOException | SecurityException exception)
+                {
+                    System.out.printf("RelocationTask.copyAll: Unable to copy \"%s\" (%s)\n", file, exception);
+                    failures.add(String.format("%s: %s", relativePath, exception));
+                }
+            });
+        }
+        executor.shutdown();
+
+        while (!executor.isTerminated())
+        {
+            try
+            {
+                if (!executor.awaitTermination(100, TimeUnit.MILLISECONDS))
+                    updateProgress(Math.min(copiedBytes.get(), progressMax), progressMax);
+            }
+            catch (InterruptedException exception)
+            {
+                // Cancelling this task interrupts its thread
+            }
+        }
+        updateProgress(progressMax, progressMax);
+
+        return failures.isEmpty() ? files.size() : -1;
+    }
+
+    // Add a copied file to the journal (it is not synced, since a copy that is missing from the journal is only copied again)
+    private synchronized void record(String relativePath) throws IOException
+    {
+        journalWriter.write(FILE_PREFIX + relativePath);
+        journalWriter.newLine();
+        journalWriter.flush();
+    }
+
+    // Record in the journal that this move has reached a phase, making sure the record is on the disk before the phase starts
+    private void setPhase(Phase phase) throws IOException
+    {
+        Files.writeString(journal, PHASE_PREFIX + phase.name() + System.lineSeparator(), StandardCharsets.UTF_8, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        this.phase = phase;
+    }
+
+    // Save the folder's new location, after which the original directory is no longer needed
+    private void commit()
+    {
+        Database.updateManagedFolder(new ManagedFolder(folderId, targetName, targetLocation, null));
+    }
+
+    // Delete the copies and the journal, leaving the folder where it was
+    private void undo() throws IOException
+    {
+        /* Only a move that was copying files has a target that holds nothing but copies. It is deleted even if the source is gone, such as
+         * when the folder was deleted before its interrupted move could be resumed. After a rename or once every file has been copied, the
+         * target may be the only complete folder, so it is left alone */
+        if (phase == Phase.COPYING && Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+            deleteTree(target);
+        Files.deleteIfExists(journal);
+    }
+
+    // Delete a directory and everything in it, continuing past anything that cannot be deleted
+    private static void deleteTree(Path directory) throws IOException
+    {
+        Files.walkFileTree(directory, new SimpleFileVisitor<>()
+        {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            {
+                delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exception)
+            {
+                delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            private void delete(Path path)
+            {
+                try
+                {
+                    Files.delete(path);
+                }
+                catch (IOException exception)
+                {
+                    System.out.printf("RelocationTask.deleteTree: Unable to delete \"%s\" (%s)\n", path, exception);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,104 @@
+/* TagIt
+ * StorageMigrationTask.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.IOManager;
+import com.github.marcusschmidt4247.tagit.miscellaneous.StorageResolver;
+import javafx.concurrent.Task;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Vector;
+
+/**
+ * Converts a <code>ManagedFolder</code>'s flat storage directory to the sharded layout by moving each file into its subdirectory. The folder
+ * is marked as converting before any files are moved, and every file can be found while it is converting, so the folder can be used
+ * during the conversion. If the conversion is cancelled or interrupted, running it again continues with the files that are left.
+ * <p/>
+ * Files that cannot be moved are left where they are and the folder stays in the converting layout. The value of this task is the number
+ * of files moved.
+ */
+public class StorageMigrationTask extends Task<Integer>
+{
+    private final String directory;
+
+    private final Vector<String> failures = new Vector<>();
+    /**
+     * Gets the files that could not be moved. Should not be called until this task has finished running.
+     * @return a list of messages in the form "file name: reason"
+     */
+    public Vector<String> getFailures() { return failures; }
+
+    /**
+     * Class constructor.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public StorageMigrationTask(String directory) { this.directory = directory; }
+
+    @Override
+    protected Integer call()
+    {
+        if (StorageResolver.getLayout(directory) == StorageResolver.Layout.SHARDED)
+            return 0;
+
+        // Mark the folder first so that files are looked for in both places from now on, even if the program stops partway through
+        if (!StorageResolver.setLayout(directory, StorageResolver.Layout.MIGRATING))
+        {
+            failures.add("Unable to update the database");
+            return 0;
+        }
+
+        // Find the files that are still directly in the storage directory
+        updateMessage("Finding files...");
+        Path storage = Path.of(IOManager.getStorageDirectory(directory));
+        Vector<Path> files = new Vector<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(storage))
+        {
+            for (Path file : stream)
+            {
+                if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS))
+                    files.add(file);
+            }
+        }
+        catch (IOException | DirectoryIteratorException exception)
+        {
+            failures.add(String.format("%s: %s", storage, exception));
+            return 0;
+        }
+
+        int moved = 0;
+        updateMessage(String.format("Moving %d files...", files.size()));
+        for (Path file : files)
+        {
+            if (isCancelled())
+                return moved;
+
+            String name = file.getFileName().toString();
+            Path target = Path.of(StorageResolver.getShardedPath(storage.toString(), name));
+            try
+            {
+                // Some file systems replace an existing file when renaming, so check for one first
+                if (Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+                    throw new FileAlreadyExistsException(target.toString());
+                Files.createDirectories(target.getParent());
+                // Both paths are in the same storage directory, so this is a rename that either happens completely or not at all
+                Files.move(file, target, StandardCopyOption.ATOMIC_MOVE);
+                StorageResolver.invalidate(directory, name);
+                moved++;
+            }
+            catch (IOException | SecurityException exception)
+            {
+                failures.add(String.format("%s: %s", name, exception));
+            }
+            updateProgress(moved + failures.size(), files.size());
+        }
+
+        // The folder is only marked as sharded once every file has been moved
+        if (failures.isEmpty() && !StorageResolver.setLayout(directory, StorageResolver.Layout.SHARDED))
+            failures.add("Unable to update the database");
+        return moved;
+    }
+}
@@ -0,0 +1,113 @@
+/* TagIt
+ * ThumbnailTask.java
+ * Copyright (C) 2024  Marcus Schmidt
+ * SPDX-License-Identifier: GPL-3.0-or-later */
+
+package com.github.marcusschmidt4247.tagit.tasks;
+
+import com.github.marcusschmidt4247.tagit.Database;
+import com.github.marcusschmidt4247.tagit.IOManager;
+import com.github.marcusschmidt4247.tagit.miscellaneous.FileTypes;
+import com.github.marcusschmidt4247.tagit.miscellaneous.ThumbnailStore;
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Generates thumbnails for the images in a <code>ManagedFolder</code> that don't have one yet, such as files that were just imported or
+ * were imported before thumbnails were stored. The index is saved after every batch, so the work resumes where it left off the next time
+ * the folder is opened. Thumbnails of deleted files are cleared out of the <code>ThumbnailStore</code> before any are generated. The value of
+ * this task is the number of thumbnails generated.
+ */
+public class ThumbnailTask extends Task<Integer>
+{
+    private static final int BATCH_SIZE = 100;
+
+    private static final HashSet<String> running = new HashSet<>();
+    // Folders that had files imported while their thumbnails were already being generated
+    private static final HashSet<String> requested = new HashSet<>();
+
+    /**
+     * Starts generating a folder's thumbnails on a low-priority background thread. If they are already being generated, the folder is
+     * checked again once the current run finishes, so that files imported in the meantime are not missed.
+     * @param directory the absolute path to the <code>ManagedFolder</code> directory
+     */
+    public static void start(String directory)
+    {
+        synchronized (running)
+        {
+            if (!running.add(directory))
+            {
+                requested.add(directory);
+                return;
+            }
+        }
+
+        Thread thread = new Thread(() ->
+        {
+            boolean again = true;
+            while (again)
+            {
+                try
+                {
+                    new ThumbnailTask(directory).run();
+                }
+                finally
+                {
+                    synchronized (running)
+                    {
+                        again = requested.remove(directory);
+                        if (!again)
+                            running.remove(directory);
+                    }
+                }
+            }
+        }, "ThumbnailTask");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private final String directory;
+
+    private ThumbnailTask(String directory) { this.directory = directory; }
+
+    @Override
+    protected Integer call()
+    {
+        ThumbnailStore store = ThumbnailStore.get(directory);
+        LinkedHashMap<Integer, String> files = Database.getFileIds(directory);
+        store.compact(files.keySet());
+
+        int generated = 0;
+        for (Map.Entry<Integer, String> file : files.entrySet())
+        {
+            if (isCancelled())
+                break;
+            if (store.contains(file.getKey()) || FileTypes.getType(file.getValue()) != FileTypes.Type.IMAGE)
+                continue;
+
+            // Decode the image at thumbnail size on this thread, which is much faster than decoding it at full size
+            File source = new File(IOManager.getFilePath(directory, file.getValue()));
+            Image image = new Image(source.toURI().toString(), ThumbnailStore.MAX_SIZE, ThumbnailStore.MAX_SIZE, true, true, false);
+            if (image.isError())
+            {
+                // Files that failed are tried again the next time the thumbnails are generated
+                System.out.printf("ThumbnailTask.call: Unable to load \"%s\" (%s)\n", file.getValue(), image.getException());
+                continue;
+            }
+
+            if (store.add(file.getKey(), image) && ++generated % BATCH_SIZE == 0)
+            {
+                store.flush();
+                updateMessage(String.format("Generated %d thumbnails", generated));
+            }
+        }
+        store.flush();
+        return generated;
+    }
+}
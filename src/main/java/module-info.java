@@ -19,6 +19,7 @@ module com.github.marcusschmidt4247.tagit {
     exports com.github.marcusschmidt4247.tagit.gui;
     exports com.github.marcusschmidt4247.tagit.miscellaneous;
     exports com.github.marcusschmidt4247.tagit.models;
+    exports com.github.marcusschmidt4247.tagit.tasks;
 
     opens com.github.marcusschmidt4247.tagit to javafx.fxml;
     opens com.github.marcusschmidt4247.tagit.controllers to javafx.fxml;